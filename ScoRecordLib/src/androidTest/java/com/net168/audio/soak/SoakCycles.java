@@ -0,0 +1,167 @@
+package com.net168.audio.soak;
+
+import android.media.AudioFormat;
+import com.net168.audio.AudioCapture;
+import com.net168.audio.AudioPlayer;
+import com.net168.audio.MicSessionManager;
+import com.net168.audio.PcmConverter;
+import com.net168.audio.RecordingStore;
+import java.io.File;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SoakHarness常用的循环
+ * <p>
+ * playback和session在多次循环间复用同一个AudioPlayer，与应用中的用法一致，线程或AudioTrack泄漏会累积出来；
+ * capture和session会打开麦克风，store只使用合成音频源。
+ */
+public final class SoakCycles {
+
+    private static final int SPILL_TIMEOUT_MS = 1000;
+
+    private SoakCycles() {
+    }
+
+    /**
+     * 创建AudioCapture - start - 采集runMs - stop - release
+     */
+    public static SoakHarness.Cycle capture(final int sampleRate, final int runMs) {
+        return new SoakHarness.Cycle() {
+            @Override
+            public void run(int index) throws Exception {
+                final AtomicLong bytes = new AtomicLong();
+                AudioCapture capture = new AudioCapture(sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+                try {
+                    if (capture.getState() != AudioCapture.STATE_IDLE) {
+                        throw new IllegalStateException("AudioCapture init fail");
+                    }
+                    capture.setAudioCaptureCallback(new AudioCapture.AudioCaptureCallback() {
+                        @Override
+                        public void onPCMDataAvailable(byte[] data, int size) {
+                            bytes.addAndGet(size);
+                        }
+                    });
+                    capture.start();
+                    Thread.sleep(runMs);
+                    capture.stop();
+                } finally {
+                    capture.release();
+                }
+                if (bytes.get() == 0) {
+                    throw new IllegalStateException("no pcm data in " + runMs + "ms");
+                }
+            }
+        };
+    }
+
+    /**
+     * 同一个AudioPlayer反复 prepare - play - 写入合成音频runMs - stop
+     */
+    public static SoakHarness.Cycle playback(final AudioPlayer.AudioParam param, final int sampleRate, final int runMs) {
+        final AudioPlayer player = new AudioPlayer(null);
+        final SyntheticSource source = new SyntheticSource(sampleRate, 20, 440, new AudioCapture.AudioCaptureCallback() {
+            @Override
+            public void onPCMDataAvailable(byte[] data, int size) {
+                player.write(data, size);
+            }
+        });
+        return new SoakHarness.Cycle() {
+            @Override
+            public void run(int index) throws Exception {
+                if (!player.prepare(param)) {
+                    throw new IllegalStateException("AudioPlayer prepare fail");
+                }
+                player.play();
+                source.start();
+                try {
+                    Thread.sleep(runMs);
+                } finally {
+                    source.stop();
+                    player.stop();
+                }
+            }
+        };
+    }
+
+    /**
+     * 模拟SCO连接/断开：连接时acquire麦克风并回放，断开时release并停止播放，与demo中的处理相同
+     */
+    public static SoakHarness.Cycle session(final AudioPlayer.AudioParam param, final int sampleRate, final int runMs) {
+        final AudioPlayer player = new AudioPlayer(null);
+        return new SoakHarness.Cycle() {
+            @Override
+            public void run(int index) throws Exception {
+                if (!player.prepare(param)) {
+                    throw new IllegalStateException("AudioPlayer prepare fail");
+                }
+                MicSessionManager.Client client = MicSessionManager.getInstance().acquire(sampleRate,
+                    new PcmConverter.Format(AudioFormat.ENCODING_PCM_16BIT, 1, false), new AudioCapture.AudioCaptureCallback() {
+                        @Override
+                        public void onPCMDataAvailable(byte[] data, int size) {
+                            player.write(data, size);
+                        }
+                    });
+                if (client == null) {
+                    throw new IllegalStateException("acquire mic fail");
+                }
+                player.play();
+                try {
+                    Thread.sleep(runMs);
+                } finally {
+                    client.release();
+                    player.stop();
+                }
+            }
+        };
+    }
+
+    /**
+     * 合成音频写入RecordingStore，读回全部数据后release
+     * <p>
+     * 用来检查临时文件的创建和删除，memoryCap须明显小于runMs内写入的数据量，没有溢出到tempDir时本次循环出错。
+     * 块大小默认64KB，只有块封存并压缩后才可能溢出，短循环需要传入较小的chunkSize。
+     */
+    public static SoakHarness.Cycle store(final File tempDir, final long memoryCap, final int chunkSize, final int sampleRate,
+        final int runMs) {
+        return new SoakHarness.Cycle() {
+            @Override
+            public void run(int index) throws Exception {
+                RecordingStore store = new RecordingStore(tempDir, memoryCap, chunkSize);
+                SyntheticSource source = new SyntheticSource(sampleRate, 20, 440, store);
+                try {
+                    source.start();
+                    Thread.sleep(runMs);
+                    source.stop();
+                    store.finish();
+                    long total = 0;
+                    byte[] buffer = new byte[8192];
+                    InputStream in = store.openStream();
+                    try {
+                        int n;
+                        while ((n = in.read(buffer)) > 0) {
+                            total += n;
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    if (total != store.getTotalBytes()) {
+                        throw new IllegalStateException("read " + total + " of " + store.getTotalBytes() + " bytes");
+                    }
+                    //压缩和溢出在后台线程进行
+                    long deadline = System.nanoTime() + SPILL_TIMEOUT_MS * 1000000L;
+                    while (store.getSpilledBytes() == 0 && System.nanoTime() < deadline) {
+                        Thread.sleep(10);
+                    }
+                    if (store.getSpilledBytes() == 0) {
+                        throw new IllegalStateException("nothing spilled, total " + total + " bytes, memory "
+                            + store.getMemoryBytes() + " bytes");
+                    }
+                } finally {
+                    source.stop();
+                    store.release();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,358 @@
+package com.net168.audio.soak;
+
+import android.os.Debug;
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 长时间浸泡测试：反复执行 启动/停止/连接/断开 等循环，跟踪资源是否随循环次数增长
+ * <p>
+ * 每隔若干次循环采样一次：存活线程数、GC后的Java堆、Native堆、打开的文件句柄数（/proc/self/fd）、
+ * 该区间循环耗时的中位数。结束后对每个指标按循环次数做线性回归，
+ * 斜率外推到整个测试区间的增长超过上限即判定为泄漏。缓慢的泄漏单次看不出来，只有趋势能发现。
+ * <p>
+ * 在后台线程运行，run()阻塞到结束。只用于设备上的instrumentation测试，不随库发布，参看SoakTest。
+ *
+ *
+ * sample:
+ SoakHarness harness = new SoakHarness();
+ harness.setCycles(5000);
+ SoakHarness.Result result = harness.run(SoakCycles.playback(param, AudioCapture.AUDIO_SAMPLE_RATE_16, 200));
+ assertTrue(result.toString(), result.passed);
+ */
+public class SoakHarness {
+
+    private static final String TAG = SoakHarness.class.getSimpleName();
+
+    private static final int MIN_TREND_SAMPLES = 4;
+
+    private int mCycles = 2000;
+    private int mWarmupCycles = 50;
+    private int mSampleInterval = 50;
+    private int mSettleMs = 200;
+    private int mMaxErrors = 10;
+
+    private int mMaxThreadGrowth = 2;
+    private int mMaxFdGrowth = 4;
+    private long mMaxHeapGrowthBytes = 4 * 1024 * 1024;
+    private long mMaxNativeHeapGrowthBytes = 8 * 1024 * 1024;
+    private float mMaxLatencyGrowth = 0.5f;
+
+    private SoakListener mListener;
+
+    private volatile boolean mCancelled;
+
+    /**
+     * 循环总次数，默认2000
+     */
+    public void setCycles(int cycles) {
+        mCycles = cycles;
+    }
+
+    /**
+     * 预热次数，期间建立的缓存、线程池等不计入趋势，默认50
+     */
+    public void setWarmupCycles(int warmupCycles) {
+        mWarmupCycles = Math.max(0, warmupCycles);
+    }
+
+    /**
+     * 每多少次循环采样一次，默认50
+     */
+    public void setSampleInterval(int sampleInterval) {
+        mSampleInterval = Math.max(1, sampleInterval);
+    }
+
+    /**
+     * 采样前等待异步释放（线程退出、AudioTrack释放）完成的时间，默认200ms
+     */
+    public void setSettleMs(int settleMs) {
+        mSettleMs = Math.max(0, settleMs);
+    }
+
+    /**
+     * 循环抛出异常超过该次数时提前结束并判定失败，默认10
+     */
+    public void setMaxErrors(int maxErrors) {
+        mMaxErrors = maxErrors;
+    }
+
+    /**
+     * 设置各指标在整个测试区间内允许的增长量
+     *
+     * @param latencyGrowth 循环耗时允许增长的比例，0.5表示50%
+     */
+    public void setLimits(int threads, int fds, long heapBytes, long nativeHeapBytes, float latencyGrowth) {
+        mMaxThreadGrowth = threads;
+        mMaxFdGrowth = fds;
+        mMaxHeapGrowthBytes = heapBytes;
+        mMaxNativeHeapGrowthBytes = nativeHeapBytes;
+        mMaxLatencyGrowth = latencyGrowth;
+    }
+
+    public void setListener(SoakListener listener) {
+        mListener = listener;
+    }
+
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * 执行浸泡测试，阻塞到全部循环结束、取消或错误过多
+     */
+    public Result run(Cycle cycle) {
+        mCancelled = false;
+        List<Sample> samples = new ArrayList<>();
+        long[] latencies = new long[mSampleInterval];
+        int latencyCount = 0;
+        int errors = 0;
+        Throwable lastError = null;
+        int done = 0;
+
+        while (done < mCycles && !mCancelled) {
+            long start = System.nanoTime();
+            try {
+                cycle.run(done);
+            } catch (Exception e) {
+                errors++;
+                lastError = e;
+                Log.w(TAG, "cycle " + done + " fail: " + e);
+                if (errors > mMaxErrors) {
+                    break;
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            done++;
+            if (done <= mWarmupCycles) {
+                continue;
+            }
+            latencies[latencyCount++] = nanos;
+            if (latencyCount == latencies.length) {
+                Arrays.sort(latencies);
+                Sample sample = sample(done, latencies[latencies.length / 2]);
+                latencyCount = 0;
+                samples.add(sample);
+                Log.i(TAG, sample.toString());
+                SoakListener listener = mListener;
+                if (listener != null) {
+                    listener.onSample(sample);
+                }
+            }
+        }
+
+        List<Trend> trends = new ArrayList<>();
+        boolean passed = errors <= mMaxErrors;
+        if (samples.size() >= MIN_TREND_SAMPLES) {
+            double[] x = new double[samples.size()];
+            double[] threads = new double[x.length];
+            double[] fds = new double[x.length];
+            double[] heap = new double[x.length];
+            double[] nativeHeap = new double[x.length];
+            double[] latency = new double[x.length];
+            for (int i = 0; i < x.length; i++) {
+                Sample sample = samples.get(i);
+                x[i] = sample.cycle;
+                threads[i] = sample.threadCount;
+                fds[i] = sample.fdCount;
+                heap[i] = sample.heapBytes;
+                nativeHeap[i] = sample.nativeHeapBytes;
+                latency[i] = sample.cycleNanos;
+            }
+            trends.add(new Trend("threads", x, threads, mMaxThreadGrowth));
+            if (samples.get(0).fdCount >= 0) {
+                trends.add(new Trend("fds", x, fds, mMaxFdGrowth));
+            }
+            trends.add(new Trend("heap", x, heap, mMaxHeapGrowthBytes));
+            trends.add(new Trend("nativeHeap", x, nativeHeap, mMaxNativeHeapGrowthBytes));
+            trends.add(new Trend("cycleNanos", x, latency, Math.max(1, latency[0]) * mMaxLatencyGrowth));
+            for (Trend trend : trends) {
+                passed &= !trend.failed;
+            }
+        } else {
+            Log.w(TAG, "only " + samples.size() + " samples, trends not checked");
+        }
+        Result result = new Result(passed, done, errors, lastError, Collections.unmodifiableList(samples),
+            Collections.unmodifiableList(trends));
+        if (passed) {
+            Log.i(TAG, result.toString());
+        } else {
+            Log.e(TAG, result.toString());
+        }
+        return result;
+    }
+
+    /**
+     * 等异步释放完成并GC后读取各项指标
+     */
+    private Sample sample(int cycle, long cycleNanos) {
+        if (mSettleMs > 0) {
+            try {
+                Thread.sleep(mSettleMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        runtime.runFinalization();
+        runtime.gc();
+        return new Sample(cycle, getThreadCount(), getFdCount(), runtime.totalMemory() - runtime.freeMemory(),
+            Debug.getNativeHeapAllocatedSize(), cycleNanos);
+    }
+
+    /**
+     * 进程内线程数，包括native线程；读不到/proc时退化为Java线程数
+     */
+    static int getThreadCount() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/self/status"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("Threads:")) {
+                    return Integer.parseInt(line.substring("Threads:".length()).trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // 回退到Java线程数
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return Thread.getAllStackTraces().size();
+    }
+
+    /**
+     * 打开的文件句柄数（含socket、binder、AudioRecord/AudioTrack共享内存），读不到时返回-1
+     */
+    static int getFdCount() {
+        String[] fds = new File("/proc/self/fd").list();
+        return fds == null ? -1 : fds.length;
+    }
+
+    public interface Cycle {
+
+        /**
+         * 执行一次完整的循环，如 创建-启动-停止-释放；抛出异常计为一次错误
+         *
+         * @param index 从0开始的循环序号
+         */
+        void run(int index) throws Exception;
+    }
+
+    public interface SoakListener {
+
+        /**
+         * 每次采样后在测试线程上回调，可用于长时间运行时输出进度
+         */
+        void onSample(Sample sample);
+    }
+
+    public static final class Sample {
+
+        Sample(int cycle, int threadCount, int fdCount, long heapBytes, long nativeHeapBytes, long cycleNanos) {
+            this.cycle = cycle;
+            this.threadCount = threadCount;
+            this.fdCount = fdCount;
+            this.heapBytes = heapBytes;
+            this.nativeHeapBytes = nativeHeapBytes;
+            this.cycleNanos = cycleNanos;
+        }
+
+        public final int cycle;
+        public final int threadCount;
+        public final int fdCount;
+        public final long heapBytes;
+        public final long nativeHeapBytes;
+        public final long cycleNanos;      // 该采样区间内循环耗时的中位数
+
+        @Override
+        public String toString() {
+            return "Sample{cycle=" + cycle + ", threads=" + threadCount + ", fds=" + fdCount + ", heap=" + heapBytes / 1024
+                + "KB, nativeHeap=" + nativeHeapBytes / 1024 + "KB, cycle=" + cycleNanos / 1000 + "us}";
+        }
+    }
+
+    /**
+     * 一个指标的最小二乘线性趋势
+     */
+    public static final class Trend {
+
+        Trend(String name, double[] x, double[] y, double limit) {
+            int n = x.length;
+            double mx = 0;
+            double my = 0;
+            for (int i = 0; i < n; i++) {
+                mx += x[i];
+                my += y[i];
+            }
+            mx /= n;
+            my /= n;
+            double sxy = 0;
+            double sxx = 0;
+            for (int i = 0; i < n; i++) {
+                sxy += (x[i] - mx) * (y[i] - my);
+                sxx += (x[i] - mx) * (x[i] - mx);
+            }
+            this.name = name;
+            this.first = y[0];
+            this.last = y[n - 1];
+            this.slopePerCycle = sxx == 0 ? 0 : sxy / sxx;
+            this.growth = slopePerCycle * (x[n - 1] - x[0]);
+            this.limit = limit;
+            this.failed = growth > limit;
+        }
+
+        public final String name;
+        public final double first;
+        public final double last;
+        public final double slopePerCycle;
+        public final double growth;        // 按斜率外推的整个区间增长量
+        public final double limit;
+        public final boolean failed;
+
+        @Override
+        public String toString() {
+            return name + "{first=" + (long) first + ", last=" + (long) last + ", slope=" + String.format("%.4f", slopePerCycle)
+                + "/cycle, growth=" + (long) growth + ", limit=" + (long) limit + (failed ? ", LEAK" : "") + "}";
+        }
+    }
+
+    public static final class Result {
+
+        Result(boolean passed, int cycles, int errors, Throwable lastError, List<Sample> samples, List<Trend> trends) {
+            this.passed = passed;
+            this.cycles = cycles;
+            this.errors = errors;
+            this.lastError = lastError;
+            this.samples = samples;
+            this.trends = trends;
+        }
+
+        public final boolean passed;
+        public final int cycles;
+        public final int errors;
+        public final Throwable lastError;
+        public final List<Sample> samples;
+        public final List<Trend> trends;
+
+        @Override
+        public String toString() {
+            return "Result{" + (passed ? "PASSED" : "FAILED") + ", cycles=" + cycles + ", errors=" + errors
+                + (lastError == null ? "" : ", lastError=" + lastError) + ", trends=" + trends + "}";
+        }
+    }
+}
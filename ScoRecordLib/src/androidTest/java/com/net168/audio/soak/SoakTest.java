@@ -0,0 +1,70 @@
+package com.net168.audio.soak;
+
+import static org.junit.Assert.assertTrue;
+
+import android.media.AudioFormat;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import com.net168.audio.AudioCapture;
+import com.net168.audio.AudioPlayer;
+import java.io.File;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * 在设备上运行SoakHarness，任一指标超出上限或错误过多即失败
+ * <p>
+ * 库的targetSdkVersion为20，RECORD_AUDIO在安装时授予；capture和session需要设备有可用的麦克风。
+ * 循环次数按几分钟内跑完设置，排查缓慢泄漏时可调大。
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SoakTest {
+
+    private static final String TAG = SoakTest.class.getSimpleName();
+
+    private static final int SAMPLE_RATE = AudioCapture.AUDIO_SAMPLE_RATE_16;
+
+    private static AudioPlayer.AudioParam playbackParam() {
+        return new AudioPlayer.AudioParam(SAMPLE_RATE, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+    }
+
+    private static void runSoak(int cycles, SoakHarness.Cycle cycle) {
+        runSoak(cycles, 10, cycle);
+    }
+
+    private static void runSoak(int cycles, int maxErrors, SoakHarness.Cycle cycle) {
+        SoakHarness harness = new SoakHarness();
+        harness.setCycles(cycles);
+        harness.setMaxErrors(maxErrors);
+        harness.setSampleInterval(Math.max(1, cycles / 10));
+        SoakHarness.Result result = harness.run(cycle);
+        Log.i(TAG, result.toString());
+        assertTrue(result.toString(), result.passed);
+    }
+
+    @Test
+    public void playback() {
+        runSoak(300, SoakCycles.playback(playbackParam(), SAMPLE_RATE, 50));
+    }
+
+    @Test
+    public void store() {
+        File tempDir = InstrumentationRegistry.getTargetContext().getCacheDir();
+        //每次循环写入100ms约3.2KB，按1KB分块压缩后仍超过1KB的内存上限，必然溢出到临时文件；
+        //没有溢出时循环出错，不允许任何错误
+        runSoak(500, 0, SoakCycles.store(tempDir, 1024, 1024, SAMPLE_RATE, 100));
+    }
+
+    @Test
+    public void capture() {
+        runSoak(200, SoakCycles.capture(SAMPLE_RATE, 100));
+    }
+
+    @Test
+    public void session() {
+        runSoak(200, SoakCycles.session(playbackParam(), SAMPLE_RATE, 100));
+    }
+}
@@ -0,0 +1,118 @@
+package com.net168.audio.soak;
+
+import android.util.Log;
+import com.net168.audio.AudioCapture;
+import com.net168.audio.PcmBufferPool;
+
+/**
+ * 合成音频源：按实时节奏产生16bit单声道正弦波，代替麦克风回调给AudioCaptureCallback
+ * <p>
+ * 与AudioRecordCore一样在独立线程上回调，callback实现AudioCaptureStopCallback时在线程退出前通知结束。
+ *
+ *
+ * sample:
+ SyntheticSource source = new SyntheticSource(16000, 20, 440, callback);
+ source.start();
+ source.stop();
+ */
+public class SyntheticSource {
+
+    private static final String TAG = SyntheticSource.class.getSimpleName();
+
+    private static final int JOIN_TIMEOUT_MS = 1000;
+
+    private final int mSampleRate;
+    private final int mFrameSamples;
+    private final double mPhaseStep;
+    private final AudioCapture.AudioCaptureCallback mCallback;
+
+    private volatile Thread mThread;
+
+    /**
+     * @param frameMs 每次回调的时长
+     * @param toneHz 正弦波频率
+     */
+    public SyntheticSource(int sampleRate, int frameMs, int toneHz, AudioCapture.AudioCaptureCallback callback) {
+        mSampleRate = sampleRate;
+        mFrameSamples = Math.max(1, sampleRate * frameMs / 1000);
+        mPhaseStep = 2 * Math.PI * toneHz / sampleRate;
+        mCallback = callback;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new GenerateThread();
+        mThread.start();
+    }
+
+    /**
+     * 停止并等待线程退出，返回后不会再有回调
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread == null || thread == Thread.currentThread()) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join(JOIN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            Log.w(TAG, "GenerateThread not exit in " + JOIN_TIMEOUT_MS + "ms");
+        }
+    }
+
+    class GenerateThread extends Thread {
+
+        GenerateThread() {
+            super("SyntheticSource");
+        }
+
+        @Override
+        public void run() {
+            byte[] data = new byte[mFrameSamples * 2];
+            long frameNanos = mFrameSamples * 1000000000L / mSampleRate;
+            long next = System.nanoTime();
+            double phase = 0;
+            while (mThread == this) {
+                for (int i = 0; i < mFrameSamples; i++) {
+                    int v = (int) (Math.sin(phase) * 8000);
+                    data[i * 2] = (byte) v;
+                    data[i * 2 + 1] = (byte) (v >> 8);
+                    phase += mPhaseStep;
+                }
+                if (phase > 2 * Math.PI) {
+                    phase -= 2 * Math.PI * (int) (phase / (2 * Math.PI));
+                }
+                mCallback.onPCMDataAvailable(data, data.length);
+                //按绝对时间推进，回调耗时不累积成漂移
+                next += frameNanos;
+                long sleepNanos = next - System.nanoTime();
+                if (sleepNanos > 0) {
+                    try {
+                        Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+            if (mCallback instanceof AudioCapture.AudioCaptureStopCallback) {
+                ((AudioCapture.AudioCaptureStopCallback) mCallback).onCaptureStopped();
+            }
+            //回调方可能在本线程上从缓冲池取缓冲，退出前归还线程缓存
+            PcmBufferPool.trimThreadCache();
+        }
+    }
+}
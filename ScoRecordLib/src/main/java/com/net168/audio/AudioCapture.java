@@ -1,7 +1,9 @@
 package com.net168.audio;
 
+import android.media.AudioFormat;
 import android.util.Log;
 import com.net168.audio.audiorecord.AudioRecordCore;
+import com.net168.audio.dsp.DspChain;
 
 /**
  * PCM音频录制
@@ -49,9 +51,20 @@ public class AudioCapture {
     public static final int STATE_IDLE = 1;
     public static final int STATE_RECORDING = 2;
 
+    /**
+     * 读取方式
+     */
+    public static final int CAPTURE_MODE_DEFAULT = 0;       // 每次读取getMinBufferSize长度
+    public static final int CAPTURE_MODE_LOW_LATENCY = 1;   // 每次读取10ms，适合回环监听等对延迟敏感的场景
+    public static final int CAPTURE_MODE_BATCH = 2;         // 每次读取200ms，读取之间线程休眠，适合只写文件的场景，唤醒少更省电
+
 
     private AudioRecordCore mCore;
 
+    private PcmConverter.Format mPcmFormat;
+
+    private int mSampleRate;
+
     /**
      * 初始化录制器
      *
@@ -62,7 +75,9 @@ public class AudioCapture {
     public AudioCapture(final int sampleRate, final int channelConfig, final int audioFormat) {
 
         mCore = new AudioRecordCore();
-        boolean result = mCore.createRecord(getAudioRecordSampleRate(sampleRate), channelConfig, audioFormat);
+        mPcmFormat = PcmConverter.Format.of(channelConfig, audioFormat);
+        mSampleRate = getAudioRecordSampleRate(sampleRate);
+        boolean result = mCore.createRecord(mSampleRate, channelConfig, audioFormat);
         //如果createRecord不成功，认为初始化失败
         if (!result) {
             Log.e(TAG, "AudioRecordCore create record error");
@@ -105,7 +120,8 @@ public class AudioCapture {
     }
 
     /**
-     * 设置录制器PCM数据回调
+     * 设置录制器PCM数据回调，callback同时实现AudioCaptureStopCallback时会收到采集结束通知，
+     * 实现AudioCaptureTimestampCallback时会收到采集时间戳
      */
     public void setAudioCaptureCallback(final AudioCaptureCallback callback) {
         if (callback != null) {
@@ -118,8 +134,92 @@ public class AudioCapture {
                 public void onPCMDataAvailable(byte[] data, int size) {
                     callback.onPCMDataAvailable(data, size);
                 }
+
+                @Override
+                public void onCaptureStopped() {
+                    if (callback instanceof AudioCaptureStopCallback) {
+                        ((AudioCaptureStopCallback) callback).onCaptureStopped();
+                    }
+                }
+
+                @Override
+                public void onCaptureTimestamp(long framePosition, long nanoTime, boolean hardware) {
+                    if (callback instanceof AudioCaptureTimestampCallback) {
+                        ((AudioCaptureTimestampCallback) callback).onCaptureTimestamp(framePosition, nanoTime, hardware);
+                    }
+                }
             });
+            mCore.setTimestampEnabled(callback instanceof AudioCaptureTimestampCallback);
+        }
+    }
+
+    /**
+     * 设置采集出错后自动恢复的通知，在采集线程上回调
+     */
+    public void setRecoveryListener(final CaptureRecoveryListener listener) {
+        if (mCore == null) {
+            Log.e(TAG, "AudioRecordCore not init");
+            return;
+        }
+        if (listener == null) {
+            mCore.setRecoveryListener(null);
+            return;
+        }
+        mCore.setRecoveryListener(new AudioRecordCore.InnerRecoveryListener() {
+            @Override
+            public void onRecovered(int errorCode, int attempts) {
+                listener.onCaptureRecovered(errorCode, attempts);
+            }
+
+            @Override
+            public void onRecoveryFailed(int errorCode, int attempts) {
+                listener.onCaptureFailed(errorCode, attempts);
+            }
+        });
+    }
+
+    /**
+     * 设置PCM数据的处理链，在回调之前运行于采集线程，只支持16bit采样
+     *
+     * @param dspChain 传入null取消处理
+     */
+    public void setDspChain(DspChain dspChain) {
+        if (mCore == null) {
+            Log.e(TAG, "AudioRecordCore not init");
+            return;
+        }
+        if (dspChain != null && mPcmFormat.getEncoding() != AudioFormat.ENCODING_PCM_16BIT) {
+            Log.e(TAG, "DspChain only support ENCODING_PCM_16BIT");
+            return;
+        }
+        mCore.setDspChain(dspChain);
+    }
+
+    /**
+     * 切换读取方式，录制过程中也可以切换，参看CAPTURE_MODE_*
+     */
+    public void setCaptureMode(int mode) {
+        if (mCore == null) {
+            Log.e(TAG, "AudioRecordCore not init");
+            return;
+        }
+        mCore.setReadMode(mode);
+    }
+
+    /**
+     * 各读取方式下的累计时长和唤醒次数，未初始化成功时返回null
+     */
+    public CaptureStats getCaptureStats() {
+        if (mCore == null) {
+            return null;
+        }
+        long[] wakeups = new long[MODE_COUNT];
+        long[] nanos = new long[MODE_COUNT];
+        for (int mode = 0; mode < MODE_COUNT; mode++) {
+            wakeups[mode] = mCore.getWakeups(mode);
+            nanos[mode] = mCore.getModeNanos(mode);
         }
+        return new CaptureStats(mCore.getReadMode(), mCore.getModeSwitches(), wakeups, nanos);
     }
 
     /**
@@ -139,6 +239,30 @@ public class AudioCapture {
         return state;
     }
 
+    /**
+     * 获取实际的采样频率，不支持的采样频率会被替换为16kHz
+     */
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * 获取回调PCM数据的格式
+     */
+    public PcmConverter.Format getPcmFormat() {
+        return mPcmFormat;
+    }
+
+    /**
+     * 获取回调PCM数据的最大字节数，未初始化成功时为0
+     */
+    public int getMaxBufferSize() {
+        if (mCore == null) {
+            return 0;
+        }
+        return mCore.getMaxBufferSize();
+    }
+
     /**
      * 将AudioCapture的采样频率转为AudioRecord支持的采样频率格式
      */
@@ -156,8 +280,90 @@ public class AudioCapture {
         }
     }
 
+    private static final int MODE_COUNT = 3;
+
+    public static final class CaptureStats {
+
+        private final long[] wakeups;
+        private final long[] nanos;
+
+        CaptureStats(int mode, long switches, long[] wakeups, long[] nanos) {
+            this.mode = mode;
+            this.switches = switches;
+            this.wakeups = wakeups;
+            this.nanos = nanos;
+        }
+
+        public final int mode;         // 当前读取方式
+        public final long switches;    // 切换次数
+
+        public long getWakeups(int mode) {
+            return wakeups[mode];
+        }
+
+        public float getSeconds(int mode) {
+            return nanos[mode] / 1e9f;
+        }
+
+        /**
+         * 某种读取方式下采集线程每秒被唤醒的次数
+         */
+        public float getWakeupsPerSecond(int mode) {
+            return nanos[mode] <= 0 ? 0 : wakeups[mode] * 1e9f / nanos[mode];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("CaptureStats{mode=").append(mode).append(", switches=").append(switches);
+            String[] names = {"default", "lowLatency", "batch"};
+            for (int i = 0; i < MODE_COUNT; i++) {
+                builder.append(", ").append(names[i]).append('=').append(getWakeupsPerSecond(i)).append("/s in ")
+                    .append(getSeconds(i)).append('s');
+            }
+            return builder.append('}').toString();
+        }
+    }
+
     public interface AudioCaptureCallback {
 
         void onPCMDataAvailable(byte[] data, int size);
     }
+
+    public interface CaptureRecoveryListener {
+
+        /**
+         * read出错后重建AudioRecord成功，重新读到了数据
+         *
+         * @param errorCode 触发恢复的read返回值，如AudioRecord.ERROR_DEAD_OBJECT
+         * @param attempts 重建次数
+         */
+        void onCaptureRecovered(int errorCode, int attempts);
+
+        /**
+         * 多次重建仍失败或参数错误，采集已停止，状态回到STATE_IDLE
+         */
+        void onCaptureFailed(int errorCode, int attempts);
+    }
+
+    public interface AudioCaptureStopCallback extends AudioCaptureCallback {
+
+        /**
+         * 在采集线程上回调，最后一次onPCMDataAvailable之后调用
+         */
+        void onCaptureStopped();
+    }
+
+    public interface AudioCaptureTimestampCallback extends AudioCaptureCallback {
+
+        /**
+         * 在采集线程上回调，每次读取到数据、对应的onPCMDataAvailable之前调用：
+         * 先回调一次读取返回的时刻，API 24以上取得硬件时间戳时再回调一次
+         *
+         * @param framePosition 帧位置，从start()开始计数
+         * @param nanoTime 该帧的时刻（System.nanoTime时基）
+         * @param hardware true为AudioRecord.getTimestamp（API 24）给出的实际采集时刻；
+         * false为读取返回的时刻，framePosition为已读到的帧数，包含输入延迟和调度延迟
+         */
+        void onCaptureTimestamp(long framePosition, long nanoTime, boolean hardware);
+    }
 }
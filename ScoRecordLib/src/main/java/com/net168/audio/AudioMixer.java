@@ -0,0 +1,314 @@
+package com.net168.audio;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多路PCM混音，输出到同一个AudioTrack（16bit）
+ * <p>
+ * 每一路输入有自己的增益；标记为ducking的输入有数据时，其他输入自动压低到duckGain。
+ * 混音在预先分配好的缓冲区中用饱和加法完成，每个周期不分配内存。
+ *
+ *
+ * sample:
+ mMixer = new AudioMixer(AudioCapture.AUDIO_SAMPLE_RATE_16, AudioFormat.CHANNEL_OUT_MONO);
+ MixerInput loopback = mMixer.addInput(AudioCapture.AUDIO_SAMPLE_RATE_16);
+ MixerInput prompt = mMixer.addInput(AudioCapture.AUDIO_SAMPLE_RATE_16);
+ prompt.setDucking(true);
+ mMixer.start();
+
+ loopback.write(data, size);  //采集线程
+ prompt.write(beep, beep.length);
+
+ mMixer.release();
+ */
+public class AudioMixer {
+
+    private final static String TAG = AudioMixer.class.getSimpleName();
+
+    private final static int UNITY_GAIN = 1 << 15;   // Q15格式的1.0
+
+    private final int sampleRate;
+
+    private final int channelConfig;
+
+    private final int channelCount;
+
+    private AudioTrack audioTrack;
+
+    private int samplesPerCycle;
+
+    private int[] mixBuffer;        // 累加缓冲区
+
+    private short[] outBuffer;      // 输出缓冲区
+
+    private volatile MixerInput[] inputs = new MixerInput[0];
+
+    private volatile int duckGain = (int) (0.25f * UNITY_GAIN);
+
+    private volatile boolean threadExitFlag = true;            // 线程退出标志
+
+    private MixThread mixThread;
+
+    /**
+     * @param sampleRate 输出采样频率
+     * @param channelConfig AudioFormat.CHANNEL_OUT_MONO 或 AudioFormat.CHANNEL_OUT_STEREO
+     */
+    public AudioMixer(int sampleRate, int channelConfig) {
+        this.sampleRate = sampleRate;
+        this.channelConfig = channelConfig;
+        this.channelCount = channelConfig == AudioFormat.CHANNEL_OUT_STEREO ? 2 : 1;
+    }
+
+    /**
+     * 增加一路输入，所有输入需和输出格式一致
+     *
+     * @param capacityFrames 输入缓冲区可容纳的帧数，超出的数据会被丢弃
+     */
+    public synchronized MixerInput addInput(int capacityFrames) {
+        MixerInput input = new MixerInput(capacityFrames * channelCount);
+        MixerInput[] newInputs = new MixerInput[inputs.length + 1];
+        System.arraycopy(inputs, 0, newInputs, 0, inputs.length);
+        newInputs[inputs.length] = input;
+        inputs = newInputs;
+        return input;
+    }
+
+    public synchronized void removeInput(MixerInput input) {
+        MixerInput[] old = inputs;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == input) {
+                MixerInput[] newInputs = new MixerInput[old.length - 1];
+                System.arraycopy(old, 0, newInputs, 0, i);
+                System.arraycopy(old, i + 1, newInputs, i, old.length - i - 1);
+                inputs = newInputs;
+                return;
+            }
+        }
+    }
+
+    /**
+     * ducking输入有数据时，其他输入的增益系数
+     */
+    public void setDuckGain(float gain) {
+        duckGain = toQ15(gain);
+    }
+
+    public synchronized boolean start() {
+        if (!threadExitFlag) {
+            return true;
+        }
+        if (audioTrack == null) {
+            int minBufSize = AudioTrack.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+            if (minBufSize <= 0) {
+                Log.e(TAG, "start fail, invalid param, err code：" + minBufSize);
+                return false;
+            }
+            audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelConfig,
+                AudioFormat.ENCODING_PCM_16BIT, minBufSize, AudioTrack.MODE_STREAM);
+            if (audioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+                Log.e(TAG, "init AudioTrack fail，err code：" + audioTrack.getState());
+                audioTrack.release();
+                audioTrack = null;
+                return false;
+            }
+            //每个周期混音半个最小缓冲区，保证AudioTrack里始终有数据
+            samplesPerCycle = minBufSize / 2 / 2;
+            samplesPerCycle -= samplesPerCycle % channelCount;
+            mixBuffer = new int[samplesPerCycle];
+            outBuffer = new short[samplesPerCycle];
+        }
+        threadExitFlag = false;
+        mixThread = new MixThread();
+        mixThread.start();
+        return true;
+    }
+
+    public synchronized void stop() {
+        threadExitFlag = true;
+        if (mixThread != null) {
+            try {
+                mixThread.join();
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+            mixThread = null;
+        }
+    }
+
+    public synchronized void release() {
+        stop();
+        if (audioTrack != null) {
+            audioTrack.release();
+            audioTrack = null;
+        }
+        mixBuffer = null;
+        outBuffer = null;
+    }
+
+    private static int toQ15(float gain) {
+        return (int) (Math.max(0f, Math.min(gain, 4f)) * UNITY_GAIN);
+    }
+
+    /**
+     * 混音一个周期，只使用预先分配的缓冲区
+     */
+    private void mixOnce(MixerInput[] inputs) {
+        final int[] mix = mixBuffer;
+        final short[] out = outBuffer;
+        final int n = samplesPerCycle;
+
+        boolean ducking = false;
+        for (MixerInput input : inputs) {
+            if (input.ducking && input.available() > 0) {
+                ducking = true;
+                break;
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            mix[i] = 0;
+        }
+        for (MixerInput input : inputs) {
+            int target = input.gain;
+            if (ducking && !input.ducking) {
+                target = (int) ((long) target * duckGain >> 15);
+            }
+            input.mixInto(mix, n, target);
+        }
+        //饱和到16bit
+        for (int i = 0; i < n; i++) {
+            int v = mix[i];
+            if (v > Short.MAX_VALUE) {
+                v = Short.MAX_VALUE;
+            } else if (v < Short.MIN_VALUE) {
+                v = Short.MIN_VALUE;
+            }
+            out[i] = (short) v;
+        }
+    }
+
+    class MixThread extends Thread {
+
+        MixThread() {
+            super("AudioMixer");
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            audioTrack.play();
+            while (!threadExitFlag) {
+                mixOnce(inputs);
+                //阻塞写入，由AudioTrack的消耗速度决定混音节奏
+                int ret = audioTrack.write(outBuffer, 0, samplesPerCycle);
+                if (ret < 0) {
+                    Log.w(TAG, "write data with err code = " + ret);
+                    break;
+                }
+            }
+            audioTrack.pause();
+            audioTrack.flush();
+            threadExitFlag = true;
+            Log.i(TAG, "MixThread complete...");
+        }
+    }
+
+    /**
+     * 混音器的一路输入，单生产者（write线程）单消费者（混音线程）
+     */
+    public static final class MixerInput {
+
+        private final short[] ring;
+
+        private final int mask;
+
+        private final AtomicLong writePos = new AtomicLong();
+
+        private final AtomicLong readPos = new AtomicLong();
+
+        private volatile int gain = UNITY_GAIN;
+
+        private volatile boolean ducking;
+
+        private int currentGain = UNITY_GAIN;   // 混音线程使用，渐变到gain，避免爆音
+
+        private long droppedSamples;
+
+        MixerInput(int capacitySamples) {
+            int capacity = Integer.highestOneBit(Math.max(capacitySamples, 2) - 1) << 1;
+            ring = new short[capacity];
+            mask = capacity - 1;
+        }
+
+        /**
+         * 写入16bit小端PCM，不阻塞
+         *
+         * @return 实际接受的字节数，缓冲区满时多余数据被丢弃
+         */
+        public int write(byte[] data, int size) {
+            long w = writePos.get();
+            int free = ring.length - (int) (w - readPos.get());
+            int samples = Math.min(size / 2, free);
+            for (int i = 0; i < samples; i++) {
+                ring[(int) (w + i) & mask] = (short) ((data[2 * i] & 0xff) | (data[2 * i + 1] << 8));
+            }
+            writePos.lazySet(w + samples);
+            droppedSamples += size / 2 - samples;
+            return samples * 2;
+        }
+
+        public void write(short[] data, int count) {
+            long w = writePos.get();
+            int free = ring.length - (int) (w - readPos.get());
+            int samples = Math.min(count, free);
+            for (int i = 0; i < samples; i++) {
+                ring[(int) (w + i) & mask] = data[i];
+            }
+            writePos.lazySet(w + samples);
+            droppedSamples += count - samples;
+        }
+
+        public void setGain(float gain) {
+            this.gain = toQ15(gain);
+        }
+
+        /**
+         * 设为true时，本路有数据会压低其他输入（例如提示音压低回环声音）
+         */
+        public void setDucking(boolean ducking) {
+            this.ducking = ducking;
+        }
+
+        /**
+         * 缓冲区满被丢弃的采样数，只在写入线程读取准确
+         */
+        public long getDroppedSamples() {
+            return droppedSamples;
+        }
+
+        int available() {
+            return (int) (writePos.get() - readPos.get());
+        }
+
+        /**
+         * 把最多n个采样乘以增益后累加到mix，增益在本周期内线性渐变到target
+         */
+        void mixInto(int[] mix, int n, int target) {
+            long r = readPos.get();
+            int count = Math.min(n, (int) (writePos.get() - r));
+            int g = currentGain;
+            int step = count > 0 ? (target - g) / count : 0;
+            for (int i = 0; i < count; i++) {
+                g += step;
+                mix[i] += (int) (ring[(int) (r + i) & mask] * (long) g >> 15);
+            }
+            currentGain = count > 0 ? target : currentGain;
+            readPos.lazySet(r + count);
+        }
+    }
+}
@@ -2,16 +2,16 @@ package com.net168.audio;
 
 import android.media.AudioFormat;
 import android.media.AudioManager;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
+import android.os.Build;
 import android.util.Log;
+import com.net168.audio.dsp.EchoReference;
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.TimeUnit;
 
 /**
  * PCM音频播放
@@ -22,6 +22,8 @@ public class AudioPlayer {
 
     private final static String TAG = AudioPlayer.class.getSimpleName();
 
+    private static final int PLAY_THREAD_JOIN_MS = 1000;
+
     private AudioParam audioParam;// 音频参数
 
     private AudioTrack audioTrack;
@@ -34,6 +36,18 @@ public class AudioPlayer {
 
     private IPlayCallback playCallback;
 
+    private volatile PcmConverter converter;   // write数据与AudioTrack格式不一致时使用
+
+    private byte[] convertBuffer;
+
+    private volatile int overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    private long droppedFrames;      // 因播放跟不上被丢弃的帧数（一次write为一帧）
+
+    private long compressedFrames;   // 被压缩时长的帧数
+
+    private volatile EchoReference echoReference;   // 回声消除的远端参考
+
     public AudioPlayer(IPlayCallback playCallback) {
         this.playCallback = playCallback;
     }
@@ -42,6 +56,8 @@ public class AudioPlayer {
      *  就绪播放源
      */
     public synchronized boolean prepare(AudioParam audioParam) {
+        //上次stop后播放线程可能还在释放AudioTrack，等它结束再判断状态
+        awaitPlayThread();
         if (playState > PlayState.MPS_UNINIT) {
             return true;
         }
@@ -63,10 +79,28 @@ public class AudioPlayer {
     }
 
 
+    /**
+     * 设置write()传入数据的格式，与AudioTrack格式不一致时自动转换，需在prepare之后调用
+     *
+     * @param format 传入null表示与AudioTrack格式一致
+     */
+    public synchronized void setInputFormat(PcmConverter.Format format) {
+        if (audioParam == null) {
+            Log.w(TAG, "setInputFormat fail, because the player is not prepared");
+            return;
+        }
+        PcmConverter.Format trackFormat = PcmConverter.Format.of(audioParam.channel, audioParam.sampleBit);
+        if (format == null || format.equals(trackFormat)) {
+            converter = null;
+        } else {
+            converter = new PcmConverter(format, trackFormat);
+        }
+    }
+
     //播放音频（PCM）
-    public void play(String filename) {
+    public synchronized void play(String filename) {
         Log.i(TAG, "play with: filename = " + filename + "");
-        if (!threadExitFlag) {
+        if (!canPlay()) {
             return;
         }
         threadExitFlag = false;
@@ -74,9 +108,9 @@ public class AudioPlayer {
         playAudioThread.start();
     }
 
-    public void play() {
+    public synchronized void play() {
         Log.i(TAG, "play");
-        if (!threadExitFlag) {
+        if (!canPlay()) {
             return;
         }
 
@@ -85,27 +119,279 @@ public class AudioPlayer {
         playAudioThread.start();
     }
 
-    private final BlockingQueue<DataWrap> queue = new SynchronousQueue<>();
+    /**
+     * 正在播放时不重复启动线程；上一个播放线程结束后AudioTrack已释放，需要重新prepare
+     */
+    private boolean canPlay() {
+        if (!threadExitFlag) {
+            return false;
+        }
+        awaitPlayThread();
+        if (playState != PlayState.MPS_PREPARE) {
+            Log.w(TAG, "play fail, because the player is not prepared");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 等待已被stop的播放线程退出，避免新旧线程同时操作AudioTrack
+     */
+    private void awaitPlayThread() {
+        PlayAudioThread thread = playAudioThread;
+        if (thread == null || thread == Thread.currentThread() || !threadExitFlag) {
+            return;
+        }
+        try {
+            thread.join(PLAY_THREAD_JOIN_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            Log.w(TAG, "PlayAudioThread not exit in " + PLAY_THREAD_JOIN_MS + "ms");
+        } else {
+            playAudioThread = null;
+        }
+    }
+
+    private final Object queueLock = new Object();
+
+    private DataWrap[] queue = newQueue(8);
+
+    private int queueHead;     // 最旧一帧的位置
+
+    private int queueCount;
+
+    /**
+     * 设置播放跟不上时write()的处理策略，参看OverflowPolicy
+     */
+    public void setOverflowPolicy(int policy) {
+        overflowPolicy = policy;
+    }
+
+    /**
+     * 设置最多缓存多少次write的数据，默认8
+     */
+    public void setQueueCapacity(int capacity) {
+        synchronized (queueLock) {
+            for (DataWrap dataWrap : queue) {
+                dataWrap.recycle();
+            }
+            queue = newQueue(Math.max(2, capacity));
+            queueHead = 0;
+            queueCount = 0;
+        }
+    }
+
+    /**
+     * 设置回声消除的远端参考，实际写入AudioTrack的数据会同时记录到reference，只支持16bit PCM；传入null取消
+     */
+    public void setEchoReference(EchoReference reference) {
+        echoReference = reference;
+    }
+
+    public int getSampleRate() {
+        AudioParam param = audioParam;
+        return param == null ? 0 : param.rate;
+    }
+
+    /**
+     * 播放头位置（帧，从play()开始计数），是混音器取走的位置，不含输出延迟；未在播放时返回-1
+     */
+    public long getPlaybackHeadPosition() {
+        AudioTrack track = audioTrack;
+        if (track == null || playState != PlayState.MPS_PLAYING) {
+            return -1;
+        }
+        try {
+            return track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        } catch (IllegalStateException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 播放帧位置与其实际输出时刻的对应（AudioTrack.getTimestamp，API 19），开始播放后的一段时间内取不到
+     *
+     * @return 未在播放、API 19以下或暂时取不到时返回false
+     */
+    public boolean getTimestamp(AudioTimestamp timestamp) {
+        AudioTrack track = audioTrack;
+        if (track == null || playState != PlayState.MPS_PLAYING || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return false;
+        }
+        try {
+            return track.getTimestamp(timestamp);
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+
+    public long getDroppedFrames() {
+        synchronized (queueLock) {
+            return droppedFrames;
+        }
+    }
+
+    public long getCompressedFrames() {
+        synchronized (queueLock) {
+            return compressedFrames;
+        }
+    }
 
     public void write(byte[] data, int size) {
-        if (!threadExitFlag) {
-            try {
-                //wait 100 ms  for the newest element.
-                queue.offer(new DataWrap(data, size), 100, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException ignored) {
+        offer(data, size);
+    }
+
+    /**
+     * 写入一帧待播放的数据，不会阻塞调用线程，数据被拷贝，调用方可以立即复用data
+     *
+     * @return 数据是否被接受；播放未开始或按策略丢弃了本帧时返回false
+     */
+    public boolean offer(byte[] data, int size) {
+        if (threadExitFlag) {
+            return false;
+        }
+        PcmConverter converter = this.converter;
+        if (converter != null) {
+            int outSize = converter.getOutputSize(size);
+            if (convertBuffer == null || convertBuffer.length < outSize) {
+                convertBuffer = new byte[outSize];
+            }
+            size = converter.convert(data, size, convertBuffer);
+            data = convertBuffer;
+        }
+
+        synchronized (queueLock) {
+            DataWrap[] queue = this.queue;
+            int policy = overflowPolicy;
+            if (queueCount == queue.length) {
+                if (policy == OverflowPolicy.DROP_NEWEST) {
+                    droppedFrames++;
+                    return false;
+                }
+                //丢掉最旧的一帧，腾出位置
+                queueHead = (queueHead + 1) % queue.length;
+                queueCount--;
+                droppedFrames++;
+            }
+
+            DataWrap dataWrap = queue[(queueHead + queueCount) % queue.length];
+            if (policy == OverflowPolicy.TIME_COMPRESS && queueCount >= queue.length / 2
+                && audioParam != null && audioParam.sampleBit == AudioFormat.ENCODING_PCM_16BIT) {
+                //积压超过一半，缩短本帧时长让播放追上来
+                dataWrap.size = compress(data, size, dataWrap.ensureCapacity(size));
+                compressedFrames++;
+            } else {
+                System.arraycopy(data, 0, dataWrap.ensureCapacity(size), 0, size);
+                dataWrap.size = size;
+            }
+            if (LatencyTracer.isEnabled()) {
+                //写入线程上正在追踪的帧随数据进入队列
+                dataWrap.trace.copyFrom(LatencyTracer.current());
+                dataWrap.trace.mark(LatencyTracer.POINT_QUEUED);
+            }
+            queueCount++;
+            queueLock.notify();
+        }
+        return true;
+    }
+
+    /**
+     * 取出最旧的一帧：与spare交换缓冲区，不拷贝数据
+     *
+     * @return 等待超时返回null
+     */
+    private DataWrap take(DataWrap spare, long timeoutMs) throws InterruptedException {
+        synchronized (queueLock) {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (queueCount == 0) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0 || threadExitFlag) {
+                    return null;
+                }
+                queueLock.wait(wait);
+            }
+            DataWrap head = queue[queueHead];
+            byte[] data = head.data;
+            head.data = spare.data;
+            spare.data = data;
+            spare.size = head.size;
+            LatencyTracer.Trace trace = head.trace;
+            head.trace = spare.trace;
+            spare.trace = trace;
+            queueHead = (queueHead + 1) % queue.length;
+            queueCount--;
+            return spare;
+        }
+    }
+
+    /**
+     * 清空队列并把缓冲还给PcmBufferPool，下次写入时重新取
+     */
+    private void clearQueue() {
+        synchronized (queueLock) {
+            for (DataWrap dataWrap : queue) {
+                dataWrap.recycle();
             }
+            queueHead = 0;
+            queueCount = 0;
+            queueLock.notifyAll();
         }
     }
 
+    /**
+     * 去掉中间1/4的帧，拼接处做短交叉淡化，不改变音调（16bit交错PCM）
+     *
+     * @return 压缩后的字节数
+     */
+    private int compress(byte[] src, int size, byte[] dst) {
+        int bytesPerFrame = audioParam.getBytesPerFrame();
+        int channels = bytesPerFrame / 2;
+        int frames = size / bytesPerFrame;
+        int removed = frames / 4;
+        int fade = Math.min(64, (frames - removed) / 2);
+        if (removed == 0 || fade == 0) {
+            System.arraycopy(src, 0, dst, 0, size);
+            return size;
+        }
+        int keepHead = (frames - removed - fade) / 2;
+        System.arraycopy(src, 0, dst, 0, keepHead * bytesPerFrame);
+        for (int i = 0; i < fade; i++) {
+            for (int ch = 0; ch < channels; ch++) {
+                int a = ((keepHead + i) * channels + ch) * 2;
+                int b = ((keepHead + removed + i) * channels + ch) * 2;
+                int va = (short) ((src[a + 1] << 8) | (src[a] & 0xff));
+                int vb = (short) ((src[b + 1] << 8) | (src[b] & 0xff));
+                int v = (va * (fade - i) + vb * i) / fade;
+                dst[a] = (byte) v;
+                dst[a + 1] = (byte) (v >> 8);
+            }
+        }
+        int tail = (keepHead + removed + fade) * bytesPerFrame;
+        System.arraycopy(src, tail, dst, (keepHead + fade) * bytesPerFrame, frames * bytesPerFrame - tail);
+        return (frames - removed) * bytesPerFrame;
+    }
+
+    private static DataWrap[] newQueue(int capacity) {
+        DataWrap[] queue = new DataWrap[capacity];
+        for (int i = 0; i < capacity; i++) {
+            queue[i] = new DataWrap();
+        }
+        return queue;
+    }
+
     public void stop() {
         threadExitFlag = true;
+        clearQueue();
     }
 
     public boolean isPlaying() {
         return playState == PlayState.MPS_PLAYING;
     }
 
-    private synchronized void setPlayState(int state) {
+    //不加锁：prepare/play持有锁等待播放线程退出时，播放线程仍需要更新状态
+    private void setPlayState(int state) {
         this.playState = state;
     }
 
@@ -159,14 +445,28 @@ public class AudioPlayer {
 
                 setPlayState(PlayState.MPS_PLAYING);
 
+                DataWrap spare = new DataWrap();
                 while (true) {
                     if (threadExitFlag) {
                         break;
                     }
                     try {
-                        DataWrap dataWrap = queue.poll(300, TimeUnit.MILLISECONDS);
+                        DataWrap dataWrap = take(spare, 300);
                         if (dataWrap != null) {
-                            audioTrack.write(dataWrap.data, 0, dataWrap.size);
+                            boolean tracing = LatencyTracer.isEnabled();
+                            if (tracing) {
+                                dataWrap.trace.mark(LatencyTracer.POINT_DEQUEUED);
+                            }
+                            int written = audioTrack.write(dataWrap.data, 0, dataWrap.size);
+                            EchoReference reference = echoReference;
+                            if (reference != null && written > 0 && audioParam.sampleBit == AudioFormat.ENCODING_PCM_16BIT) {
+                                reference.write(dataWrap.data, written,
+                                    audioParam.channel == AudioFormat.CHANNEL_OUT_STEREO ? 2 : 1, System.nanoTime());
+                            }
+                            if (tracing) {
+                                dataWrap.trace.mark(LatencyTracer.POINT_WRITTEN);
+                                LatencyTracer.finish(dataWrap.trace);
+                            }
                         } else {
                             break;
                         }
@@ -174,6 +474,7 @@ public class AudioPlayer {
                         e.printStackTrace();
                     }
                 }
+                spare.recycle();
 
             } else {
                 DataInputStream dis = null;
@@ -188,7 +489,7 @@ public class AudioPlayer {
                     .getMinBufferSize(AudioCapture.AUDIO_SAMPLE_RATE_44_1, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
                 //创建AudioTrack对象   依次传入 :流类型、采样率（与采集的要一致）、音频通道（采集是IN 播放时OUT）、量化位数、最小缓冲区、模式
 
-                byte[] data = new byte[bufferSizeInBytes];
+                byte[] data = PcmBufferPool.acquire(bufferSizeInBytes);
 
                 audioTrack.play();
 
@@ -201,7 +502,7 @@ public class AudioPlayer {
 
                     int i = 0;
                     try {
-                        while (dis.available() > 0 && i < data.length) {
+                        while (dis.available() > 0 && i < bufferSizeInBytes) {
                             data[i] = dis.readByte();//录音时write Byte 那么读取时就该为readByte要相互对应
                             i++;
                         }
@@ -209,13 +510,14 @@ public class AudioPlayer {
                         e.printStackTrace();
                         break;
                     }
-                    audioTrack.write(data, 0, data.length);
+                    audioTrack.write(data, 0, bufferSizeInBytes);
 
                     if (i != bufferSizeInBytes) //表示读取完了
                     {
                         break;
                     }
                 }
+                PcmBufferPool.release(data);
             }
 
             audioTrack.stop();//停止播放
@@ -225,19 +527,35 @@ public class AudioPlayer {
                 playCallback.onPlayComplete();
             }
             threadExitFlag = true;
+            clearQueue();
+            PcmBufferPool.trimThreadCache();
             Log.i(TAG, "PlayAudioThread complete...");
         }
     }
 
     private static final class DataWrap {
 
-        DataWrap(byte[] data, int size) {
-            this.data = data;
-            this.size = size;
-        }
+        private static final byte[] EMPTY = new byte[0];
 
-        private byte[] data;
+        private byte[] data = EMPTY;
         private int size;
+        private LatencyTracer.Trace trace = new LatencyTracer.Trace();
+
+        byte[] ensureCapacity(int size) {
+            if (data.length < size) {
+                PcmBufferPool.release(data);
+                data = PcmBufferPool.acquire(size);
+            }
+            return data;
+        }
+
+        void recycle() {
+            if (data != EMPTY) {
+                PcmBufferPool.release(data);
+                data = EMPTY;
+            }
+            size = 0;
+        }
     }
 
     public static final class AudioParam {
@@ -254,6 +572,22 @@ public class AudioPlayer {
         int channel;          // 声道
 
         int sampleBit;          // 采样精度
+
+        /**
+         * 每帧字节数（声道数 * 每个采样的字节数）
+         */
+        int getBytesPerFrame() {
+            int channelCount = channel == AudioFormat.CHANNEL_OUT_STEREO ? 2 : 1;
+            int bytesPerSample;
+            if (sampleBit == AudioFormat.ENCODING_PCM_8BIT) {
+                bytesPerSample = 1;
+            } else if (sampleBit == AudioFormat.ENCODING_PCM_FLOAT) {
+                bytesPerSample = 4;
+            } else {
+                bytesPerSample = 2;
+            }
+            return channelCount * bytesPerSample;
+        }
     }
 
 
@@ -268,6 +602,18 @@ public class AudioPlayer {
         int MPS_PAUSE = 3;        // 暂停
     }
 
+    /**
+     * 播放跟不上write速度（缓存队列满）时的处理策略
+     */
+    public interface OverflowPolicy {
+
+        int DROP_OLDEST = 0;      // 丢弃最旧的一帧，保持低延迟
+
+        int DROP_NEWEST = 1;      // 丢弃新写入的一帧
+
+        int TIME_COMPRESS = 2;    // 积压过半时缩短新帧时长，队列满时丢弃最旧的一帧
+    }
+
     public interface IPlayCallback {
 
         void onPlayComplete();
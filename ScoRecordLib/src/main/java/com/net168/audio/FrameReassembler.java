@@ -0,0 +1,130 @@
+package com.net168.audio;
+
+import android.media.AudioFormat;
+import java.util.Arrays;
+
+/**
+ * 把AudioRecord长短不一的读取结果重新切成固定长度的帧，供Opus/AMR/G.729编码和VAD使用
+ * <p>
+ * 回调数据中完整的帧直接以(data, offset)切片回调，不拷贝；只有跨两次读取的帧才拷入内部的一帧缓冲，
+ * 每个采样最多拷贝一次。剩余不足一帧的数据留到下一次读取拼接，采集结束时补静音凑满一帧回调。
+ *
+ *
+ * sample:
+ mReassembler = new FrameReassembler(mAudioCapture.getPcmFormat(), AudioCapture.AUDIO_SAMPLE_RATE_16, 20,
+ new FrameReassembler.FrameCallback() {
+     public void onFrame(byte[] data, int offset, int size) {
+         mEncoder.encode(data, offset, size);
+     }
+ });
+ mAudioCapture.setAudioCaptureCallback(mReassembler);
+ */
+public class FrameReassembler implements AudioCapture.AudioCaptureStopCallback {
+
+    private final int mFrameBytes;
+    private final byte mSilence;
+    private final FrameCallback mCallback;
+
+    private final byte[] mCarry;   //跨读取拼接的一帧
+    private int mCarrySize;
+
+    private boolean mPadOnFlush = true;
+
+    /**
+     * @param format 采集数据格式
+     * @param sampleRate 采样频率
+     * @param frameMs 帧时长，如10/20/30ms
+     */
+    public FrameReassembler(PcmConverter.Format format, int sampleRate, int frameMs, FrameCallback callback) {
+        this(sampleRate * frameMs / 1000 * format.getBytesPerFrame(),
+            format.getEncoding() == AudioFormat.ENCODING_PCM_8BIT ? (byte) 0x80 : 0, callback);
+    }
+
+    /**
+     * @param frameBytes 每帧字节数，需为采样帧大小的整数倍
+     */
+    public FrameReassembler(int frameBytes, FrameCallback callback) {
+        this(frameBytes, (byte) 0, callback);
+    }
+
+    private FrameReassembler(int frameBytes, byte silence, FrameCallback callback) {
+        if (frameBytes <= 0) {
+            throw new IllegalArgumentException("frameBytes must be > 0: " + frameBytes);
+        }
+        mFrameBytes = frameBytes;
+        mSilence = silence;
+        mCallback = callback;
+        mCarry = new byte[frameBytes];
+    }
+
+    public int getFrameBytes() {
+        return mFrameBytes;
+    }
+
+    /**
+     * flush时不足一帧的数据是否补静音回调，默认true；为false时直接丢弃
+     */
+    public void setPadOnFlush(boolean padOnFlush) {
+        mPadOnFlush = padOnFlush;
+    }
+
+    @Override
+    public void onPCMDataAvailable(byte[] data, int size) {
+        int offset = 0;
+        if (mCarrySize > 0) {
+            int n = Math.min(mFrameBytes - mCarrySize, size);
+            System.arraycopy(data, 0, mCarry, mCarrySize, n);
+            mCarrySize += n;
+            offset = n;
+            if (mCarrySize < mFrameBytes) {
+                return;
+            }
+            mCarrySize = 0;
+            mCallback.onFrame(mCarry, 0, mFrameBytes);
+        }
+        while (size - offset >= mFrameBytes) {
+            mCallback.onFrame(data, offset, mFrameBytes);
+            offset += mFrameBytes;
+        }
+        if (offset < size) {
+            mCarrySize = size - offset;
+            System.arraycopy(data, offset, mCarry, 0, mCarrySize);
+        }
+    }
+
+    @Override
+    public void onCaptureStopped() {
+        flush();
+    }
+
+    /**
+     * 输出剩余不足一帧的数据，需与onPCMDataAvailable在同一线程调用
+     */
+    public void flush() {
+        if (mCarrySize == 0) {
+            return;
+        }
+        if (mPadOnFlush) {
+            Arrays.fill(mCarry, mCarrySize, mFrameBytes, mSilence);
+            mCarrySize = 0;
+            mCallback.onFrame(mCarry, 0, mFrameBytes);
+        } else {
+            mCarrySize = 0;
+        }
+    }
+
+    /**
+     * 丢弃剩余数据
+     */
+    public void reset() {
+        mCarrySize = 0;
+    }
+
+    public interface FrameCallback {
+
+        /**
+         * 一个完整的帧，data在回调返回后会被复用
+         */
+        void onFrame(byte[] data, int offset, int size);
+    }
+}
@@ -0,0 +1,302 @@
+package com.net168.audio;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioRecord;
+import android.media.AudioTrack;
+import android.media.MediaRecorder.AudioSource;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+import com.net168.audio.dsp.DspChain;
+import com.net168.audio.dsp.EchoReference;
+import java.util.Arrays;
+
+/**
+ * 全双工回环（边录边播），同一个线程里完成 读取 ---> 处理 ---> 播放
+ * <p>
+ * 与AudioCapture + AudioPlayer两个线程加队列交接相比，少一次线程调度和一层缓冲，延迟最低，适合耳机监听。
+ * 启动时先往AudioTrack写入primeFrames帧静音作为缓冲垫；检测到欠载后补写静音，重新建立缓冲垫。
+ *
+ *
+ * sample:
+ mEngine = new FullDuplexEngine(AudioCapture.AUDIO_SAMPLE_RATE_16, 1);
+ mEngine.setDspChain(chain);
+ mEngine.start();
+
+ mEngine.stop();
+ */
+public class FullDuplexEngine {
+
+    private static final String TAG = FullDuplexEngine.class.getSimpleName();
+
+    private final int mSampleRate;
+    private final int mChannelCount;
+
+    private int mFrameMs = 10;
+    private int mPrimeFrames = 2;
+
+    private volatile DspChain mDspChain;
+    private volatile EchoReference mEchoReference;
+
+    private AudioRecord mAudioRecord;
+    private AudioTrack mAudioTrack;
+    private int mFrameBytes;
+    private byte[] mFrame;
+    private byte[] mSilence;
+
+    private volatile boolean mRunning;
+    private Thread mLoopThread;
+
+    private volatile long mFrames;
+    private volatile long mUnderruns;
+    private volatile long mWrittenFrames;   // 写入AudioTrack的帧数（含静音）
+
+    /**
+     * @param sampleRate 采样频率
+     * @param channelCount 1 或 2，16bit采样
+     */
+    public FullDuplexEngine(int sampleRate, int channelCount) {
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+    }
+
+    /**
+     * 每次读写的时长，默认10ms，需在start之前设置
+     */
+    public void setFrameMs(int frameMs) {
+        mFrameMs = Math.max(1, frameMs);
+    }
+
+    /**
+     * 启动和欠载恢复时预先写入的静音帧数，默认2，需在start之前设置
+     */
+    public void setPrimeFrames(int primeFrames) {
+        mPrimeFrames = Math.max(1, primeFrames);
+    }
+
+    public void setDspChain(DspChain dspChain) {
+        mDspChain = dspChain;
+    }
+
+    /**
+     * 设置回声消除的远端参考，写入AudioTrack的数据（含静音）同时记录到reference；传入null取消
+     */
+    public void setEchoReference(EchoReference reference) {
+        mEchoReference = reference;
+    }
+
+    public synchronized boolean start() {
+        if (mRunning) {
+            return true;
+        }
+        //上一次因读写出错自行退出，先回收
+        stop();
+        int channelIn = mChannelCount == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+        int channelOut = mChannelCount == 2 ? AudioFormat.CHANNEL_OUT_STEREO : AudioFormat.CHANNEL_OUT_MONO;
+        mFrameBytes = mSampleRate * mFrameMs / 1000 * mChannelCount * 2;
+
+        int minRecordSize = AudioRecord.getMinBufferSize(mSampleRate, channelIn, AudioFormat.ENCODING_PCM_16BIT);
+        int minTrackSize = AudioTrack.getMinBufferSize(mSampleRate, channelOut, AudioFormat.ENCODING_PCM_16BIT);
+        if (minRecordSize <= 0 || minTrackSize <= 0) {
+            Log.e(TAG, "start fail, invalid param, record = " + minRecordSize + ", track = " + minTrackSize);
+            return false;
+        }
+
+        mAudioRecord = new AudioRecord(AudioSource.MIC, mSampleRate, channelIn, AudioFormat.ENCODING_PCM_16BIT,
+            Math.max(minRecordSize, mFrameBytes * 2));
+        if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            Log.e(TAG, "init AudioRecord fail，err code：" + mAudioRecord.getState());
+            releaseDevices();
+            return false;
+        }
+        mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, mSampleRate, channelOut, AudioFormat.ENCODING_PCM_16BIT,
+            Math.max(minTrackSize, mFrameBytes * (mPrimeFrames + 1)), AudioTrack.MODE_STREAM);
+        if (mAudioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+            Log.e(TAG, "init AudioTrack fail，err code：" + mAudioTrack.getState());
+            releaseDevices();
+            return false;
+        }
+
+        mFrame = PcmBufferPool.acquire(mFrameBytes);
+        mSilence = PcmBufferPool.acquire(mFrameBytes);
+        Arrays.fill(mSilence, 0, mFrameBytes, (byte) 0);
+        mFrames = 0;
+        mUnderruns = 0;
+        mWrittenFrames = 0;
+        mRunning = true;
+        mLoopThread = new LoopThread();
+        mLoopThread.start();
+        return true;
+    }
+
+    public synchronized void stop() {
+        if (mLoopThread == null) {
+            return;
+        }
+        mRunning = false;
+        try {
+            mLoopThread.join();
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+        mLoopThread = null;
+        releaseDevices();
+        PcmBufferPool.release(mFrame);
+        PcmBufferPool.release(mSilence);
+        mFrame = null;
+        mSilence = null;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * 已回环的帧数
+     */
+    public long getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * 检测到的播放欠载次数
+     */
+    public long getUnderruns() {
+        return mUnderruns;
+    }
+
+    /**
+     * 当前AudioTrack中尚未播放的数据时长（毫秒），即输出侧的缓冲延迟
+     */
+    public int getOutputQueueMs() {
+        AudioTrack track = mAudioTrack;
+        if (track == null) {
+            return 0;
+        }
+        long frames = mWrittenFrames - (track.getPlaybackHeadPosition() & 0xFFFFFFFFL);
+        return (int) Math.max(0, frames * 1000 / mSampleRate);
+    }
+
+    private void releaseDevices() {
+        if (mAudioRecord != null) {
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+        if (mAudioTrack != null) {
+            mAudioTrack.release();
+            mAudioTrack = null;
+        }
+    }
+
+    class LoopThread extends Thread {
+
+        private final int bytesPerFrame = mChannelCount * 2;
+
+        private int lastUnderrunCount;
+
+        LoopThread() {
+            super("FullDuplexEngine");
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            prime();
+            mAudioTrack.play();
+            mAudioRecord.startRecording();
+            Log.i(TAG, "start duplex looper.");
+
+            while (mRunning) {
+                if (!readFrame()) {
+                    break;
+                }
+                boolean tracing = LatencyTracer.isEnabled();
+                if (tracing) {
+                    LatencyTracer.begin();
+                }
+                DspChain dspChain = mDspChain;
+                if (dspChain != null) {
+                    dspChain.process(mFrame, mFrameBytes);
+                }
+                if (tracing) {
+                    LatencyTracer.mark(LatencyTracer.POINT_PROCESSED);
+                }
+                if (checkUnderrun()) {
+                    mUnderruns++;
+                    prime();
+                }
+                if (!writeFully(mFrame)) {
+                    break;
+                }
+                if (tracing) {
+                    LatencyTracer.mark(LatencyTracer.POINT_WRITTEN);
+                    LatencyTracer.finish(LatencyTracer.current());
+                }
+                mFrames++;
+            }
+
+            mAudioRecord.stop();
+            mAudioTrack.pause();
+            mAudioTrack.flush();
+            mAudioTrack.stop();
+            mRunning = false;
+            PcmBufferPool.trimThreadCache();
+            Log.i(TAG, "LoopThread complete...");
+        }
+
+        /**
+         * 读满一帧
+         */
+        private boolean readFrame() {
+            int offset = 0;
+            while (offset < mFrameBytes && mRunning) {
+                int read = mAudioRecord.read(mFrame, offset, mFrameBytes - offset);
+                if (read < 0) {
+                    Log.w(TAG, "read data with err code = " + read);
+                    return false;
+                }
+                offset += read;
+            }
+            return offset == mFrameBytes;
+        }
+
+        private boolean writeFully(byte[] data) {
+            int offset = 0;
+            while (offset < mFrameBytes) {
+                int written = mAudioTrack.write(data, offset, mFrameBytes - offset);
+                if (written < 0) {
+                    Log.w(TAG, "write data with err code = " + written);
+                    return false;
+                }
+                offset += written;
+            }
+            EchoReference reference = mEchoReference;
+            if (reference != null) {
+                reference.write(data, mFrameBytes, mChannelCount, System.nanoTime());
+            }
+            mWrittenFrames += mFrameBytes / bytesPerFrame;
+            return true;
+        }
+
+        private void prime() {
+            for (int i = 0; i < mPrimeFrames; i++) {
+                writeFully(mSilence);
+            }
+        }
+
+        /**
+         * API 24以上使用系统的欠载计数；之前的版本检查播放头是否已追上写入位置
+         */
+        private boolean checkUnderrun() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                int count = mAudioTrack.getUnderrunCount();
+                boolean underrun = count > lastUnderrunCount;
+                lastUnderrunCount = count;
+                return underrun;
+            }
+            long head = mAudioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+            return head >= mWrittenFrames;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package com.net168.audio;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 逐帧延迟追踪：一帧PCM从AudioRecord.read返回到AudioTrack.write完成，在每个交接点打时间戳
+ * <p>
+ * 采集线程在读到一帧时开始一条Trace（线程内复用），经过处理链、写入AudioPlayer队列时随帧拷贝到队列槽，
+ * 播放线程取出和写入AudioTrack时继续打点。每到达一个点，就把与上一个点的间隔计入该点的直方图
+ * （按微秒log2分桶，AtomicLongArray无锁累加）。
+ * 每sampleInterval条Trace保留一条原始记录，端到端超过spikeThreshold的Trace总是保留，用于定位偶发的长延迟。
+ * <p>
+ * 关闭时（默认）各打点处只有一次volatile读。
+ *
+ *
+ * sample:
+ LatencyTracer.setEnabled(true);
+ LatencyTracer.setSpikeThresholdMs(100);
+
+ LatencyTracer.dump();
+ */
+public final class LatencyTracer {
+
+    private static final String TAG = LatencyTracer.class.getSimpleName();
+
+    /**
+     * 打点位置
+     */
+    public static final int POINT_READ = 0;        // AudioRecord.read返回
+    public static final int POINT_PROCESSED = 1;   // 处理链完成
+    public static final int POINT_QUEUED = 2;      // 进入AudioPlayer队列
+    public static final int POINT_DEQUEUED = 3;    // 播放线程取出
+    public static final int POINT_WRITTEN = 4;     // AudioTrack.write返回
+    public static final int POINT_COUNT = 5;
+
+    private static final String[] POINT_NAMES = {"read", "processed", "queued", "dequeued", "written"};
+
+    private static final int BUCKETS = 32;
+    private static final int SAMPLE_CAPACITY = 64;
+
+    private static volatile boolean sEnabled;
+    private static volatile int sSampleInterval = 100;
+    private static volatile long sSpikeThresholdNanos = 200 * 1000000L;
+
+    private static final Histogram[] sHistograms = new Histogram[POINT_COUNT];
+    private static final Histogram sTotal = new Histogram();
+
+    static {
+        for (int i = 0; i < POINT_COUNT; i++) {
+            sHistograms[i] = new Histogram();
+        }
+    }
+
+    private static final AtomicLong sTraceId = new AtomicLong();
+
+    private static final Trace[] sSamples = new Trace[SAMPLE_CAPACITY];
+    private static int sSampleCount;
+    private static int sSampleHead;
+
+    private static final ThreadLocal<Trace> sCurrent = new ThreadLocal<Trace>() {
+        @Override
+        protected Trace initialValue() {
+            return new Trace();
+        }
+    };
+
+    private LatencyTracer() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * 每多少条Trace保留一条原始记录，默认100
+     */
+    public static void setSampleInterval(int interval) {
+        sSampleInterval = Math.max(1, interval);
+    }
+
+    /**
+     * 端到端延迟超过该值的Trace总是保留原始记录，默认200ms
+     */
+    public static void setSpikeThresholdMs(int thresholdMs) {
+        sSpikeThresholdNanos = thresholdMs * 1000000L;
+    }
+
+    /**
+     * 在当前线程开始一帧的追踪，并打POINT_READ
+     */
+    public static void begin() {
+        Trace trace = sCurrent.get();
+        trace.reset(sTraceId.incrementAndGet());
+        trace.mark(POINT_READ);
+    }
+
+    /**
+     * 当前线程正在追踪的帧打点
+     */
+    public static void mark(int point) {
+        sCurrent.get().mark(point);
+    }
+
+    /**
+     * 当前线程正在追踪的帧，用于跨线程交接时拷贝
+     */
+    public static Trace current() {
+        return sCurrent.get();
+    }
+
+    /**
+     * 一帧到达终点，计入端到端统计，按需保留原始记录
+     */
+    public static void finish(Trace trace) {
+        long start = trace.stamps[POINT_READ];
+        if (trace.id == 0 || start == 0) {
+            return;
+        }
+        long total = trace.stamps[trace.lastPoint] - start;
+        sTotal.record(total);
+        if (total >= sSpikeThresholdNanos || trace.id % sSampleInterval == 0) {
+            synchronized (sSamples) {
+                int index = (sSampleHead + sSampleCount) % SAMPLE_CAPACITY;
+                if (sSampleCount == SAMPLE_CAPACITY) {
+                    sSampleHead = (sSampleHead + 1) % SAMPLE_CAPACITY;
+                } else {
+                    sSampleCount++;
+                }
+                if (sSamples[index] == null) {
+                    sSamples[index] = new Trace();
+                }
+                sSamples[index].copyFrom(trace);
+            }
+        }
+        trace.id = 0;
+    }
+
+    /**
+     * 到达point的耗时统计（与上一个打点的间隔）
+     */
+    public static HopStats getHopStats(int point) {
+        return sHistograms[point].snapshot(POINT_NAMES[point]);
+    }
+
+    /**
+     * 端到端耗时统计
+     */
+    public static HopStats getTotalStats() {
+        return sTotal.snapshot("total");
+    }
+
+    /**
+     * 保留的原始记录拷贝，按时间先后
+     */
+    public static List<Trace> getSampledTraces() {
+        synchronized (sSamples) {
+            List<Trace> traces = new ArrayList<>(sSampleCount);
+            for (int i = 0; i < sSampleCount; i++) {
+                Trace copy = new Trace();
+                copy.copyFrom(sSamples[(sSampleHead + i) % SAMPLE_CAPACITY]);
+                traces.add(copy);
+            }
+            return traces;
+        }
+    }
+
+    public static void reset() {
+        for (Histogram histogram : sHistograms) {
+            histogram.clear();
+        }
+        sTotal.clear();
+        synchronized (sSamples) {
+            sSampleHead = 0;
+            sSampleCount = 0;
+        }
+    }
+
+    /**
+     * 输出统计和原始记录到日志
+     */
+    public static void dump() {
+        for (int i = POINT_PROCESSED; i < POINT_COUNT; i++) {
+            Log.i(TAG, getHopStats(i).toString());
+        }
+        Log.i(TAG, getTotalStats().toString());
+        for (Trace trace : getSampledTraces()) {
+            Log.i(TAG, trace.toString());
+        }
+    }
+
+    /**
+     * 一帧的各点时间戳（System.nanoTime），0表示未经过该点
+     */
+    public static final class Trace {
+
+        private long id;
+        private final long[] stamps = new long[POINT_COUNT];
+        private int lastPoint;
+
+        Trace() {
+        }
+
+        void reset(long id) {
+            this.id = id;
+            for (int i = 0; i < POINT_COUNT; i++) {
+                stamps[i] = 0;
+            }
+            lastPoint = POINT_READ;
+        }
+
+        void mark(int point) {
+            if (id == 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            stamps[point] = now;
+            if (point != POINT_READ) {
+                sHistograms[point].record(now - stamps[lastPoint]);
+            }
+            lastPoint = point;
+        }
+
+        void copyFrom(Trace other) {
+            id = other.id;
+            System.arraycopy(other.stamps, 0, stamps, 0, POINT_COUNT);
+            lastPoint = other.lastPoint;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getStamp(int point) {
+            return stamps[point];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("trace#").append(id);
+            long start = stamps[POINT_READ];
+            for (int i = POINT_PROCESSED; i < POINT_COUNT; i++) {
+                if (stamps[i] != 0) {
+                    sb.append(' ').append(POINT_NAMES[i]).append("=+").append((stamps[i] - start) / 1000).append("us");
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    private static final class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                return;
+            }
+            long micros = nanos / 1000;
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            sumNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        void clear() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sumNanos.set(0);
+            maxNanos.set(0);
+        }
+
+        HopStats snapshot(String name) {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = buckets.get(i);
+            }
+            return new HopStats(name, copy, count.get(), sumNanos.get(), maxNanos.get());
+        }
+    }
+
+    public static final class HopStats {
+
+        HopStats(String name, long[] buckets, long count, long sumNanos, long maxNanos) {
+            this.name = name;
+            this.buckets = buckets;
+            this.count = count;
+            this.sumNanos = sumNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public final String name;
+        /**
+         * 第i个桶统计 [2^(i-1), 2^i) 微秒，第0个桶为不足1微秒
+         */
+        public final long[] buckets;
+        public final long count;
+        public final long sumNanos;
+        public final long maxNanos;
+
+        public long getAverageMicros() {
+            return count == 0 ? 0 : sumNanos / count / 1000;
+        }
+
+        /**
+         * 百分位的上界（微秒），如getPercentileMicros(0.99)
+         */
+        public long getPercentileMicros(double percentile) {
+            long total = 0;
+            for (long bucket : buckets) {
+                total += bucket;
+            }
+            long target = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= target && seen > 0) {
+                    return 1L << i;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return name + "{count=" + count + ", avg=" + getAverageMicros() + "us, p99<" + getPercentileMicros(0.99)
+                + "us, max=" + maxNanos / 1000 + "us}";
+        }
+    }
+}
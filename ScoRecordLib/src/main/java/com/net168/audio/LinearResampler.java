@@ -0,0 +1,85 @@
+package com.net168.audio;
+
+/**
+ * 16bit小端交错PCM的流式线性插值重采样
+ * <p>
+ * 保存上一段的最后一帧和小数读位置，分段输入与一次性输入的结果相同。适合语音，不做抗混叠滤波。
+ */
+public class LinearResampler {
+
+    private final int inRate;
+    private final int outRate;
+    private final int channels;
+
+    private final int[] lastFrame;
+    private long position;    //下一个输出对应的输入位置，单位为1/outRate帧，-outRate表示上一段的最后一帧
+
+    public LinearResampler(int inRate, int outRate, int channels) {
+        this.inRate = inRate;
+        this.outRate = outRate;
+        this.channels = channels;
+        this.lastFrame = new int[channels];
+    }
+
+    public int getInputRate() {
+        return inRate;
+    }
+
+    public int getOutputRate() {
+        return outRate;
+    }
+
+    /**
+     * 输入srcSize字节，最多输出的字节数
+     */
+    public int getMaxOutputSize(int srcSize) {
+        long frames = srcSize / (2 * channels);
+        return (int) ((frames * outRate / inRate + 2) * 2 * channels);
+    }
+
+    /**
+     * @param dst 长度不小于getMaxOutputSize(srcSize)
+     * @return 写入dst的字节数
+     */
+    public int process(byte[] src, int srcSize, byte[] dst) {
+        final int frameBytes = 2 * channels;
+        final int frames = srcSize / frameBytes;
+        if (frames == 0) {
+            return 0;
+        }
+        int out = 0;
+        long pos = position;
+        while (true) {
+            //pos >= -outRate，加outRate后再除保证向下取整
+            int i = (int) ((pos + outRate) / outRate) - 1;
+            if (i + 1 >= frames) {
+                break;
+            }
+            long frac = pos - (long) i * outRate;
+            for (int ch = 0; ch < channels; ch++) {
+                int a = i < 0 ? lastFrame[ch] : sample(src, i * frameBytes + ch * 2);
+                int b = sample(src, (i + 1) * frameBytes + ch * 2);
+                int v = (int) (a + (b - a) * frac / outRate);
+                dst[out++] = (byte) v;
+                dst[out++] = (byte) (v >> 8);
+            }
+            pos += inRate;
+        }
+        position = pos - (long) frames * outRate;
+        for (int ch = 0; ch < channels; ch++) {
+            lastFrame[ch] = sample(src, (frames - 1) * frameBytes + ch * 2);
+        }
+        return out;
+    }
+
+    public void reset() {
+        position = 0;
+        for (int ch = 0; ch < channels; ch++) {
+            lastFrame[ch] = 0;
+        }
+    }
+
+    private static int sample(byte[] data, int index) {
+        return (short) ((data[index + 1] << 8) | (data[index] & 0xff));
+    }
+}
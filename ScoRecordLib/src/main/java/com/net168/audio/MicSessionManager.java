@@ -0,0 +1,302 @@
+package com.net168.audio;
+
+import android.media.AudioFormat;
+import android.util.Log;
+
+/**
+ * 共享麦克风会话：整个进程只打开一个AudioRecord，按引用计数分发给多个客户端
+ * <p>
+ * 第一个客户端acquire时打开设备开始采集，最后一个客户端release时关闭设备。
+ * 每个客户端可以要求自己的采样频率和格式；要求相同的客户端共用一条转换路线，每帧只转换一次。
+ * 设备固定为16bit采样，采样频率和声道由setDeviceConfig设置，下次打开设备时生效。
+ * <p>
+ * 有对延迟敏感的客户端（如回环监听）时设备按CAPTURE_MODE_LOW_LATENCY读取，
+ * 只剩批量消费的客户端（如写文件）时切换为CAPTURE_MODE_BATCH，减少采集线程唤醒。
+ *
+ *
+ * sample:
+ mMicClient = MicSessionManager.getInstance().acquire(AudioCapture.AUDIO_SAMPLE_RATE_16,
+ new PcmConverter.Format(AudioFormat.ENCODING_PCM_16BIT, 1, false), this);
+ mFileClient = MicSessionManager.getInstance().acquire(AudioCapture.AUDIO_SAMPLE_RATE_16,
+ new PcmConverter.Format(AudioFormat.ENCODING_PCM_16BIT, 1, false), recordingStore, false);
+
+ mMicClient.release();
+ */
+public class MicSessionManager {
+
+    private static final String TAG = MicSessionManager.class.getSimpleName();
+
+    private static final MicSessionManager sInstance = new MicSessionManager();
+
+    private int mDeviceSampleRate = AudioCapture.AUDIO_SAMPLE_RATE_44_1;
+    private int mDeviceChannelConfig = AudioFormat.CHANNEL_IN_MONO;
+
+    private AudioCapture mCapture;
+    private int mOpenedSampleRate;        //设备打开时实际使用的采样频率，与mDeviceSampleRate可能不同
+    private PcmConverter.Format mDeviceFormat;
+    private int mRefCount;
+    private int mLatencySensitiveCount;
+
+    private volatile Route[] mRoutes = new Route[0];
+
+    public static MicSessionManager getInstance() {
+        return sInstance;
+    }
+
+    private MicSessionManager() {
+    }
+
+    /**
+     * 设置设备的采样参数，下次打开设备时生效
+     *
+     * @param sampleRate 采样频率 参数见AudioCapture
+     * @param channelConfig AudioFormat.CHANNEL_IN_MONO 或 CHANNEL_IN_STEREO
+     */
+    public synchronized void setDeviceConfig(int sampleRate, int channelConfig) {
+        mDeviceSampleRate = sampleRate;
+        mDeviceChannelConfig = channelConfig;
+    }
+
+    /**
+     * 获取一个对延迟敏感的客户端，参看acquire(int, PcmConverter.Format, AudioCapture.AudioCaptureCallback, boolean)
+     */
+    public synchronized Client acquire(int sampleRate, PcmConverter.Format format, AudioCapture.AudioCaptureCallback callback) {
+        return acquire(sampleRate, format, callback, true);
+    }
+
+    /**
+     * 获取一个客户端，设备未打开时打开并开始采集
+     *
+     * @param sampleRate 客户端需要的采样频率
+     * @param format 客户端需要的格式
+     * @param callback 在采集线程上回调
+     * @param latencySensitive 是否对延迟敏感；为false时（如写文件）数据可能每200ms才回调一次
+     * @return 设备打开失败时返回null
+     */
+    public synchronized Client acquire(int sampleRate, PcmConverter.Format format, AudioCapture.AudioCaptureCallback callback,
+        boolean latencySensitive) {
+        if (mCapture == null && !openDevice()) {
+            return null;
+        }
+        Route route = findRoute(sampleRate, format);
+        if (route == null) {
+            route = new Route(mOpenedSampleRate, mDeviceFormat, sampleRate, format);
+            Route[] routes = new Route[mRoutes.length + 1];
+            System.arraycopy(mRoutes, 0, routes, 0, mRoutes.length);
+            routes[mRoutes.length] = route;
+            mRoutes = routes;
+        }
+        Client client = new Client(route, callback, latencySensitive);
+        route.add(client);
+        mRefCount++;
+        if (latencySensitive) {
+            mLatencySensitiveCount++;
+        }
+        updateCaptureMode();
+        Log.i(TAG, "acquire, refCount = " + mRefCount + ", sampleRate = " + sampleRate);
+        return client;
+    }
+
+    /**
+     * 当前客户端个数
+     */
+    public synchronized int getRefCount() {
+        return mRefCount;
+    }
+
+    public synchronized boolean isDeviceOpen() {
+        return mCapture != null;
+    }
+
+    /**
+     * 设备的读取方式和唤醒统计，设备未打开时返回null
+     */
+    public synchronized AudioCapture.CaptureStats getCaptureStats() {
+        return mCapture == null ? null : mCapture.getCaptureStats();
+    }
+
+    private synchronized void release(Client client) {
+        Route route = client.route;
+        if (!route.remove(client)) {
+            return;
+        }
+        if (route.clients.length == 0) {
+            removeRoute(route);
+        }
+        mRefCount--;
+        if (client.latencySensitive) {
+            mLatencySensitiveCount--;
+        }
+        Log.i(TAG, "release, refCount = " + mRefCount);
+        if (mRefCount == 0) {
+            closeDevice();
+        } else {
+            updateCaptureMode();
+        }
+    }
+
+    private void updateCaptureMode() {
+        int mode = mLatencySensitiveCount > 0 ? AudioCapture.CAPTURE_MODE_LOW_LATENCY : AudioCapture.CAPTURE_MODE_BATCH;
+        mCapture.setCaptureMode(mode);
+    }
+
+    private boolean openDevice() {
+        AudioCapture capture = new AudioCapture(mDeviceSampleRate, mDeviceChannelConfig, AudioFormat.ENCODING_PCM_16BIT);
+        if (capture.getState() != AudioCapture.STATE_IDLE) {
+            Log.e(TAG, "open device fail");
+            capture.release();
+            return false;
+        }
+        mOpenedSampleRate = capture.getSampleRate();
+        mDeviceFormat = capture.getPcmFormat();
+        capture.setAudioCaptureCallback(new AudioCapture.AudioCaptureCallback() {
+            @Override
+            public void onPCMDataAvailable(byte[] data, int size) {
+                for (Route route : mRoutes) {
+                    route.dispatch(data, size);
+                }
+            }
+        });
+        capture.start();
+        mCapture = capture;
+        Log.i(TAG, "device opened, sampleRate = " + mOpenedSampleRate);
+        return true;
+    }
+
+    private void closeDevice() {
+        mCapture.stop();
+        mCapture.release();
+        mCapture = null;
+        mRoutes = new Route[0];
+        Log.i(TAG, "device closed");
+    }
+
+    private Route findRoute(int sampleRate, PcmConverter.Format format) {
+        for (Route route : mRoutes) {
+            if (route.sampleRate == sampleRate && route.format.equals(format)) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+    private void removeRoute(Route route) {
+        Route[] old = mRoutes;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == route) {
+                Route[] routes = new Route[old.length - 1];
+                System.arraycopy(old, 0, routes, 0, i);
+                System.arraycopy(old, i + 1, routes, i, old.length - i - 1);
+                mRoutes = routes;
+                return;
+            }
+        }
+    }
+
+    /**
+     * 一种输出规格：设备数据 ---> 重采样 ---> 格式转换，结果分发给该规格的所有客户端
+     */
+    private static final class Route {
+
+        private final int sampleRate;
+        private final PcmConverter.Format format;
+
+        private final LinearResampler resampler;
+        private final PcmConverter converter;
+
+        private byte[] resampled = new byte[0];
+        private byte[] converted = new byte[0];
+
+        private volatile Client[] clients = new Client[0];
+
+        Route(int deviceSampleRate, PcmConverter.Format deviceFormat, int sampleRate, PcmConverter.Format format) {
+            this.sampleRate = sampleRate;
+            this.format = format;
+            resampler = deviceSampleRate == sampleRate ? null
+                : new LinearResampler(deviceSampleRate, sampleRate, deviceFormat.getChannelCount());
+            converter = deviceFormat.equals(format) ? null : new PcmConverter(deviceFormat, format);
+        }
+
+        void dispatch(byte[] data, int size) {
+            Client[] clients = this.clients;
+            if (clients.length == 0) {
+                return;
+            }
+            if (resampler != null) {
+                int max = resampler.getMaxOutputSize(size);
+                if (resampled.length < max) {
+                    resampled = new byte[max];
+                }
+                size = resampler.process(data, size, resampled);
+                data = resampled;
+            }
+            if (converter != null) {
+                int outSize = converter.getOutputSize(size);
+                if (converted.length < outSize) {
+                    converted = new byte[outSize];
+                }
+                size = converter.convert(data, size, converted);
+                data = converted;
+            }
+            if (size == 0) {
+                return;
+            }
+            for (Client client : clients) {
+                client.callback.onPCMDataAvailable(data, size);
+            }
+        }
+
+        synchronized void add(Client client) {
+            Client[] old = clients;
+            Client[] newClients = new Client[old.length + 1];
+            System.arraycopy(old, 0, newClients, 0, old.length);
+            newClients[old.length] = client;
+            clients = newClients;
+        }
+
+        synchronized boolean remove(Client client) {
+            Client[] old = clients;
+            for (int i = 0; i < old.length; i++) {
+                if (old[i] == client) {
+                    Client[] newClients = new Client[old.length - 1];
+                    System.arraycopy(old, 0, newClients, 0, i);
+                    System.arraycopy(old, i + 1, newClients, i, old.length - i - 1);
+                    clients = newClients;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 客户端句柄，不再使用时必须release
+     */
+    public static final class Client {
+
+        private final Route route;
+        private final AudioCapture.AudioCaptureCallback callback;
+        private final boolean latencySensitive;
+
+        Client(Route route, AudioCapture.AudioCaptureCallback callback, boolean latencySensitive) {
+            this.route = route;
+            this.callback = callback;
+            this.latencySensitive = latencySensitive;
+        }
+
+        public int getSampleRate() {
+            return route.sampleRate;
+        }
+
+        public PcmConverter.Format getFormat() {
+            return route.format;
+        }
+
+        /**
+         * 释放客户端，重复调用无影响
+         */
+        public void release() {
+            sInstance.release(this);
+        }
+    }
+}
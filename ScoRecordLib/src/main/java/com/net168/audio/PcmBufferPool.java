@@ -0,0 +1,377 @@
+package com.net168.audio;
+
+import android.util.Log;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 全库共享的PCM缓冲池：按2的幂分级（256B ~ 1MB），显式acquire/release
+ * <p>
+ * 每个线程先使用自己的小缓存（每级最多4个，无锁），不命中再取共享池（每级一把锁），都没有才分配。
+ * 采集、播放、录制写入等路径从这里取缓冲，稳定运行后不再分配内存。
+ * 线程退出前应调用trimThreadCache()把缓存归还共享池。
+ * <p>
+ * 缓冲为堆上byte[]：采集回调、处理链、AudioTrack.write都基于byte[]，直接内存反而要多一次拷贝。
+ * 超过最大级别的请求直接分配，release时忽略。
+ * <p>
+ * 打开泄漏检测（建议只在debug包）后，记录每个缓冲的acquire调用栈，
+ * 缓冲未release就被GC时输出该调用栈；检测有额外开销，默认关闭。
+ *
+ *
+ * sample:
+ PcmBufferPool.setLeakDetection(BuildConfig.DEBUG);
+
+ byte[] buffer = PcmBufferPool.acquire(size);
+ ...
+ PcmBufferPool.release(buffer);
+
+ Log.i(TAG, PcmBufferPool.getStats().toString());
+ */
+public final class PcmBufferPool {
+
+    private static final String TAG = PcmBufferPool.class.getSimpleName();
+
+    private static final int MIN_SHIFT = 8;
+    private static final int MAX_SHIFT = 20;
+    private static final int CLASS_COUNT = MAX_SHIFT - MIN_SHIFT + 1;
+    private static final int THREAD_CACHE_SIZE = 4;
+    private static final int SHARED_CACHE_SIZE = 16;
+
+    private static final Bucket[] sShared = new Bucket[CLASS_COUNT];
+
+    static {
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            sShared[i] = new Bucket(SHARED_CACHE_SIZE);
+        }
+    }
+
+    private static final ThreadLocal<Bucket[]> sThreadCache = new ThreadLocal<Bucket[]>() {
+        @Override
+        protected Bucket[] initialValue() {
+            Bucket[] buckets = new Bucket[CLASS_COUNT];
+            for (int i = 0; i < CLASS_COUNT; i++) {
+                buckets[i] = new Bucket(THREAD_CACHE_SIZE);
+            }
+            return buckets;
+        }
+    };
+
+    private static final AtomicLong sAcquires = new AtomicLong();
+    private static final AtomicLong sThreadHits = new AtomicLong();
+    private static final AtomicLong sSharedHits = new AtomicLong();
+    private static final AtomicLong sAllocations = new AtomicLong();
+    private static final AtomicLong sUnpooled = new AtomicLong();
+    private static final AtomicLong sDoubleReleases = new AtomicLong();
+    private static final AtomicLong sOutstanding = new AtomicLong();
+    private static final AtomicLong sOutstandingBytes = new AtomicLong();
+    private static final AtomicLong sPeakOutstandingBytes = new AtomicLong();
+    private static final AtomicLong sLeaks = new AtomicLong();
+
+    private static volatile boolean sLeakDetection;
+    private static final ReferenceQueue<byte[]> sLeakQueue = new ReferenceQueue<>();
+    private static final List<LeakRef> sTracked = new ArrayList<>();
+
+    private PcmBufferPool() {
+    }
+
+    /**
+     * 打开或关闭泄漏检测，只对之后acquire的缓冲生效
+     */
+    public static void setLeakDetection(boolean enabled) {
+        sLeakDetection = enabled;
+        if (!enabled) {
+            synchronized (sTracked) {
+                for (LeakRef ref : sTracked) {
+                    ref.clear();
+                }
+                sTracked.clear();
+            }
+        }
+    }
+
+    /**
+     * 取一个长度不小于minSize的缓冲，内容未清零
+     */
+    public static byte[] acquire(int minSize) {
+        sAcquires.incrementAndGet();
+        int index = classIndex(minSize);
+        byte[] buffer;
+        if (index < 0) {
+            sUnpooled.incrementAndGet();
+            buffer = new byte[minSize];
+        } else {
+            buffer = sThreadCache.get()[index].pop();
+            if (buffer != null) {
+                sThreadHits.incrementAndGet();
+            } else {
+                Bucket shared = sShared[index];
+                synchronized (shared) {
+                    buffer = shared.pop();
+                }
+                if (buffer != null) {
+                    sSharedHits.incrementAndGet();
+                } else {
+                    sAllocations.incrementAndGet();
+                    buffer = new byte[1 << (index + MIN_SHIFT)];
+                }
+            }
+        }
+        sOutstanding.incrementAndGet();
+        long bytes = sOutstandingBytes.addAndGet(buffer.length);
+        long peak;
+        while (bytes > (peak = sPeakOutstandingBytes.get()) && !sPeakOutstandingBytes.compareAndSet(peak, bytes)) {
+            // 重试
+        }
+        if (sLeakDetection) {
+            track(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * 归还acquire得到的缓冲，之后不能再使用；传入null或过大的缓冲被忽略
+     */
+    public static void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (sLeakDetection) {
+            untrack(buffer);
+        }
+        int index = exactClassIndex(buffer.length);
+        if (index < 0) {
+            if (buffer.length > 1 << MAX_SHIFT) {
+                sOutstanding.decrementAndGet();
+                sOutstandingBytes.addAndGet(-buffer.length);
+            }
+            return;
+        }
+        Bucket cache = sThreadCache.get()[index];
+        if (cache.contains(buffer)) {
+            onDoubleRelease(buffer);
+            return;
+        }
+        if (!cache.push(buffer)) {
+            //线程缓存已满，多出的放回共享池，共享池也满时交给GC
+            Bucket shared = sShared[index];
+            synchronized (shared) {
+                if (shared.contains(buffer)) {
+                    onDoubleRelease(buffer);
+                    return;
+                }
+                shared.push(buffer);
+            }
+        }
+        sOutstanding.decrementAndGet();
+        sOutstandingBytes.addAndGet(-(1 << (index + MIN_SHIFT)));
+    }
+
+    /**
+     * 重复归还会让两处同时使用同一个缓冲，能发现时忽略本次归还
+     */
+    private static void onDoubleRelease(byte[] buffer) {
+        sDoubleReleases.incrementAndGet();
+        Log.w(TAG, "buffer released twice, size = " + buffer.length);
+    }
+
+    /**
+     * 把当前线程缓存的缓冲还给共享池，线程退出前调用
+     */
+    public static void trimThreadCache() {
+        Bucket[] buckets = sThreadCache.get();
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            byte[] buffer;
+            while ((buffer = buckets[i].pop()) != null) {
+                synchronized (sShared[i]) {
+                    sShared[i].push(buffer);
+                }
+            }
+        }
+        sThreadCache.remove();
+    }
+
+    /**
+     * 清空共享池，如内存紧张（onTrimMemory）时调用
+     */
+    public static void clear() {
+        for (Bucket bucket : sShared) {
+            synchronized (bucket) {
+                while (bucket.pop() != null) {
+                    // 丢弃
+                }
+            }
+        }
+    }
+
+    public static Stats getStats() {
+        pollLeaks();
+        int pooled = 0;
+        long pooledBytes = 0;
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            synchronized (sShared[i]) {
+                pooled += sShared[i].count;
+                pooledBytes += (long) sShared[i].count << (i + MIN_SHIFT);
+            }
+        }
+        return new Stats(sAcquires.get(), sThreadHits.get(), sSharedHits.get(), sAllocations.get(), sUnpooled.get(),
+            sOutstanding.get(), sOutstandingBytes.get(), sPeakOutstandingBytes.get(), pooled, pooledBytes,
+            sDoubleReleases.get(), sLeaks.get());
+    }
+
+    /**
+     * 请求大小对应的级别，超过最大级别返回-1
+     */
+    private static int classIndex(int size) {
+        if (size > 1 << MAX_SHIFT) {
+            return -1;
+        }
+        int shift = MIN_SHIFT;
+        while (1 << shift < size) {
+            shift++;
+        }
+        return shift - MIN_SHIFT;
+    }
+
+    /**
+     * 长度恰好为某个级别时返回该级别，否则返回-1
+     */
+    private static int exactClassIndex(int length) {
+        if (length < 1 << MIN_SHIFT || length > 1 << MAX_SHIFT || (length & (length - 1)) != 0) {
+            return -1;
+        }
+        return Integer.numberOfTrailingZeros(length) - MIN_SHIFT;
+    }
+
+    private static void track(byte[] buffer) {
+        pollLeaks();
+        synchronized (sTracked) {
+            sTracked.add(new LeakRef(buffer, sLeakQueue));
+        }
+    }
+
+    private static void untrack(byte[] buffer) {
+        synchronized (sTracked) {
+            //调试用，未归还的缓冲通常只有几十个，线性查找即可
+            for (int i = sTracked.size() - 1; i >= 0; i--) {
+                LeakRef ref = sTracked.get(i);
+                if (ref.get() == buffer) {
+                    ref.clear();
+                    sTracked.remove(i);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 未归还就被GC的缓冲即为泄漏，输出acquire时的调用栈
+     */
+    private static void pollLeaks() {
+        LeakRef ref;
+        while ((ref = (LeakRef) sLeakQueue.poll()) != null) {
+            boolean leaked;
+            synchronized (sTracked) {
+                leaked = sTracked.remove(ref);
+            }
+            if (leaked) {
+                sLeaks.incrementAndGet();
+                sOutstanding.decrementAndGet();
+                sOutstandingBytes.addAndGet(-ref.size);
+                Log.e(TAG, "buffer leaked, size = " + ref.size + ", acquired at:", ref.stack);
+            }
+        }
+    }
+
+    private static final class LeakRef extends WeakReference<byte[]> {
+
+        private final int size;
+        private final Throwable stack = new Throwable();
+
+        LeakRef(byte[] buffer, ReferenceQueue<byte[]> queue) {
+            super(buffer, queue);
+            size = buffer.length;
+        }
+    }
+
+    /**
+     * 同一级别缓冲的栈
+     */
+    private static final class Bucket {
+
+        private final byte[][] items;
+        private int count;
+
+        Bucket(int capacity) {
+            items = new byte[capacity][];
+        }
+
+        byte[] pop() {
+            if (count == 0) {
+                return null;
+            }
+            byte[] buffer = items[--count];
+            items[count] = null;
+            return buffer;
+        }
+
+        boolean push(byte[] buffer) {
+            if (count == items.length) {
+                return false;
+            }
+            items[count++] = buffer;
+            return true;
+        }
+
+        boolean contains(byte[] buffer) {
+            for (int i = 0; i < count; i++) {
+                if (items[i] == buffer) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public static final class Stats {
+
+        Stats(long acquires, long threadHits, long sharedHits, long allocations, long unpooled, long outstanding,
+            long outstandingBytes, long peakOutstandingBytes, int pooled, long pooledBytes, long doubleReleases, long leaks) {
+            this.acquires = acquires;
+            this.threadHits = threadHits;
+            this.sharedHits = sharedHits;
+            this.allocations = allocations;
+            this.unpooled = unpooled;
+            this.outstanding = outstanding;
+            this.outstandingBytes = outstandingBytes;
+            this.peakOutstandingBytes = peakOutstandingBytes;
+            this.pooled = pooled;
+            this.pooledBytes = pooledBytes;
+            this.doubleReleases = doubleReleases;
+            this.leaks = leaks;
+        }
+
+        public final long acquires;
+        public final long threadHits;          // 线程缓存命中
+        public final long sharedHits;          // 共享池命中
+        public final long allocations;         // 未命中而新分配
+        public final long unpooled;            // 超过最大级别直接分配
+        public final long outstanding;         // 已取出未归还
+        public final long outstandingBytes;
+        public final long peakOutstandingBytes;
+        public final int pooled;               // 共享池中的缓冲数
+        public final long pooledBytes;
+        public final long doubleReleases;
+        public final long leaks;               // 泄漏检测发现的未归还缓冲
+
+        @Override
+        public String toString() {
+            return "Stats{acquires=" + acquires + ", threadHits=" + threadHits + ", sharedHits=" + sharedHits
+                + ", allocations=" + allocations + ", unpooled=" + unpooled + ", outstanding=" + outstanding + "/"
+                + outstandingBytes / 1024 + "KB, peak=" + peakOutstandingBytes / 1024 + "KB, pooled=" + pooled + "/"
+                + pooledBytes / 1024 + "KB, doubleReleases=" + doubleReleases + ", leaks=" + leaks + "}";
+        }
+    }
+}
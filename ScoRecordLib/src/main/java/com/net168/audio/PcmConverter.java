@@ -0,0 +1,292 @@
+package com.net168.audio;
+
+import android.media.AudioFormat;
+
+/**
+ * PCM格式转换：8bit / 16bit / float 采样格式，单声道 / 立体声互转，大小端
+ * <p>
+ * 先解码到float工作区，再做声道转换，最后编码到目标格式。每一步都是对数组的简单计数循环，
+ * JIT可以展开并向量化；工作区只在遇到更大的输入时扩容，稳定运行后不再分配内存。
+ * 格式完全一致时直接拷贝，只差大小端时直接交换字节。
+ *
+ *
+ * sample:
+ PcmConverter converter = new PcmConverter(mAudioCapture.getPcmFormat(),
+ new PcmConverter.Format(AudioFormat.ENCODING_PCM_16BIT, 1, false));
+ byte[] out = new byte[converter.getOutputSize(mAudioCapture.getMaxBufferSize())];
+
+ int outSize = converter.convert(data, size, out);
+ */
+public class PcmConverter {
+
+    private final Format inFormat;
+
+    private final Format outFormat;
+
+    private final boolean passThrough;
+
+    private final boolean swapOnly;
+
+    private float[] work = new float[0];
+
+    public PcmConverter(Format inFormat, Format outFormat) {
+        this.inFormat = inFormat;
+        this.outFormat = outFormat;
+        this.passThrough = inFormat.equals(outFormat)
+            || (inFormat.encoding == AudioFormat.ENCODING_PCM_8BIT && outFormat.encoding == AudioFormat.ENCODING_PCM_8BIT
+            && inFormat.channelCount == outFormat.channelCount);
+        this.swapOnly = !passThrough && inFormat.encoding == outFormat.encoding
+            && inFormat.channelCount == outFormat.channelCount;
+    }
+
+    public Format getInputFormat() {
+        return inFormat;
+    }
+
+    public Format getOutputFormat() {
+        return outFormat;
+    }
+
+    /**
+     * 输入srcSize字节，转换后的字节数
+     */
+    public int getOutputSize(int srcSize) {
+        return srcSize / inFormat.getBytesPerFrame() * outFormat.getBytesPerFrame();
+    }
+
+    /**
+     * 转换一段PCM数据，不足一帧的尾部被忽略
+     *
+     * @param dst 长度不小于getOutputSize(srcSize)
+     * @return 写入dst的字节数
+     */
+    public int convert(byte[] src, int srcSize, byte[] dst) {
+        final int frames = srcSize / inFormat.getBytesPerFrame();
+        final int outSize = frames * outFormat.getBytesPerFrame();
+        if (dst.length < outSize) {
+            throw new IllegalArgumentException("dst too small: " + dst.length + " < " + outSize);
+        }
+        if (passThrough) {
+            System.arraycopy(src, 0, dst, 0, outSize);
+            return outSize;
+        }
+        if (swapOnly) {
+            swapBytes(src, dst, outSize, inFormat.getBytesPerSample());
+            return outSize;
+        }
+
+        int workSize = frames * Math.max(inFormat.channelCount, outFormat.channelCount);
+        if (work.length < workSize) {
+            work = new float[workSize];
+        }
+        final float[] w = work;
+        decode(src, frames * inFormat.channelCount, w);
+        if (inFormat.channelCount == 2 && outFormat.channelCount == 1) {
+            downmix(w, frames);
+        } else if (inFormat.channelCount == 1 && outFormat.channelCount == 2) {
+            upmix(w, frames);
+        }
+        encode(w, frames * outFormat.channelCount, dst);
+        return outSize;
+    }
+
+    private void decode(byte[] src, int samples, float[] w) {
+        switch (inFormat.encoding) {
+            case AudioFormat.ENCODING_PCM_8BIT:
+                for (int i = 0; i < samples; i++) {
+                    w[i] = ((src[i] & 0xff) - 128) * (1f / 128);
+                }
+                break;
+            case AudioFormat.ENCODING_PCM_FLOAT:
+                if (inFormat.bigEndian) {
+                    for (int i = 0; i < samples; i++) {
+                        int j = i << 2;
+                        w[i] = Float.intBitsToFloat((src[j] << 24) | ((src[j + 1] & 0xff) << 16)
+                            | ((src[j + 2] & 0xff) << 8) | (src[j + 3] & 0xff));
+                    }
+                } else {
+                    for (int i = 0; i < samples; i++) {
+                        int j = i << 2;
+                        w[i] = Float.intBitsToFloat((src[j + 3] << 24) | ((src[j + 2] & 0xff) << 16)
+                            | ((src[j + 1] & 0xff) << 8) | (src[j] & 0xff));
+                    }
+                }
+                break;
+            default:
+                if (inFormat.bigEndian) {
+                    for (int i = 0; i < samples; i++) {
+                        w[i] = (short) ((src[2 * i] << 8) | (src[2 * i + 1] & 0xff)) * (1f / 32768);
+                    }
+                } else {
+                    for (int i = 0; i < samples; i++) {
+                        w[i] = (short) ((src[2 * i + 1] << 8) | (src[2 * i] & 0xff)) * (1f / 32768);
+                    }
+                }
+                break;
+        }
+    }
+
+    private void encode(float[] w, int samples, byte[] dst) {
+        switch (outFormat.encoding) {
+            case AudioFormat.ENCODING_PCM_8BIT:
+                for (int i = 0; i < samples; i++) {
+                    int v = (int) (w[i] * 128);
+                    v = v > 127 ? 127 : (v < -128 ? -128 : v);
+                    dst[i] = (byte) (v + 128);
+                }
+                break;
+            case AudioFormat.ENCODING_PCM_FLOAT:
+                if (outFormat.bigEndian) {
+                    for (int i = 0; i < samples; i++) {
+                        int bits = Float.floatToRawIntBits(w[i]);
+                        int j = i << 2;
+                        dst[j] = (byte) (bits >> 24);
+                        dst[j + 1] = (byte) (bits >> 16);
+                        dst[j + 2] = (byte) (bits >> 8);
+                        dst[j + 3] = (byte) bits;
+                    }
+                } else {
+                    for (int i = 0; i < samples; i++) {
+                        int bits = Float.floatToRawIntBits(w[i]);
+                        int j = i << 2;
+                        dst[j] = (byte) bits;
+                        dst[j + 1] = (byte) (bits >> 8);
+                        dst[j + 2] = (byte) (bits >> 16);
+                        dst[j + 3] = (byte) (bits >> 24);
+                    }
+                }
+                break;
+            default:
+                int hi = outFormat.bigEndian ? 0 : 1;
+                int lo = 1 - hi;
+                for (int i = 0; i < samples; i++) {
+                    int v = (int) (w[i] * 32768);
+                    v = v > 32767 ? 32767 : (v < -32768 ? -32768 : v);
+                    dst[2 * i + hi] = (byte) (v >> 8);
+                    dst[2 * i + lo] = (byte) v;
+                }
+                break;
+        }
+    }
+
+    /**
+     * 立体声 ---> 单声道，原地进行（写位置始终不超过读位置）
+     */
+    private static void downmix(float[] w, int frames) {
+        for (int i = 0; i < frames; i++) {
+            w[i] = (w[2 * i] + w[2 * i + 1]) * 0.5f;
+        }
+    }
+
+    /**
+     * 单声道 ---> 立体声，原地进行，从尾部往前写
+     */
+    private static void upmix(float[] w, int frames) {
+        for (int i = frames - 1; i >= 0; i--) {
+            float v = w[i];
+            w[2 * i] = v;
+            w[2 * i + 1] = v;
+        }
+    }
+
+    private static void swapBytes(byte[] src, byte[] dst, int size, int bytesPerSample) {
+        if (bytesPerSample == 2) {
+            for (int i = 0; i < size; i += 2) {
+                byte b = src[i];
+                dst[i] = src[i + 1];
+                dst[i + 1] = b;
+            }
+        } else {
+            for (int i = 0; i < size; i += 4) {
+                byte b0 = src[i];
+                byte b1 = src[i + 1];
+                dst[i] = src[i + 3];
+                dst[i + 1] = src[i + 2];
+                dst[i + 2] = b1;
+                dst[i + 3] = b0;
+            }
+        }
+    }
+
+    /**
+     * PCM数据格式
+     */
+    public static final class Format {
+
+        /**
+         * @param encoding AudioFormat.ENCODING_PCM_8BIT / ENCODING_PCM_16BIT / ENCODING_PCM_FLOAT
+         * @param channelCount 1 或 2
+         * @param bigEndian 是否大端，Android设备上的PCM都是小端
+         */
+        public Format(int encoding, int channelCount, boolean bigEndian) {
+            if (channelCount != 1 && channelCount != 2) {
+                throw new IllegalArgumentException("unsupported channel count: " + channelCount);
+            }
+            if (encoding != AudioFormat.ENCODING_PCM_8BIT && encoding != AudioFormat.ENCODING_PCM_FLOAT) {
+                encoding = AudioFormat.ENCODING_PCM_16BIT;
+            }
+            this.encoding = encoding;
+            this.channelCount = channelCount;
+            this.bigEndian = bigEndian;
+        }
+
+        /**
+         * 由AudioRecord/AudioTrack的参数得到格式
+         *
+         * @param channelConfig AudioFormat.CHANNEL_IN_* 或 AudioFormat.CHANNEL_OUT_*
+         */
+        public static Format of(int channelConfig, int audioFormat) {
+            int channelCount = channelConfig == AudioFormat.CHANNEL_IN_STEREO
+                || channelConfig == AudioFormat.CHANNEL_OUT_STEREO ? 2 : 1;
+            return new Format(audioFormat, channelCount, false);
+        }
+
+        final int encoding;
+
+        final int channelCount;
+
+        final boolean bigEndian;
+
+        public int getEncoding() {
+            return encoding;
+        }
+
+        public int getChannelCount() {
+            return channelCount;
+        }
+
+        public boolean isBigEndian() {
+            return bigEndian;
+        }
+
+        public int getBytesPerSample() {
+            if (encoding == AudioFormat.ENCODING_PCM_8BIT) {
+                return 1;
+            } else if (encoding == AudioFormat.ENCODING_PCM_FLOAT) {
+                return 4;
+            }
+            return 2;
+        }
+
+        public int getBytesPerFrame() {
+            return getBytesPerSample() * channelCount;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Format)) {
+                return false;
+            }
+            Format format = (Format) o;
+            return encoding == format.encoding && channelCount == format.channelCount && bigEndian == format.bigEndian;
+        }
+
+        @Override
+        public int hashCode() {
+            return (encoding * 31 + channelCount) * 31 + (bigEndian ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,536 @@
+package com.net168.audio;
+
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+import com.net168.audio.AudioPlayer.AudioParam;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * PCM文件播放，支持按字节seek和多个文件无缝连续播放
+ * <p>
+ * 文件通过内存映射读取；当前文件开始播放时，后台线程会预先映射并加载下一个文件。
+ * 文件之间切换不重建AudioTrack，不会有停顿。播放进度以AudioTrack的播放头位置为准。
+ *
+ *
+ * sample:
+ mFilePlayer = new PcmFilePlayer(listener);
+ mFilePlayer.prepare(new AudioParam(AudioCapture.AUDIO_SAMPLE_RATE_44_1, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT));
+ mFilePlayer.setPlaylist(files);
+ mFilePlayer.play();
+
+ mFilePlayer.seekTo(1, 44100 * 2 * 10);  //第2个文件的第10秒
+ mFilePlayer.getCurrentPosition();
+
+ mFilePlayer.stop();
+ mFilePlayer.release();
+ */
+public class PcmFilePlayer {
+
+    private final static String TAG = PcmFilePlayer.class.getSimpleName();
+
+    /**
+     * 播放头与文件位置的对应点最多保留几个（AudioTrack缓冲区里最多同时存在几段文件的数据）
+     */
+    private final static int MARKER_COUNT = 8;
+
+    /**
+     * 预读下一个文件开头的字节数，足够覆盖切换后AudioTrack缓冲区填满前的读取，不把整个文件读入内存
+     */
+    private final static int PREFETCH_BYTES = 256 * 1024;
+
+    private final static int PAGE_SIZE = 4096;
+
+    private final Object lock = new Object();
+
+    private final PlaybackListener playbackListener;
+
+    private final List<String> playlist = new ArrayList<>();
+
+    private AudioParam audioParam;
+
+    private AudioTrack audioTrack;
+
+    private int bytesPerFrame;
+
+    private byte[] buffer;
+
+    private PlayThread playThread;
+
+    private ExecutorService prefetchExecutor;
+
+    private volatile boolean threadExitFlag = true;            // 线程退出标志
+
+    private volatile boolean paused;
+
+    private volatile int prefetchSink;    // 保存预读结果，避免读取被优化掉
+
+    // seek请求，由播放线程处理
+    private int pendingSeekIndex = -1;
+    private long pendingSeekOffset;
+
+    // 播放头位置(帧) ---> 文件位置(帧) 的对应点，按写入顺序排列
+    private final long[] markerTrackFrame = new long[MARKER_COUNT];
+    private final int[] markerIndex = new int[MARKER_COUNT];
+    private final long[] markerFileFrame = new long[MARKER_COUNT];
+    private int markerCount;
+
+    public PcmFilePlayer(PlaybackListener playbackListener) {
+        this.playbackListener = playbackListener;
+    }
+
+    /*
+     *  就绪播放源
+     */
+    public synchronized boolean prepare(AudioParam audioParam) {
+        if (audioTrack != null) {
+            return true;
+        }
+        if (audioParam == null) {
+            return false;
+        }
+
+        int minBufSize = AudioTrack.getMinBufferSize(audioParam.rate, audioParam.channel, audioParam.sampleBit);
+        if (minBufSize <= 0) {
+            Log.e(TAG, "prepare fail, invalid AudioParam, err code：" + minBufSize);
+            return false;
+        }
+        //缓冲区取两倍最小值，切换文件时留出余量
+        audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC,
+            audioParam.rate,
+            audioParam.channel,
+            audioParam.sampleBit,
+            minBufSize * 2,
+            AudioTrack.MODE_STREAM);
+        if (audioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+            Log.e(TAG, "init AudioTrack fail，err code：" + audioTrack.getState());
+            audioTrack.release();
+            audioTrack = null;
+            return false;
+        }
+
+        this.audioParam = audioParam;
+        bytesPerFrame = audioParam.getBytesPerFrame();
+        buffer = new byte[minBufSize - minBufSize % bytesPerFrame];
+        prefetchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PcmFilePlayer-prefetch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        return true;
+    }
+
+    public void setPlaylist(List<String> filenames) {
+        synchronized (lock) {
+            playlist.clear();
+            playlist.addAll(filenames);
+        }
+    }
+
+    /**
+     * 追加文件到播放列表末尾，播放中也可以追加
+     */
+    public void addToPlaylist(String filename) {
+        synchronized (lock) {
+            playlist.add(filename);
+        }
+    }
+
+    /**
+     * 从头开始播放播放列表；如果处于暂停状态则继续播放
+     */
+    public synchronized void play() {
+        if (audioTrack == null) {
+            Log.w(TAG, "play fail, because the player is not prepared");
+            return;
+        }
+        if (!threadExitFlag) {
+            if (paused) {
+                synchronized (lock) {
+                    paused = false;
+                    audioTrack.play();
+                    lock.notifyAll();
+                }
+            }
+            return;
+        }
+        threadExitFlag = false;
+        paused = false;
+        playThread = new PlayThread();
+        playThread.start();
+    }
+
+    public void pause() {
+        synchronized (lock) {
+            if (threadExitFlag || paused) {
+                return;
+            }
+            paused = true;
+            audioTrack.pause();
+        }
+    }
+
+    /**
+     * seek到当前文件的指定位置
+     *
+     * @param byteOffset 文件内的字节偏移，会向下对齐到整帧
+     */
+    public void seekTo(long byteOffset) {
+        seekTo(getCurrentIndex(), byteOffset);
+    }
+
+    /**
+     * seek到播放列表中指定文件的指定位置
+     *
+     * @param index 文件在播放列表中的位置
+     * @param byteOffset 文件内的字节偏移，会向下对齐到整帧
+     */
+    public void seekTo(int index, long byteOffset) {
+        synchronized (lock) {
+            if (index < 0 || index >= playlist.size()) {
+                Log.w(TAG, "seekTo fail, index out of playlist: " + index);
+                return;
+            }
+            pendingSeekIndex = index;
+            pendingSeekOffset = Math.max(0, byteOffset);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * 正在播放的文件在播放列表中的位置，未播放时为-1
+     */
+    public int getCurrentIndex() {
+        synchronized (lock) {
+            int marker = findMarker(getHeadPosition());
+            return marker < 0 ? -1 : markerIndex[marker];
+        }
+    }
+
+    /**
+     * 正在播放的文件内的字节位置
+     */
+    public long getCurrentPosition() {
+        synchronized (lock) {
+            long head = getHeadPosition();
+            int marker = findMarker(head);
+            if (marker < 0) {
+                return 0;
+            }
+            return (markerFileFrame[marker] + head - markerTrackFrame[marker]) * bytesPerFrame;
+        }
+    }
+
+    /**
+     * 正在播放的文件内的时间位置（毫秒）
+     */
+    public long getCurrentPositionMs() {
+        if (audioParam == null) {
+            return 0;
+        }
+        return getCurrentPosition() / bytesPerFrame * 1000 / audioParam.rate;
+    }
+
+    public boolean isPlaying() {
+        return !threadExitFlag && !paused;
+    }
+
+    public void stop() {
+        synchronized (lock) {
+            threadExitFlag = true;
+            if (paused && audioTrack != null) {
+                //暂停时缓冲区满会阻塞write，清空缓冲区让播放线程退出
+                audioTrack.flush();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    public synchronized void release() {
+        stop();
+        if (playThread != null) {
+            try {
+                playThread.join();
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+            playThread = null;
+        }
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+            prefetchExecutor = null;
+        }
+        if (audioTrack != null) {
+            audioTrack.release();
+            audioTrack = null;
+        }
+        buffer = null;
+        audioParam = null;
+    }
+
+    private long getHeadPosition() {
+        AudioTrack track = audioTrack;
+        return track == null ? 0 : track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+    }
+
+    /**
+     * 找到播放头已经越过的最后一个对应点，需持有lock
+     */
+    private int findMarker(long head) {
+        for (int i = markerCount - 1; i >= 0; i--) {
+            if (markerTrackFrame[i] <= head) {
+                return i;
+            }
+        }
+        return markerCount > 0 ? 0 : -1;
+    }
+
+    /**
+     * 记录一个对应点，需持有lock
+     */
+    private void addMarker(long trackFrame, int index, long fileFrame) {
+        if (markerCount == MARKER_COUNT) {
+            System.arraycopy(markerTrackFrame, 1, markerTrackFrame, 0, MARKER_COUNT - 1);
+            System.arraycopy(markerIndex, 1, markerIndex, 0, MARKER_COUNT - 1);
+            System.arraycopy(markerFileFrame, 1, markerFileFrame, 0, MARKER_COUNT - 1);
+            markerCount--;
+        }
+        markerTrackFrame[markerCount] = trackFrame;
+        markerIndex[markerCount] = index;
+        markerFileFrame[markerCount] = fileFrame;
+        markerCount++;
+    }
+
+    private String getFilename(int index) {
+        synchronized (lock) {
+            return index < playlist.size() ? playlist.get(index) : null;
+        }
+    }
+
+    /**
+     * 映射整个文件，长度向下对齐到整帧
+     */
+    private MappedByteBuffer map(String filename) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size - size % bytesPerFrame);
+        } finally {
+            file.close();
+        }
+    }
+
+    private Future<MappedByteBuffer> prefetch(final String filename) {
+        if (filename == null) {
+            return null;
+        }
+        return prefetchExecutor.submit(new Callable<MappedByteBuffer>() {
+            @Override
+            public MappedByteBuffer call() throws Exception {
+                //把文件开头提前读入page cache，切换时不会卡在缺页上；后面的部分播放时由内核顺序预读
+                MappedByteBuffer buffer = map(filename);
+                touchPages(buffer, PREFETCH_BYTES);
+                return buffer;
+            }
+        });
+    }
+
+    /**
+     * 在前bytes字节内每页读一个字节，触发缺页把这些页读入
+     */
+    private void touchPages(MappedByteBuffer buffer, int bytes) {
+        int end = Math.min(buffer.limit(), bytes);
+        int sum = 0;
+        for (int i = 0; i < end; i += PAGE_SIZE) {
+            sum += buffer.get(i);
+        }
+        prefetchSink = sum;
+    }
+
+    private MappedByteBuffer open(int index, Future<MappedByteBuffer> prefetched) throws IOException {
+        if (prefetched != null) {
+            try {
+                return prefetched.get();
+            } catch (Exception e) {
+                Log.w(TAG, "prefetch fail, map again: " + e);
+            }
+        }
+        String filename = getFilename(index);
+        return filename == null ? null : map(filename);
+    }
+
+    class PlayThread extends Thread {
+
+        private int index;
+
+        private MappedByteBuffer current;
+
+        private Future<MappedByteBuffer> next;
+
+        // AudioTrack中已写入数据的末尾，单位帧，与播放头同一坐标
+        private long writtenEnd;
+
+        PlayThread() {
+            super("PcmFilePlayer");
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+            try {
+                synchronized (lock) {
+                    markerCount = 0;
+                    writtenEnd = getHeadPosition();
+                }
+                openFile(0, 0, null);
+                audioTrack.play();
+
+                while (!threadExitFlag) {
+                    if (!waitIfPaused()) {
+                        break;
+                    }
+                    if (handleSeek()) {
+                        continue;
+                    }
+                    if (current == null) {
+                        //播放列表写完了，等待缓冲区内的数据播放完
+                        if (getHeadPosition() >= writtenEnd) {
+                            break;
+                        }
+                        Thread.sleep(10);
+                        continue;
+                    }
+
+                    int len = Math.min(buffer.length, current.remaining());
+                    current.get(buffer, 0, len);
+                    int written = 0;
+                    while (written < len && !threadExitFlag) {
+                        int ret = audioTrack.write(buffer, written, len - written);
+                        if (ret < 0) {
+                            Log.w(TAG, "write data with err code = " + ret);
+                            threadExitFlag = true;
+                            break;
+                        }
+                        written += ret;
+                    }
+                    writtenEnd += written / bytesPerFrame;
+
+                    if (!current.hasRemaining()) {
+                        openFile(index + 1, 0, next);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+
+            audioTrack.pause();
+            audioTrack.flush();
+            audioTrack.stop();
+            synchronized (lock) {
+                markerCount = 0;
+                paused = false;
+            }
+            threadExitFlag = true;
+            if (playbackListener != null) {
+                playbackListener.onPlayComplete();
+            }
+            Log.i(TAG, "PlayThread complete...");
+        }
+
+        /**
+         * 切换到指定文件，并开始预取下一个文件
+         */
+        private void openFile(int index, long byteOffset, Future<MappedByteBuffer> prefetched) throws IOException {
+            if (next != null && next != prefetched) {
+                next.cancel(false);
+            }
+            next = null;
+            this.index = index;
+            current = open(index, prefetched);
+            if (current == null) {
+                return;
+            }
+            long offset = Math.min(byteOffset - byteOffset % bytesPerFrame, current.limit());
+            current.position((int) offset);
+            synchronized (lock) {
+                addMarker(writtenEnd, index, offset / bytesPerFrame);
+            }
+            next = prefetch(getFilename(index + 1));
+            if (playbackListener != null) {
+                playbackListener.onTrackChanged(index, getFilename(index));
+            }
+        }
+
+        private boolean waitIfPaused() throws InterruptedException {
+            synchronized (lock) {
+                while (paused && !threadExitFlag && pendingSeekIndex < 0) {
+                    lock.wait();
+                }
+            }
+            return !threadExitFlag;
+        }
+
+        /**
+         * 处理seek请求：清空AudioTrack中已写入的数据，从新位置开始写
+         */
+        private boolean handleSeek() throws IOException {
+            int seekIndex;
+            long seekOffset;
+            synchronized (lock) {
+                if (pendingSeekIndex < 0) {
+                    return false;
+                }
+                seekIndex = pendingSeekIndex;
+                seekOffset = pendingSeekOffset;
+                pendingSeekIndex = -1;
+
+                audioTrack.pause();
+                audioTrack.flush();
+                markerCount = 0;
+                writtenEnd = getHeadPosition();
+            }
+
+            if (seekIndex == index && current != null) {
+                long offset = Math.min(seekOffset - seekOffset % bytesPerFrame, current.limit());
+                current.position((int) offset);
+                synchronized (lock) {
+                    addMarker(writtenEnd, index, offset / bytesPerFrame);
+                }
+            } else {
+                openFile(seekIndex, seekOffset, seekIndex == index + 1 ? next : null);
+            }
+
+            if (!paused) {
+                audioTrack.play();
+            }
+            return true;
+        }
+    }
+
+    public interface PlaybackListener {
+
+        /**
+         * 开始写入播放列表中的下一个文件
+         */
+        void onTrackChanged(int index, String filename);
+
+        void onPlayComplete();
+    }
+}
@@ -0,0 +1,343 @@
+package com.net168.audio;
+
+import android.util.Log;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按需拉取的PCM帧流，语义与Reactive Streams的Publisher/Subscriber/Subscription一致，但不依赖第三方库
+ * <p>
+ * 订阅者通过Subscription.request(n)声明还能处理多少帧，采集线程只在有需求时直接投递；
+ * 没有需求时帧暂存在该订阅者自己的有界缓冲里，缓冲满后按BufferPolicy处理，不会拖慢采集线程和其他订阅者。
+ * 缓冲的帧在订阅者下次request时，由request的调用线程投递。
+ * 同一订阅者的回调不会并发，onNext中的data在回调返回后会被复用，需要保留时自行拷贝。
+ *
+ *
+ * sample:
+ mPublisher = new PcmPublisher(16, PcmPublisher.BufferPolicy.DROP_OLDEST);
+ mAudioCapture.setAudioCaptureCallback(mPublisher);
+ mPublisher.subscribe(new PcmPublisher.Subscriber() {
+     public void onSubscribe(PcmPublisher.Subscription s) {
+         mSubscription = s;
+         s.request(4);
+     }
+     public void onNext(byte[] data, int size) {
+         mEncoder.encode(data, size);
+         mSubscription.request(1);
+     }
+     public void onError(Throwable t) {
+     }
+     public void onComplete() {
+     }
+ });
+
+ mAudioCapture.stop();
+ mPublisher.complete();
+ */
+public class PcmPublisher implements AudioCapture.AudioCaptureCallback {
+
+    private static final String TAG = PcmPublisher.class.getSimpleName();
+
+    private final int mBufferFrames;
+    private final int mPolicy;
+
+    private volatile Inner[] mSubscribers = new Inner[0];
+
+    public PcmPublisher() {
+        this(16, BufferPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * @param bufferFrames 每个订阅者最多缓冲的帧数（一次回调为一帧）
+     * @param policy 缓冲满时的处理，参看BufferPolicy
+     */
+    public PcmPublisher(int bufferFrames, int policy) {
+        mBufferFrames = Math.max(1, bufferFrames);
+        mPolicy = policy;
+    }
+
+    /**
+     * 增加订阅者，在调用线程上回调onSubscribe
+     */
+    public void subscribe(Subscriber subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber == null");
+        }
+        Inner inner = new Inner(subscriber);
+        //先onSubscribe再加入，保证onNext不会早于onSubscribe
+        subscriber.onSubscribe(inner);
+        if (!inner.cancelled) {
+            add(inner);
+        }
+    }
+
+    /**
+     * 当前订阅者个数
+     */
+    public int getSubscriberCount() {
+        return mSubscribers.length;
+    }
+
+    /**
+     * 采集结束，各订阅者取完缓冲的帧后收到onComplete，之后被移除
+     */
+    public void complete() {
+        for (Inner inner : mSubscribers) {
+            inner.done = true;
+            inner.drain();
+        }
+    }
+
+    /**
+     * 采集出错，立即向所有订阅者回调onError并移除，缓冲的帧被丢弃
+     */
+    public void error(Throwable t) {
+        for (Inner inner : mSubscribers) {
+            inner.fail(t);
+        }
+    }
+
+    @Override
+    public void onPCMDataAvailable(byte[] data, int size) {
+        for (Inner inner : mSubscribers) {
+            inner.offer(data, size);
+        }
+    }
+
+    private synchronized void add(Inner inner) {
+        Inner[] old = mSubscribers;
+        Inner[] subscribers = new Inner[old.length + 1];
+        System.arraycopy(old, 0, subscribers, 0, old.length);
+        subscribers[old.length] = inner;
+        mSubscribers = subscribers;
+    }
+
+    private synchronized void remove(Inner inner) {
+        Inner[] old = mSubscribers;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == inner) {
+                Inner[] subscribers = new Inner[old.length - 1];
+                System.arraycopy(old, 0, subscribers, 0, i);
+                System.arraycopy(old, i + 1, subscribers, i, old.length - i - 1);
+                mSubscribers = subscribers;
+                return;
+            }
+        }
+    }
+
+    /**
+     * 每个订阅者一份：有界环形缓冲 + 需求计数。
+     * wip计数保证同一时刻只有一个线程在投递，采集线程和request线程谁先进入谁负责投递。
+     */
+    private final class Inner implements Subscription {
+
+        private final Subscriber subscriber;
+
+        private final byte[][] slots = new byte[mBufferFrames][];
+        private final int[] sizes = new int[mBufferFrames];
+        private int head;
+        private int count;
+
+        private byte[] delivering = new byte[0];   //投递中的帧，与缓冲槽交换，不额外拷贝
+
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicLong dropped = new AtomicLong();
+
+        private volatile boolean cancelled;
+        private volatile boolean done;
+        private volatile Throwable error;
+
+        Inner(Subscriber subscriber) {
+            this.subscriber = subscriber;
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = new byte[0];
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("request must be > 0: " + n));
+                return;
+            }
+            while (true) {
+                long current = requested.get();
+                long next = current + n;
+                if (next < 0) {
+                    next = Long.MAX_VALUE;
+                }
+                if (requested.compareAndSet(current, next)) {
+                    break;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            remove(this);
+        }
+
+        @Override
+        public long getDroppedFrames() {
+            return dropped.get();
+        }
+
+        @Override
+        public int getBufferedFrames() {
+            synchronized (this) {
+                return count;
+            }
+        }
+
+        void offer(byte[] data, int size) {
+            if (cancelled || done) {
+                return;
+            }
+            synchronized (this) {
+                if (count == slots.length) {
+                    if (mPolicy == BufferPolicy.DROP_NEWEST) {
+                        dropped.incrementAndGet();
+                        return;
+                    } else if (mPolicy == BufferPolicy.ERROR) {
+                        dropped.incrementAndGet();
+                        error = new IllegalStateException("subscriber can not keep up, buffer " + slots.length + " frames");
+                    } else {
+                        head = (head + 1) % slots.length;
+                        count--;
+                        dropped.incrementAndGet();
+                    }
+                }
+                if (error == null) {
+                    int index = (head + count) % slots.length;
+                    if (slots[index].length < size) {
+                        slots[index] = new byte[size];
+                    }
+                    System.arraycopy(data, 0, slots[index], 0, size);
+                    sizes[index] = size;
+                    count++;
+                }
+            }
+            drain();
+        }
+
+        void fail(Throwable t) {
+            error = t;
+            drain();
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            while (true) {
+                if (cancelled) {
+                    clear();
+                    return;
+                }
+                Throwable t = error;
+                if (t != null) {
+                    terminate();
+                    subscriber.onError(t);
+                    return;
+                }
+                while (requested.get() > 0) {
+                    int size;
+                    synchronized (this) {
+                        if (count == 0) {
+                            break;
+                        }
+                        byte[] data = slots[head];
+                        slots[head] = delivering;
+                        delivering = data;
+                        size = sizes[head];
+                        head = (head + 1) % slots.length;
+                        count--;
+                    }
+                    if (requested.get() != Long.MAX_VALUE) {
+                        requested.decrementAndGet();
+                    }
+                    try {
+                        subscriber.onNext(delivering, size);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "subscriber onNext error", e);
+                        terminate();
+                        subscriber.onError(e);
+                        return;
+                    }
+                    if (cancelled) {
+                        clear();
+                        return;
+                    }
+                }
+                if (done && getBufferedFrames() == 0) {
+                    terminate();
+                    subscriber.onComplete();
+                    return;
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void terminate() {
+            cancelled = true;
+            remove(this);
+            clear();
+        }
+
+        private synchronized void clear() {
+            head = 0;
+            count = 0;
+        }
+    }
+
+    public interface BufferPolicy {
+
+        int DROP_OLDEST = 0;      // 丢弃缓冲中最旧的一帧，保证拿到的是最新数据
+        int DROP_NEWEST = 1;      // 丢弃新到的帧，保证缓冲中的数据连续
+        int ERROR = 2;            // 以onError结束订阅，适合不能容忍丢帧的消费者（如写文件）
+    }
+
+    public interface Subscriber {
+
+        /**
+         * 订阅成功，通过subscription.request(n)开始接收数据
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * 一帧PCM，data在回调返回后会被复用
+         */
+        void onNext(byte[] data, int size);
+
+        void onError(Throwable t);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+
+        /**
+         * 再请求n帧，n累加，Long.MAX_VALUE表示不限
+         */
+        void request(long n);
+
+        void cancel();
+
+        /**
+         * 因缓冲满被丢弃的帧数
+         */
+        long getDroppedFrames();
+
+        /**
+         * 当前缓冲中未投递的帧数
+         */
+        int getBufferedFrames();
+    }
+}
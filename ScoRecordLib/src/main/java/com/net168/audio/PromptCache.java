@@ -0,0 +1,278 @@
+package com.net168.audio;
+
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.util.Log;
+import com.net168.audio.AudioPlayer.AudioParam;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 短提示音缓存（滴声、"开始录音"等）
+ * <p>
+ * PCM数据常驻内存，并可以预先创建好MODE_STATIC的AudioTrack，再次播放只需要reloadStaticData，几毫秒内即可出声。
+ * 按字节预算做LRU淘汰，静态AudioTrack持有一份数据拷贝，也计入预算。
+ * 每个进程能同时存在的AudioTrack数量有限，静态AudioTrack另按个数上限释放最久未使用的，PCM数据仍保留，下次播放时重建。
+ *
+ *
+ * sample:
+ mPromptCache = new PromptCache(new AudioParam(AudioCapture.AUDIO_SAMPLE_RATE_16, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT), 512 * 1024);
+ mPromptCache.load("beep", "/sdcard/beep.pcm", true);
+
+ mPromptCache.play("beep");
+
+ mPromptCache.release();
+ */
+public class PromptCache {
+
+    private final static String TAG = PromptCache.class.getSimpleName();
+
+    private final static int DEFAULT_MAX_TRACKS = 8;
+
+    private final AudioParam audioParam;
+
+    private final int bytesPerFrame;
+
+    private final long maxBytes;
+
+    private final int maxTracks;
+
+    private long sizeBytes;
+
+    private int trackCount;
+
+    private long hitCount;
+
+    private long missCount;
+
+    private long evictionCount;
+
+    // accessOrder = true，迭代顺序即最久未使用 ---> 最近使用
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param audioParam 所有提示音的格式
+     * @param maxBytes 缓存字节预算
+     */
+    public PromptCache(AudioParam audioParam, long maxBytes) {
+        this(audioParam, maxBytes, DEFAULT_MAX_TRACKS);
+    }
+
+    /**
+     * @param maxTracks 同时存在的静态AudioTrack个数上限，默认8
+     */
+    public PromptCache(AudioParam audioParam, long maxBytes, int maxTracks) {
+        this.audioParam = audioParam;
+        this.bytesPerFrame = audioParam.getBytesPerFrame();
+        this.maxBytes = maxBytes;
+        this.maxTracks = Math.max(1, maxTracks);
+    }
+
+    /**
+     * 从PCM文件加载提示音
+     *
+     * @param prebuild 是否立即创建静态AudioTrack，否则在第一次播放时创建
+     */
+    public boolean load(String key, String filename, boolean prebuild) {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(filename);
+            int size = (int) fis.getChannel().size();
+            byte[] pcm = new byte[size];
+            int read = 0;
+            while (read < size) {
+                int ret = fis.read(pcm, read, size - read);
+                if (ret < 0) {
+                    break;
+                }
+                read += ret;
+            }
+            return put(key, pcm, read, prebuild);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 放入提示音，缓存直接持有data，调用方不能再修改
+     *
+     * @param prebuild 是否立即创建静态AudioTrack，否则在第一次播放时创建
+     */
+    public synchronized boolean put(String key, byte[] data, int size, boolean prebuild) {
+        size -= size % bytesPerFrame;
+        //连同静态AudioTrack中的拷贝必须能放进预算
+        if (size <= 0 || size * 2L > maxBytes) {
+            Log.w(TAG, "put fail, invalid size: " + size + ", key = " + key);
+            return false;
+        }
+        remove(key);
+
+        Entry entry = new Entry(data, size);
+        entries.put(key, entry);
+        sizeBytes += entry.size;
+        if (prebuild) {
+            buildTrack(entry);
+        }
+        trimToSize(entry);
+        return true;
+    }
+
+    /**
+     * 播放提示音
+     *
+     * @return 未命中缓存或静态AudioTrack创建失败返回false，两者都计为未命中
+     */
+    public synchronized boolean play(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || (entry.track == null && !buildTrack(entry))) {
+            missCount++;
+            return false;
+        }
+        hitCount++;
+        trimToSize(entry);
+
+        AudioTrack track = entry.track;
+        if (track.getPlayState() != AudioTrack.PLAYSTATE_STOPPED) {
+            track.stop();
+        }
+        //静态模式重播：重新载入数据，播放头回到开头
+        track.reloadStaticData();
+        track.play();
+        return true;
+    }
+
+    public synchronized void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            releaseTrack(entry);
+            sizeBytes -= entry.size;
+        }
+    }
+
+    public synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * 当前存在的静态AudioTrack个数
+     */
+    public synchronized int getTrackCount() {
+        return trackCount;
+    }
+
+    /**
+     * 当前占用字节数（PCM数据 + 静态AudioTrack中的拷贝）
+     */
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public synchronized void release() {
+        for (Entry entry : entries.values()) {
+            releaseTrack(entry);
+        }
+        entries.clear();
+        sizeBytes = 0;
+        trackCount = 0;
+    }
+
+    private boolean buildTrack(Entry entry) {
+        trimTracks(entry, maxTracks - 1);
+        AudioTrack track = new AudioTrack(AudioManager.STREAM_MUSIC,
+            audioParam.rate,
+            audioParam.channel,
+            audioParam.sampleBit,
+            entry.size,
+            AudioTrack.MODE_STATIC);
+        if (track.getState() == AudioTrack.STATE_UNINITIALIZED) {
+            Log.e(TAG, "init static AudioTrack fail，err code：" + track.getState());
+            track.release();
+            return false;
+        }
+        //静态模式：数据必须在play之前一次性写入
+        int written = track.write(entry.data, 0, entry.size);
+        if (written != entry.size) {
+            Log.e(TAG, "write static AudioTrack fail, written = " + written);
+            track.release();
+            return false;
+        }
+        entry.track = track;
+        sizeBytes += entry.size;
+        trackCount++;
+        return true;
+    }
+
+    /**
+     * 释放最久未使用的静态AudioTrack，直到不超过max个，只释放AudioTrack，PCM数据保留；keep不释放
+     */
+    private void trimTracks(Entry keep, int max) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (trackCount > max && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry != keep) {
+                releaseTrack(entry);
+            }
+        }
+    }
+
+    private void releaseTrack(Entry entry) {
+        if (entry.track != null) {
+            entry.track.release();
+            entry.track = null;
+            sizeBytes -= entry.size;
+            trackCount--;
+        }
+    }
+
+    /**
+     * 淘汰最久未使用的提示音，直到不超过预算；keep为刚使用的条目，不淘汰
+     */
+    private void trimToSize(Entry keep) {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (sizeBytes > maxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry == keep) {
+                continue;
+            }
+            iterator.remove();
+            releaseTrack(entry);
+            sizeBytes -= entry.size;
+            evictionCount++;
+        }
+    }
+
+    private static final class Entry {
+
+        Entry(byte[] data, int size) {
+            this.data = data;
+            this.size = size;
+        }
+
+        private final byte[] data;
+        private final int size;
+        private AudioTrack track;
+    }
+}
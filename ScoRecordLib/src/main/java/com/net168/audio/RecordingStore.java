@@ -0,0 +1,443 @@
+package com.net168.audio;
+
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 内存占用有上限的录音暂存，适合通话结束后再上传整段录音
+ * <p>
+ * 采集数据按固定大小分块追加，写满的块交给后台线程用Deflater压缩；内存中的数据超过上限时，
+ * 最旧的压缩块写入临时文件，只保留文件偏移。内存占用约为 上限 + 几个块，与通话时长无关。
+ * 采集线程只做一次拷贝，压缩和写文件都在后台线程。
+ *
+ *
+ * sample:
+ mStore = new RecordingStore(context.getCacheDir(), 2 * 1024 * 1024);
+ mAudioCapture.setAudioCaptureCallback(mStore);
+
+ mAudioCapture.stop();
+ mStore.finish();
+ InputStream in = mStore.openStream();
+ ...
+ in.close();
+ mStore.release();
+ */
+public class RecordingStore implements AudioCapture.AudioCaptureCallback {
+
+    private static final String TAG = RecordingStore.class.getSimpleName();
+
+    private static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private final int mChunkSize;
+    private final long mMemoryCap;
+    private final File mTempDir;
+
+    private final Object mLock = new Object();
+    private final List<Chunk> mChunks = new ArrayList<>();
+    private long mMemoryBytes;      //块占用的内存（未压缩块按原大小，压缩块按压缩后大小）
+    private long mTotalBytes;       //已封存的PCM字节数
+    private long mSpilledBytes;     //写入临时文件的字节数
+    private int mSpillCursor;       //下一个待检查是否写入文件的块
+
+    private byte[] mCurrent;        //正在追加的块，只在采集线程访问
+    private int mCurrentSize;
+    private volatile boolean mFinished;
+
+    private final ExecutorService mWorker;
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+    private byte[] mDeflateBuffer;
+
+    private File mSpillFile;
+    private RandomAccessFile mSpillRaf;
+    private FileChannel mSpillChannel;
+
+    /**
+     * @param tempDir 超出内存上限时临时文件所在目录
+     * @param memoryCapBytes 内存中块数据的上限
+     */
+    public RecordingStore(File tempDir, long memoryCapBytes) {
+        this(tempDir, memoryCapBytes, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize 分块大小，默认64KB
+     */
+    public RecordingStore(File tempDir, long memoryCapBytes, int chunkSize) {
+        mTempDir = tempDir;
+        mMemoryCap = memoryCapBytes;
+        mChunkSize = chunkSize;
+        mDeflateBuffer = PcmBufferPool.acquire(chunkSize + chunkSize / 8 + 64);
+        mWorker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        r.run();
+                        PcmBufferPool.trimThreadCache();
+                    }
+                }, "RecordingStore-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void onPCMDataAvailable(byte[] data, int size) {
+        append(data, 0, size);
+    }
+
+    /**
+     * 追加PCM数据，需在同一线程调用
+     */
+    public void append(byte[] data, int offset, int size) {
+        if (mFinished) {
+            Log.w(TAG, "append after finish, ignored");
+            return;
+        }
+        while (size > 0) {
+            if (mCurrent == null) {
+                mCurrent = PcmBufferPool.acquire(mChunkSize);
+                mCurrentSize = 0;
+            }
+            int n = Math.min(size, mChunkSize - mCurrentSize);
+            System.arraycopy(data, offset, mCurrent, mCurrentSize, n);
+            mCurrentSize += n;
+            offset += n;
+            size -= n;
+            if (mCurrentSize == mChunkSize) {
+                seal();
+            }
+        }
+    }
+
+    /**
+     * 录制结束，封存最后不足一块的数据；需在append的线程调用，之后openStream可读到全部数据
+     */
+    public void finish() {
+        if (mFinished) {
+            return;
+        }
+        if (mCurrent != null && mCurrentSize > 0) {
+            seal();
+        }
+        mFinished = true;
+    }
+
+    private void seal() {
+        final Chunk chunk = new Chunk(mCurrent, mCurrentSize);
+        mCurrent = null;
+        mCurrentSize = 0;
+        synchronized (mLock) {
+            mChunks.add(chunk);
+            mMemoryBytes += chunk.rawSize;
+            mTotalBytes += chunk.rawSize;
+        }
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                compress(chunk);
+                spillIfNeeded();
+            }
+        });
+    }
+
+    /**
+     * 后台线程：压缩一个块，原始缓冲回收复用
+     */
+    private void compress(Chunk chunk) {
+        byte[] raw = chunk.raw;
+        mDeflater.reset();
+        mDeflater.setInput(raw, 0, chunk.rawSize);
+        mDeflater.finish();
+        int length = 0;
+        while (!mDeflater.finished()) {
+            if (length == mDeflateBuffer.length) {
+                byte[] larger = PcmBufferPool.acquire(mDeflateBuffer.length * 2);
+                System.arraycopy(mDeflateBuffer, 0, larger, 0, length);
+                PcmBufferPool.release(mDeflateBuffer);
+                mDeflateBuffer = larger;
+            }
+            length += mDeflater.deflate(mDeflateBuffer, length, mDeflateBuffer.length - length);
+        }
+        byte[] compressed = Arrays.copyOf(mDeflateBuffer, length);
+        synchronized (mLock) {
+            chunk.data = compressed;
+            chunk.raw = null;
+            mMemoryBytes += length - chunk.rawSize;
+        }
+        PcmBufferPool.release(raw);
+    }
+
+    /**
+     * 后台线程：内存超过上限时，按从旧到新把压缩块写入临时文件
+     */
+    private void spillIfNeeded() {
+        while (true) {
+            Chunk chunk;
+            synchronized (mLock) {
+                if (mMemoryBytes <= mMemoryCap || mSpillCursor >= mChunks.size()) {
+                    return;
+                }
+                chunk = mChunks.get(mSpillCursor);
+                if (chunk.data == null) {
+                    //还未压缩，等压缩完成后再处理
+                    return;
+                }
+            }
+            try {
+                long offset = appendToSpillFile(chunk.data);
+                synchronized (mLock) {
+                    chunk.spillOffset = offset;
+                    chunk.spillLength = chunk.data.length;
+                    mMemoryBytes -= chunk.data.length;
+                    mSpilledBytes += chunk.data.length;
+                    chunk.data = null;
+                    mSpillCursor++;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "spill chunk fail, keep it in memory", e);
+                return;
+            }
+        }
+    }
+
+    private long appendToSpillFile(byte[] data) throws IOException {
+        if (mSpillChannel == null) {
+            mSpillFile = File.createTempFile("recording", ".spill", mTempDir);
+            mSpillRaf = new RandomAccessFile(mSpillFile, "rw");
+            mSpillChannel = mSpillRaf.getChannel();
+        }
+        long offset = mSpillChannel.size();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += mSpillChannel.write(buffer, position);
+        }
+        return offset;
+    }
+
+    /**
+     * 读取第index块的原始PCM
+     *
+     * @return 写入out的字节数
+     */
+    private int readChunk(int index, byte[] out, Inflater inflater) throws IOException {
+        Chunk chunk;
+        byte[] data;
+        long spillOffset;
+        int spillLength;
+        synchronized (mLock) {
+            chunk = mChunks.get(index);
+            if (chunk.raw != null) {
+                System.arraycopy(chunk.raw, 0, out, 0, chunk.rawSize);
+                return chunk.rawSize;
+            }
+            data = chunk.data;
+            spillOffset = chunk.spillOffset;
+            spillLength = chunk.spillLength;
+        }
+        int length;
+        boolean pooled = data == null;
+        if (data != null) {
+            length = data.length;
+        } else {
+            //写入文件后不再修改，位置读取可以与后台追加并发
+            data = PcmBufferPool.acquire(spillLength);
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, spillLength);
+            long position = spillOffset;
+            while (buffer.hasRemaining()) {
+                int read = mSpillChannel.read(buffer, position);
+                if (read < 0) {
+                    PcmBufferPool.release(data);
+                    throw new IOException("spill file truncated");
+                }
+                position += read;
+            }
+            length = spillLength;
+        }
+        inflater.reset();
+        inflater.setInput(data, 0, length);
+        try {
+            int size = 0;
+            while (size < chunk.rawSize && !inflater.finished()) {
+                size += inflater.inflate(out, size, chunk.rawSize - size);
+            }
+            return size;
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt chunk " + index, e);
+        } finally {
+            if (pooled) {
+                PcmBufferPool.release(data);
+            }
+        }
+    }
+
+    /**
+     * 从头顺序读取已封存的全部PCM；录制过程中打开时，读到打开时刻之后封存的块为止
+     */
+    public InputStream openStream() {
+        return new ChunkInputStream();
+    }
+
+    /**
+     * 已封存的PCM字节数
+     */
+    public long getTotalBytes() {
+        synchronized (mLock) {
+            return mTotalBytes;
+        }
+    }
+
+    /**
+     * 块数据当前占用的内存
+     */
+    public long getMemoryBytes() {
+        synchronized (mLock) {
+            return mMemoryBytes;
+        }
+    }
+
+    /**
+     * 写入临时文件的压缩数据字节数
+     */
+    public long getSpilledBytes() {
+        synchronized (mLock) {
+            return mSpilledBytes;
+        }
+    }
+
+    /**
+     * 释放内存并删除临时文件
+     */
+    public void release() {
+        mFinished = true;
+        mWorker.shutdownNow();
+        boolean terminated = false;
+        try {
+            //等待正在进行的压缩或写文件结束，再关闭文件和Deflater
+            terminated = mWorker.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (mLock) {
+            //后台线程已结束时，未压缩块的缓冲不会再被使用，归还缓冲池
+            for (Chunk chunk : mChunks) {
+                if (terminated) {
+                    PcmBufferPool.release(chunk.raw);
+                }
+                chunk.raw = null;
+            }
+            mChunks.clear();
+            mMemoryBytes = 0;
+        }
+        if (terminated) {
+            PcmBufferPool.release(mDeflateBuffer);
+        }
+        mDeflateBuffer = null;
+        PcmBufferPool.release(mCurrent);
+        mCurrent = null;
+        if (mSpillRaf != null) {
+            try {
+                mSpillRaf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mSpillRaf = null;
+            mSpillChannel = null;
+        }
+        if (mSpillFile != null && !mSpillFile.delete()) {
+            Log.w(TAG, "delete spill file fail: " + mSpillFile);
+        }
+        mSpillFile = null;
+        mDeflater.end();
+    }
+
+    private static final class Chunk {
+
+        Chunk(byte[] raw, int rawSize) {
+            this.raw = raw;
+            this.rawSize = rawSize;
+        }
+
+        private final int rawSize;
+        private byte[] raw;          //未压缩
+        private byte[] data;         //已压缩，在内存中
+        private long spillOffset;    //已压缩，在临时文件中
+        private int spillLength;
+    }
+
+    private final class ChunkInputStream extends InputStream {
+
+        private final Inflater inflater = new Inflater();
+        private final byte[] buffer = PcmBufferPool.acquire(mChunkSize);
+        private int chunkIndex;
+        private int position;
+        private int limit;
+        private boolean closed;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (position == limit && !nextChunk()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        private boolean nextChunk() throws IOException {
+            synchronized (mLock) {
+                if (chunkIndex >= mChunks.size()) {
+                    return false;
+                }
+            }
+            limit = readChunk(chunkIndex++, buffer, inflater);
+            position = 0;
+            return limit > 0 || nextChunk();
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                inflater.end();
+                PcmBufferPool.release(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package com.net168.audio;
+
+import android.media.AudioFormat;
+import android.media.AudioTimestamp;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * 边播边录的同步录制：把采集数据按播放位置对齐后输出，输出的第k帧就是播放第k帧（按采集采样频率换算）时录到的声音
+ * <p>
+ * 分别求出 播放第0帧实际输出的时刻 和 采集第0帧实际采集的时刻，两者之差换算为帧数就是需要丢弃（或在开头补静音）的采集数据。
+ * 播放侧使用AudioTrack.getTimestamp（API 19），采集侧使用AudioRecord.getTimestamp（API 24），
+ * 两侧都有硬件时间戳时为SyncMode.TIMESTAMP，对齐后继续跟踪两侧时钟的漂移，超过0.5ms时丢弃或重复一帧修正。
+ * <p>
+ * 任一侧没有硬件时间戳时为SyncMode.CALIBRATED：改用播放头位置和读取返回的时刻（多次观测取最小值去掉调度抖动），
+ * 这两个时刻都不含 输出+输入 的硬件延迟，由setCalibratedLatencyMs()补偿。校准值按设备测一次即可：
+ * 校准值为0时用宽带噪声等作为播放内容录一段，estimateLatencyFrames()求出的残余延迟即为校准值。
+ * <p>
+ * 对齐前的采集数据暂存（最多MAX_PENDING_MS），对齐后直接透传给下游，不再拷贝。
+ * 所有回调都在采集线程上，采集结束（onCaptureStopped）后状态复位，下一次start()重新对齐。
+ * 播放内容需要完整写入AudioTrack，AudioPlayer的丢帧或压缩会破坏对齐，建议用play(filename)播放。
+ *
+ *
+ * sample:
+ mSyncSession = new SyncRecordSession(audioPlayer, mAudioCapture.getPcmFormat(), AudioCapture.AUDIO_SAMPLE_RATE_44_1, recordingStore);
+ mSyncSession.setCalibratedLatencyMs(latencyMs);
+ mAudioCapture.setAudioCaptureCallback(mSyncSession);
+ mAudioCapture.start();
+ audioPlayer.play(referenceFile);
+
+ mAudioCapture.stop();
+ audioPlayer.stop();
+ Log.i(TAG, mSyncSession.getResult().toString());
+ */
+public class SyncRecordSession implements AudioCapture.AudioCaptureTimestampCallback, AudioCapture.AudioCaptureStopCallback {
+
+    private static final String TAG = SyncRecordSession.class.getSimpleName();
+
+    private static final int MAX_PENDING_MS = 3000;         // 对齐前最多暂存的采集时长
+    private static final int HARDWARE_WAIT_MS = 1000;       // 开始播放后等待硬件时间戳的时长
+    private static final int RESYNC_MS = 50;                // 偏差超过后立即修正（如AudioRecord重建）
+    private static final float DRIFT_SMOOTH = 0.95f;
+
+    private final AudioPlayer mPlayer;
+    private final AudioCapture.AudioCaptureCallback mSink;
+    private final int mSampleRate;
+    private final int mBytesPerFrame;
+    private final byte mSilence;
+    private final int mDriftLimit;      // 漂移修正门限（帧）
+
+    private volatile long mCalibratedNanos;
+    private volatile boolean mCalibrated;
+
+    private AudioTimestamp mTrackTimestamp;
+
+    // 采集第0帧的时刻
+    private long mCaptureZero;          // 硬件时间戳
+    private boolean mCaptureHardware;
+    private long mCaptureSoftZero;      // 读取返回的时刻
+    private boolean mHasCaptureSoftZero;
+
+    // 播放第0帧离开混音器的时刻（软件方式）
+    private long mPlaybackZero;
+    private boolean mHasPlaybackZero;
+    private long mPlaybackStartNanos;
+    private long mLastHardwareOffset = Long.MIN_VALUE;
+
+    private long mCaptured;             // 已收到的采集帧数
+
+    // 对齐前的暂存，环形
+    private byte[] mPending;
+    private int mPendingHead;
+    private int mPendingBytes;
+    private long mPendingStart;         // mPending第一帧的采集帧位置
+
+    private boolean mLocked;
+    private long mShift;                // 输出第k帧 = 采集第k + mShift帧
+    private long mSkipFrames;           // 还需从后续输入中丢弃的帧数
+    private float mDrift;
+    private byte[] mScratch;
+    private final byte[] mLastFrame;
+
+    private volatile int mMode = SyncMode.NONE;
+    private volatile long mOffsetFrames;
+    private volatile long mCorrectedFrames;
+    private volatile int mResyncs;
+    private volatile long mOutputFrames;
+
+    /**
+     * @param player 播放参考音频的AudioPlayer
+     * @param format 采集数据格式
+     * @param sampleRate 采集采样频率，可以与播放不同
+     * @param sink 接收对齐后的数据，实现AudioCaptureStopCallback时同时转发结束通知
+     */
+    public SyncRecordSession(AudioPlayer player, PcmConverter.Format format, int sampleRate, AudioCapture.AudioCaptureCallback sink) {
+        mPlayer = player;
+        mSink = sink;
+        mSampleRate = sampleRate;
+        mBytesPerFrame = format.getBytesPerFrame();
+        mSilence = format.getEncoding() == AudioFormat.ENCODING_PCM_8BIT ? (byte) 0x80 : 0;
+        mDriftLimit = Math.max(1, sampleRate / 2000);
+        mLastFrame = new byte[mBytesPerFrame];
+        reset();
+    }
+
+    /**
+     * 没有硬件时间戳时补偿的 输出+输入 延迟，参看estimateLatencyFrames()
+     */
+    public void setCalibratedLatencyMs(float latencyMs) {
+        mCalibratedNanos = (long) (latencyMs * 1000000);
+        mCalibrated = true;
+    }
+
+    public Result getResult() {
+        return new Result(mMode, mOffsetFrames, mCorrectedFrames, mResyncs, mOutputFrames, mSampleRate);
+    }
+
+    @Override
+    public void onCaptureTimestamp(long framePosition, long nanoTime, boolean hardware) {
+        long zero = nanoTime - framePosition * 1000000000L / mSampleRate;
+        if (hardware) {
+            mCaptureZero = zero;
+            mCaptureHardware = true;
+        } else {
+            //读取返回得越及时越接近真实值，取最小值
+            mCaptureSoftZero = mHasCaptureSoftZero ? Math.min(mCaptureSoftZero, zero) : zero;
+            mHasCaptureSoftZero = true;
+        }
+    }
+
+    @Override
+    public void onPCMDataAvailable(byte[] data, int size) {
+        int frames = size / mBytesPerFrame;
+        size = frames * mBytesPerFrame;
+        if (frames == 0) {
+            return;
+        }
+        if (!mLocked) {
+            appendPending(data, size);
+            mCaptured += frames;
+            tryLock();
+            return;
+        }
+        mCaptured += frames;
+        if (mMode == SyncMode.TIMESTAMP) {
+            trackDrift();
+        }
+        emit(data, size);
+    }
+
+    @Override
+    public void onCaptureStopped() {
+        if (!mLocked && mPendingBytes > 0) {
+            //录制很短，没等到硬件时间戳，用已有的估计对齐
+            long offset = softwareOffset();
+            if (offset != Long.MIN_VALUE) {
+                lock(SyncMode.CALIBRATED, offset);
+            } else {
+                Log.w(TAG, "playback not started, drop " + mPendingBytes / mBytesPerFrame + " frames");
+            }
+        }
+        if (mSink instanceof AudioCapture.AudioCaptureStopCallback) {
+            ((AudioCapture.AudioCaptureStopCallback) mSink).onCaptureStopped();
+        }
+        PcmBufferPool.release(mPending);
+        PcmBufferPool.release(mScratch);
+        mPending = null;
+        mScratch = null;
+        reset();
+    }
+
+    private void reset() {
+        mCaptureHardware = false;
+        mHasCaptureSoftZero = false;
+        mHasPlaybackZero = false;
+        mLastHardwareOffset = Long.MIN_VALUE;
+        mCaptured = 0;
+        mPendingHead = 0;
+        mPendingBytes = 0;
+        mPendingStart = 0;
+        mLocked = false;
+        mShift = 0;
+        mSkipFrames = 0;
+        mDrift = 0;
+    }
+
+    /**
+     * 两侧都有硬件时间戳且连续两次估计一致时按硬件时间戳对齐；开始播放HARDWARE_WAIT_MS后仍没有则用软件方式
+     */
+    private void tryLock() {
+        long softOffset = softwareOffset();
+        if (softOffset == Long.MIN_VALUE) {
+            return;
+        }
+        long hardOffset = hardwareOffset();
+        if (hardOffset != Long.MIN_VALUE) {
+            if (mLastHardwareOffset != Long.MIN_VALUE && Math.abs(hardOffset - mLastHardwareOffset) <= mDriftLimit) {
+                lock(SyncMode.TIMESTAMP, hardOffset);
+                return;
+            }
+            mLastHardwareOffset = hardOffset;
+        }
+        if (System.nanoTime() - mPlaybackStartNanos > HARDWARE_WAIT_MS * 1000000L) {
+            lock(SyncMode.CALIBRATED, softOffset);
+        }
+    }
+
+    /**
+     * 硬件时间戳换算的偏移（采集帧），取不到返回Long.MIN_VALUE
+     */
+    private long hardwareOffset() {
+        if (!mCaptureHardware || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return Long.MIN_VALUE;
+        }
+        if (mTrackTimestamp == null) {
+            mTrackTimestamp = new AudioTimestamp();
+        }
+        int playRate = mPlayer.getSampleRate();
+        if (playRate <= 0 || !mPlayer.getTimestamp(mTrackTimestamp)) {
+            return Long.MIN_VALUE;
+        }
+        long playbackZero = mTrackTimestamp.nanoTime - mTrackTimestamp.framePosition * 1000000000L / playRate;
+        return toFrames(playbackZero - mCaptureZero);
+    }
+
+    /**
+     * 播放头位置和读取时刻换算的偏移加上校准延迟，播放尚未开始返回Long.MIN_VALUE
+     */
+    private long softwareOffset() {
+        long head = mPlayer.getPlaybackHeadPosition();
+        int playRate = mPlayer.getSampleRate();
+        if (head > 0 && playRate > 0) {
+            long now = System.nanoTime();
+            long zero = now - head * 1000000000L / playRate;
+            if (!mHasPlaybackZero) {
+                mPlaybackStartNanos = now;
+                mPlaybackZero = zero;
+                mHasPlaybackZero = true;
+            } else {
+                //播放头按混音周期跳变，取最小值
+                mPlaybackZero = Math.min(mPlaybackZero, zero);
+            }
+        }
+        if (!mHasPlaybackZero || !mHasCaptureSoftZero) {
+            return Long.MIN_VALUE;
+        }
+        //校准值是按软件时刻测得的往返延迟，即使一侧有硬件时间戳也统一使用软件时刻
+        return toFrames(mPlaybackZero - mCaptureSoftZero + mCalibratedNanos);
+    }
+
+    private long toFrames(long nanos) {
+        return Math.round(nanos * (double) mSampleRate / 1000000000L);
+    }
+
+    private void lock(int mode, long offset) {
+        if (mode == SyncMode.CALIBRATED && !mCalibrated) {
+            Log.w(TAG, "no hardware timestamp and not calibrated, output + input latency not compensated");
+        }
+        mLocked = true;
+        mMode = mode;
+        mOffsetFrames = offset;
+        mShift = offset;
+        Log.i(TAG, "sync locked, mode = " + mode + ", offset = " + offset + " frames");
+
+        //输出从采集第offset帧开始：之前的暂存丢弃，暂存之前的部分补静音
+        long frames = mPendingBytes / mBytesPerFrame;
+        if (offset < mPendingStart) {
+            emitSilence(mPendingStart - offset);
+        } else {
+            mSkipFrames = offset - mPendingStart;
+        }
+        int first = Math.min(mPending.length - mPendingHead, mPendingBytes);
+        emit(mPending, mPendingHead, first);
+        if (first < mPendingBytes) {
+            emit(mPending, 0, mPendingBytes - first);
+        }
+        mPendingStart += frames;
+        mPendingBytes = 0;
+        mPendingHead = 0;
+    }
+
+    /**
+     * 对齐后跟踪两侧时钟的偏差：平滑后超过门限丢弃或重复帧，偏差过大（AudioRecord重建等）立即修正
+     */
+    private void trackDrift() {
+        long offset = hardwareOffset();
+        if (offset == Long.MIN_VALUE) {
+            return;
+        }
+        long diff = offset - mShift;
+        long correction = 0;
+        if (Math.abs(diff) > (long) mSampleRate * RESYNC_MS / 1000) {
+            Log.w(TAG, "timestamp jump " + diff + " frames, resync");
+            mResyncs++;
+            correction = diff;
+            mDrift = 0;
+        } else {
+            mDrift = DRIFT_SMOOTH * mDrift + (1 - DRIFT_SMOOTH) * diff;
+            if (Math.abs(mDrift) >= mDriftLimit) {
+                correction = Math.round(mDrift);
+                mDrift -= correction;
+            }
+        }
+        if (correction == 0) {
+            return;
+        }
+        mShift += correction;
+        mCorrectedFrames += Math.abs(correction);
+        if (correction > 0) {
+            mSkipFrames += correction;
+        } else {
+            long repeat = -correction;
+            //先抵消尚未执行的丢弃
+            long cancel = Math.min(repeat, mSkipFrames);
+            mSkipFrames -= cancel;
+            repeatLastFrame(repeat - cancel);
+        }
+    }
+
+    private void emit(byte[] data, int size) {
+        emit(data, 0, size);
+    }
+
+    /**
+     * 扣除待丢弃的帧后交给下游，只有从中间开始时才拷贝
+     */
+    private void emit(byte[] data, int offset, int size) {
+        if (mSkipFrames > 0) {
+            int skip = (int) Math.min(mSkipFrames * mBytesPerFrame, size);
+            mSkipFrames -= skip / mBytesPerFrame;
+            offset += skip;
+            size -= skip;
+        }
+        if (size <= 0) {
+            return;
+        }
+        System.arraycopy(data, offset + size - mBytesPerFrame, mLastFrame, 0, mBytesPerFrame);
+        if (offset == 0) {
+            deliver(data, size);
+            return;
+        }
+        byte[] scratch = scratch(size);
+        System.arraycopy(data, offset, scratch, 0, size);
+        deliver(scratch, size);
+    }
+
+    private void emitSilence(long frames) {
+        for (int i = 0; i < mBytesPerFrame; i++) {
+            mLastFrame[i] = mSilence;
+        }
+        repeatLastFrame(frames);
+    }
+
+    private void repeatLastFrame(long frames) {
+        int chunkFrames = Math.max(1, mSampleRate / 50);
+        byte[] scratch = scratch(chunkFrames * mBytesPerFrame);
+        for (int i = 0; i < chunkFrames; i++) {
+            System.arraycopy(mLastFrame, 0, scratch, i * mBytesPerFrame, mBytesPerFrame);
+        }
+        while (frames > 0) {
+            int n = (int) Math.min(frames, chunkFrames);
+            deliver(scratch, n * mBytesPerFrame);
+            frames -= n;
+        }
+    }
+
+    private void deliver(byte[] data, int size) {
+        mOutputFrames += size / mBytesPerFrame;
+        mSink.onPCMDataAvailable(data, size);
+    }
+
+    private byte[] scratch(int size) {
+        if (mScratch == null || mScratch.length < size) {
+            PcmBufferPool.release(mScratch);
+            mScratch = PcmBufferPool.acquire(size);
+        }
+        return mScratch;
+    }
+
+    /**
+     * 暂存对齐前的数据，满了丢弃最旧的：它们早于开始播放，对齐时本来就会被丢弃
+     */
+    private void appendPending(byte[] data, int size) {
+        if (mPending == null) {
+            int capacity = (int) ((long) mSampleRate * MAX_PENDING_MS / 1000) * mBytesPerFrame;
+            mPending = PcmBufferPool.acquire(capacity);
+        }
+        int capacity = mPending.length - mPending.length % mBytesPerFrame;
+        int offset = 0;
+        if (size > capacity) {
+            offset = size - capacity;
+            size = capacity;
+        }
+        int overflow = mPendingBytes + size - capacity;
+        if (overflow > 0) {
+            mPendingHead = (mPendingHead + overflow) % capacity;
+            mPendingBytes -= overflow;
+        }
+        mPendingStart = mCaptured + offset / mBytesPerFrame - mPendingBytes / mBytesPerFrame;
+        int tail = (mPendingHead + mPendingBytes) % capacity;
+        int first = Math.min(capacity - tail, size);
+        System.arraycopy(data, offset, mPending, tail, first);
+        if (first < size) {
+            System.arraycopy(data, offset + first, mPending, 0, size - first);
+        }
+        mPendingBytes += size;
+    }
+
+    /**
+     * 估计录音相对参考音频的延迟：在[0, maxLagFrames]内求归一化互相关最大的位置，O(N * maxLagFrames)，用于校准
+     *
+     * @param reference 播放的参考音频（单声道）
+     * @param recording 同步录制的输出（单声道）
+     * @return 延迟帧数，录音滞后为正；没有明显相关时返回-1
+     */
+    public static int estimateLatencyFrames(short[] reference, short[] recording, int maxLagFrames) {
+        int bestLag = -1;
+        double best = 0;
+        for (int lag = 0; lag <= maxLagFrames && lag < recording.length; lag++) {
+            int n = Math.min(reference.length, recording.length - lag);
+            double cross = 0;
+            double energy = 0;
+            for (int i = 0; i < n; i++) {
+                double r = recording[i + lag];
+                cross += reference[i] * r;
+                energy += r * r;
+            }
+            if (energy <= 0) {
+                continue;
+            }
+            double score = cross / Math.sqrt(energy);
+            if (score > best) {
+                best = score;
+                bestLag = lag;
+            }
+        }
+        return bestLag;
+    }
+
+    public interface SyncMode {
+
+        int NONE = 0;          // 尚未对齐
+        int TIMESTAMP = 1;     // 两侧硬件时间戳
+        int CALIBRATED = 2;    // 软件时刻 + 校准延迟
+    }
+
+    public static final class Result {
+
+        Result(int mode, long offsetFrames, long correctedFrames, int resyncs, long outputFrames, int sampleRate) {
+            this.mode = mode;
+            this.offsetFrames = offsetFrames;
+            this.correctedFrames = correctedFrames;
+            this.resyncs = resyncs;
+            this.outputFrames = outputFrames;
+            this.sampleRate = sampleRate;
+        }
+
+        public final int mode;                 // 参看SyncMode
+        public final long offsetFrames;        // 对齐时丢弃的采集帧数，负数为开头补的静音帧数
+        public final long correctedFrames;     // 漂移修正累计丢弃/重复的帧数
+        public final int resyncs;              // 时间戳跳变后重新对齐的次数
+        public final long outputFrames;
+        public final int sampleRate;
+
+        @Override
+        public String toString() {
+            return "Result{mode=" + mode + ", offset=" + offsetFrames + " frames (" + offsetFrames * 1000f / sampleRate
+                + "ms), corrected=" + correctedFrames + ", resyncs=" + resyncs + ", output=" + outputFrames + "}";
+        }
+    }
+}
@@ -1,10 +1,17 @@
 package com.net168.audio.audiorecord;
 
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.MediaRecorder;
 import android.media.MediaRecorder.AudioSource;
+import android.os.Build;
 import android.util.Log;
 import com.net168.audio.AudioCapture;
+import com.net168.audio.LatencyTracer;
+import com.net168.audio.PcmBufferPool;
+import com.net168.audio.PcmConverter;
+import com.net168.audio.dsp.DspChain;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class AudioRecordCore {
 
@@ -13,13 +20,50 @@ public class AudioRecordCore {
     private final static int INIT = 1;
     private final static int RECORDING = 2;
 
-    private int mState = 0;  // 0 - uninit   1 - init   2 - recording
+    /**
+     * read错误分类
+     */
+    public static final int ERROR_KIND_STALL = 0;      // 连续读到0字节，数据暂时没有到达
+    public static final int ERROR_KIND_RECOVERABLE = 1; // 底层录音对象失效（如SCO路由切换后DEAD_OBJECT），重建可恢复
+    public static final int ERROR_KIND_FATAL = 2;      // 参数错误，重建也无法恢复
+
+    private static final int MIN_BACKOFF_MS = 20;
+    private static final int MAX_BACKOFF_MS = 1000;
+    private static final int MAX_RECOVERY_ATTEMPTS = 6;
+    private static final int STALL_READS = 3;
+    private static final int THREAD_JOIN_MS = 1000;
+    private static final int LOW_LATENCY_READ_MS = 10;
+    private static final int BATCH_READ_MS = 200;
+    private static final int MODE_COUNT = 3;
+
+    private volatile int mState = 0;  // 0 - uninit   1 - init   2 - recording
     private AudioRecord mAudioRecord;
     private int mRecordBufSize; //缓存区大小
-    private byte mPcmData[];  //缓存内存区域
+    private byte mPcmData[];  //缓存内存区域，按最大的读取长度分配
+    private int mMinBufSize;        //CAPTURE_MODE_DEFAULT每次读取的长度
+    private int mLowLatencyReadSize;
+    private int mBatchReadSize;
+
+    private volatile int mReadMode = AudioCapture.CAPTURE_MODE_DEFAULT;
+    private final AtomicLongArray mWakeups = new AtomicLongArray(MODE_COUNT);
+    private final AtomicLongArray mModeNanos = new AtomicLongArray(MODE_COUNT);
+    private volatile long mModeSwitches;
+
+    //重建AudioRecord使用的参数
+    private int mSampleRate;
+    private int mChannelConfig;
+    private int mAudioFormat;
 
     private InnerAudioCaptureCallback mCallback;
 
+    private volatile DspChain mDspChain;
+
+    private volatile InnerRecoveryListener mRecoveryListener;
+
+    private volatile boolean mTimestampEnabled;
+
+    private volatile ReadDataThread mReadDataThread;
+
     public AudioRecordCore() {
     }
 
@@ -28,68 +72,190 @@ public class AudioRecordCore {
         if (mState != UNINIT) {
             return true;
         }
+        mSampleRate = sampleRate;
+        mChannelConfig = channelConfig;
+        mAudioFormat = audioFormat;
         //获取最低AudioRecord内部音视频缓冲区大小，此大小依赖于各产商实现，最好不要自己计算
-        mRecordBufSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, audioFormat);
+        mMinBufSize = getMinBufferSize(sampleRate, channelConfig, audioFormat);
+        int bytesPerFrame = PcmConverter.Format.of(channelConfig, audioFormat).getBytesPerFrame();
+        mLowLatencyReadSize = Math.max(1, sampleRate * LOW_LATENCY_READ_MS / 1000) * bytesPerFrame;
+        mBatchReadSize = Math.max(1, sampleRate * BATCH_READ_MS / 1000) * bytesPerFrame;
+        //批量读取之间线程休眠，AudioRecord内部缓冲要能容纳两次读取的数据，不然会溢出
+        mRecordBufSize = mMinBufSize <= 0 ? mMinBufSize : Math.max(mMinBufSize, mBatchReadSize * 2);
         //初始化AudioRecord实例
-        mAudioRecord = new AudioRecord(AudioSource.MIC, sampleRate, channelConfig, audioFormat, mRecordBufSize);
+        mAudioRecord = newAudioRecord();
         //检测AudioRecord初始化是否成功
-        if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
-            Log.i(TAG, "init AudioRecord fail，err code：" + mAudioRecord.getState());
-            mAudioRecord = null;
+        if (mAudioRecord == null) {
             mRecordBufSize = 0;
             return false;
         } else {
             //创建一个数据缓冲区
             Log.i(TAG, "init AudioRecord success.");
             //创建一个位置用于存放后续的PCM数据
-            mPcmData = new byte[mRecordBufSize];
+            mPcmData = PcmBufferPool.acquire(Math.max(mMinBufSize, mBatchReadSize));
             mState = INIT;
             return true;
         }
     }
 
+    private AudioRecord newAudioRecord() {
+        if (mRecordBufSize <= 0) {
+            Log.i(TAG, "init AudioRecord fail, invalid buffer size：" + mRecordBufSize);
+            return null;
+        }
+        AudioRecord record = openAudioRecord(mRecordBufSize);
+        if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+            Log.i(TAG, "init AudioRecord fail，err code：" + record.getState());
+            record.release();
+            return null;
+        }
+        return record;
+    }
+
+    /**
+     * 以下两个方法只在单元测试中覆盖，用模拟的AudioRecord驱动错误恢复流程
+     */
+    int getMinBufferSize(int sampleRate, int channelConfig, int audioFormat) {
+        return AudioRecord.getMinBufferSize(sampleRate, channelConfig, audioFormat);
+    }
+
+    AudioRecord openAudioRecord(int bufferSize) {
+        return new AudioRecord(AudioSource.MIC, mSampleRate, mChannelConfig, mAudioFormat, bufferSize);
+    }
+
     /**
      * 获取缓存区大小，一般来说，回调返回的pcm缓存区大小不会大于这个数值
      */
     public int getMaxBufferSize() {
-        return mRecordBufSize;
+        return mRecordBufSize <= 0 ? 0 : Math.max(mMinBufSize, mBatchReadSize);
     }
 
+    /**
+     * 切换读取方式，参看AudioCapture.CAPTURE_MODE_*，采集线程在下一次读取前生效
+     */
+    public synchronized void setReadMode(int mode) {
+        if (mode < 0 || mode >= MODE_COUNT) {
+            throw new IllegalArgumentException("invalid read mode: " + mode);
+        }
+        mReadMode = mode;
+        //唤醒批量读取前的休眠，切换到低延迟时立即生效
+        notifyAll();
+    }
+
+    public int getReadMode() {
+        return mReadMode;
+    }
+
+    /**
+     * 某种读取方式下采集线程被唤醒的次数（read返回和休眠结束各算一次），从创建开始累计
+     */
+    public long getWakeups(int mode) {
+        return mWakeups.get(mode);
+    }
 
-    public void startRecord() {
+    /**
+     * 某种读取方式下采集的累计时长（纳秒）
+     */
+    public long getModeNanos(int mode) {
+        return mModeNanos.get(mode);
+    }
+
+    public long getModeSwitches() {
+        return mModeSwitches;
+    }
+
+
+    public synchronized void startRecord() {
         //确认状态是否待录制
         if (mState != INIT) {
             Log.w(TAG, "startRecord fail, because the state is not init");
             return;
         }
+        if (mAudioRecord == null) {
+            //上次录制恢复失败，录音对象已被释放
+            mAudioRecord = newAudioRecord();
+            if (mAudioRecord == null) {
+                Log.w(TAG, "startRecord fail, because AudioRecord can not be created");
+                return;
+            }
+        }
         mState = RECORDING;
         //启动音频录制需求
         Log.i(TAG, "set AudioRecord recording.");
         mAudioRecord.startRecording();
-        //随后要启动子线程去循环读取数据
+        //随后要启动子线程去循环读取数据，每次start都是新线程
+        mReadDataThread = new ReadDataThread();
         mReadDataThread.start();
     }
 
-    public void stopRecord() {
+    public synchronized void stopRecord() {
         //确认状态是否正在录制
         if (mState != RECORDING) {
             Log.w(TAG, "startRecord fail, because the state is not recording");
             return;
         }
         mState = INIT;
-        mAudioRecord.stop();
+        if (mAudioRecord != null) {
+            mAudioRecord.stop();
+        }
+        //唤醒退避等待中的采集线程
+        notifyAll();
     }
 
     /**
      * 恢复状态到刚执行构造函数状态
      */
     public void releaseRecord() {
-        mState = UNINIT;
-        mAudioRecord.release();
-        mAudioRecord = null;
-        mPcmData = null;
-        mRecordBufSize = 0;
-        mCallback = null;
+        ReadDataThread thread;
+        AudioRecord record;
+        byte[] pcmData;
+        synchronized (this) {
+            thread = mReadDataThread;
+            record = mAudioRecord;
+            pcmData = mPcmData;
+            //先stop让阻塞中的read返回，采集线程退出后再release，不在read过程中释放底层对象
+            if (mState == RECORDING && record != null) {
+                record.stop();
+            }
+            if (thread != null) {
+                thread.released = true;
+            }
+            mState = UNINIT;
+            mReadDataThread = null;
+            mAudioRecord = null;
+            mPcmData = null;
+            mRecordBufSize = 0;
+            mMinBufSize = 0;
+            notifyAll();
+        }
+        //采集线程退出需要本对象的锁，在锁外等待；在回调中release时不能等待自己
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(THREAD_JOIN_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive()) {
+                Log.w(TAG, "ReadDataThread not exit in " + THREAD_JOIN_MS + "ms, release on its exit");
+            }
+        }
+        //采集线程退出前还要回调onCaptureStopped，并可能仍在read或使用缓冲；
+        //在回调中release或等待超时时，回调、AudioRecord和缓冲都交给采集线程退出时处理，不在这里释放底层对象
+        synchronized (AudioCapture.class) {
+            if (thread != null && !thread.exited) {
+                thread.clearCallbackOnExit = true;
+                thread.recordToRelease = record;
+                thread.bufferToRelease = pcmData;
+                record = null;
+                pcmData = null;
+            } else {
+                mCallback = null;
+            }
+        }
+        if (record != null) {
+            record.release();
+        }
+        PcmBufferPool.release(pcmData);
     }
 
     /**
@@ -113,31 +279,368 @@ public class AudioRecordCore {
         }
     }
 
-    private Thread mReadDataThread = new Thread() {
+    /**
+     * 设置读取数据后、回调之前的处理链，传入null取消
+     */
+    public void setDspChain(DspChain dspChain) {
+        mDspChain = dspChain;
+    }
+
+    public void setRecoveryListener(InnerRecoveryListener listener) {
+        mRecoveryListener = listener;
+    }
+
+    /**
+     * 每次读取后是否回调onCaptureTimestamp
+     */
+    public void setTimestampEnabled(boolean enabled) {
+        mTimestampEnabled = enabled;
+    }
+
+    /**
+     * read错误分类，参看ERROR_KIND_*
+     */
+    static int classifyError(int code) {
+        if (code == 0) {
+            return ERROR_KIND_STALL;
+        }
+        if (code == AudioRecord.ERROR_BAD_VALUE) {
+            return ERROR_KIND_FATAL;
+        }
+        //ERROR_INVALID_OPERATION：录音对象未初始化或被系统停止；ERROR_DEAD_OBJECT / ERROR：底层对象失效
+        return ERROR_KIND_RECOVERABLE;
+    }
+
+    /**
+     * 在采集线程上等待一段时间，stop/release会提前唤醒
+     */
+    private synchronized void backoff(int ms) {
+        if (!isReading()) {
+            return;
+        }
+        try {
+            wait(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 批量读取前在采集线程上休眠到deadline，stop/release或切换读取方式会提前唤醒
+     */
+    private synchronized boolean sleepUntil(long deadlineNanos) {
+        boolean slept = false;
+        while (isReading() && mReadMode == AudioCapture.CAPTURE_MODE_BATCH) {
+            long left = deadlineNanos - System.nanoTime();
+            if (left <= 0) {
+                break;
+            }
+            try {
+                wait(left / 1000000, (int) (left % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            slept = true;
+        }
+        return slept;
+    }
+
+    /**
+     * 释放失效的AudioRecord，用相同参数重建并开始录制
+     *
+     * @return 重建成功返回新的AudioRecord；已停止或重建失败返回null
+     */
+    private synchronized AudioRecord recreate() {
+        if (!isReading()) {
+            return null;
+        }
+        if (mAudioRecord != null) {
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+        AudioRecord record = newAudioRecord();
+        if (record == null) {
+            return null;
+        }
+        record.startRecording();
+        if (record.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING) {
+            Log.w(TAG, "recreated AudioRecord can not start recording");
+            record.release();
+            return null;
+        }
+        mAudioRecord = record;
+        return record;
+    }
+
+    private synchronized AudioRecord currentRecord() {
+        return isReading() ? mAudioRecord : null;
+    }
+
+    /**
+     * 当前线程是否为仍在录制的采集线程；stop后立即start时，旧线程据此退出
+     */
+    private boolean isReading() {
+        return mState == RECORDING && mReadDataThread == Thread.currentThread();
+    }
+
+    class ReadDataThread extends Thread {
+
+        private int errorCode;
+        private int consecutiveErrors;
+        private int attempts;
+        private int backoffMs = MIN_BACKOFF_MS;
+
+        private final int bytesPerFrame = PcmConverter.Format.of(mChannelConfig, mAudioFormat).getBytesPerFrame();
+        private long framesRead;        // 本次start以来读到的帧数
+        private long recordBase;        // 当前AudioRecord开始录制时的framesRead，重建后硬件帧位置从0开始
+        private AudioTimestamp timestamp;
+
+        private int mode = -1;
+        private long accountedNanos;
+        private long lastReadNanos;
+
+        private volatile boolean released;      // releaseRecord时为true，在锁内设置
+        private boolean exited;                 // 以下由AudioCapture.class保护
+        private boolean clearCallbackOnExit;
+        private AudioRecord recordToRelease;
+        private byte[] bufferToRelease;
+
+        ReadDataThread() {
+            super("AudioRecordCore");
+        }
+
         @Override
         public void run() {
             int read;
             Log.i(TAG, "start record looper.");
-            while (mState == RECORDING) {
-                //读取mRecordBufSize长度的音频数据存入mPcmData中
-                read = mAudioRecord.read(mPcmData, 0, mRecordBufSize);
+            byte[] pcmData = mPcmData;
+            AudioRecord record = currentRecord();
+            accountedNanos = System.nanoTime();
+            lastReadNanos = accountedNanos;
+            while (record != null && isReading()) {
+                int readSize = prepareRead();
+                //按读取方式读取一段音频数据存入mPcmData中
+                read = record.read(pcmData, 0, readSize);
+                account(true);
                 //如果读取音频数据没有出现错误 ===> read 大于0
-                if (read >= AudioRecord.SUCCESS) {
+                if (read > 0) {
+                    onRecovered();
                     Log.v(TAG, "read raw pcm data, size is " + read);
+                    framesRead += read / bytesPerFrame;
+                    if (mTimestampEnabled) {
+                        reportTimestamp(record);
+                    }
+                    boolean tracing = LatencyTracer.isEnabled();
+                    if (tracing) {
+                        LatencyTracer.begin();
+                    }
+                    DspChain dspChain = mDspChain;
+                    if (dspChain != null) {
+                        dspChain.process(pcmData, read);
+                    }
+                    if (tracing) {
+                        LatencyTracer.mark(LatencyTracer.POINT_PROCESSED);
+                    }
                     synchronized (AudioCapture.class) {
                         if (mCallback != null) {
-                            mCallback.onPCMDataAvailable(mPcmData, read);
+                            mCallback.onPCMDataAvailable(pcmData, read);
                         }
                     }
-                } else {
-                    Log.w(TAG, "read data with err code = " + read);
+                } else if (isReading()) {
+                    record = onReadError(record, read);
+                }
+            }
+            account(false);
+            AudioRecord toRelease;
+            byte[] bufferToReturn;
+            synchronized (AudioCapture.class) {
+                //已被新的采集线程取代时不通知结束
+                if (mCallback != null && (mReadDataThread == this || released)) {
+                    mCallback.onCaptureStopped();
+                }
+                exited = true;
+                if (clearCallbackOnExit && mReadDataThread == null) {
+                    mCallback = null;
                 }
+                toRelease = recordToRelease;
+                bufferToReturn = bufferToRelease;
+                recordToRelease = null;
+                bufferToRelease = null;
             }
+            //releaseRecord等待超时或在回调中调用时交由本线程释放，此时已不再read
+            if (toRelease != null) {
+                toRelease.release();
+            }
+            PcmBufferPool.release(bufferToReturn);
+            PcmBufferPool.trimThreadCache();
+            Log.i(TAG, "ReadDataThread complete...");
+        }
+
+        /**
+         * 按当前读取方式决定本次读取的长度；批量读取时先休眠，等数据攒够大部分再读，read只需短暂阻塞
+         */
+        private int prepareRead() {
+            int readMode = mReadMode;
+            if (readMode != mode) {
+                if (mode >= 0) {
+                    mModeSwitches++;
+                }
+                account(false);
+                mode = readMode;
+                Log.i(TAG, "read mode -> " + readMode);
+            }
+            if (readMode == AudioCapture.CAPTURE_MODE_LOW_LATENCY) {
+                return mLowLatencyReadSize;
+            }
+            if (readMode == AudioCapture.CAPTURE_MODE_BATCH) {
+                if (sleepUntil(lastReadNanos + BATCH_READ_MS * 750000L)) {
+                    account(true);
+                }
+                //休眠期间切换到了其他方式，按新方式读取
+                return mReadMode == AudioCapture.CAPTURE_MODE_BATCH ? mBatchReadSize : prepareRead();
+            }
+            return mMinBufSize;
         }
-    };
+
+        /**
+         * 把上次统计以来的时长计入当前读取方式，wakeup为true时计一次唤醒
+         */
+        private void account(boolean wakeup) {
+            long now = System.nanoTime();
+            if (mode >= 0) {
+                mModeNanos.addAndGet(mode, now - accountedNanos);
+                if (wakeup) {
+                    mWakeups.incrementAndGet(mode);
+                }
+            }
+            accountedNanos = now;
+            if (wakeup) {
+                lastReadNanos = now;
+            }
+        }
+
+        /**
+         * 先回调读取返回的时刻与已读到的帧数；API 24以上取得AudioRecord.getTimestamp时再回调一次实际采集时刻
+         */
+        private void reportTimestamp(AudioRecord record) {
+            long now = System.nanoTime();
+            boolean hardware = false;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                if (timestamp == null) {
+                    timestamp = new AudioTimestamp();
+                }
+                hardware = record.getTimestamp(timestamp, AudioTimestamp.TIMEBASE_MONOTONIC) == AudioRecord.SUCCESS;
+            }
+            synchronized (AudioCapture.class) {
+                if (mCallback != null) {
+                    mCallback.onCaptureTimestamp(framesRead, now, false);
+                    if (hardware) {
+                        mCallback.onCaptureTimestamp(recordBase + timestamp.framePosition, timestamp.nanoTime, true);
+                    }
+                }
+            }
+        }
+
+        /**
+         * 处理一次read错误：退避等待，必要时重建AudioRecord，不会空转占满CPU
+         *
+         * @return 继续读取使用的AudioRecord，null表示放弃
+         */
+        private AudioRecord onReadError(AudioRecord record, int code) {
+            int kind = classifyError(code);
+            consecutiveErrors++;
+            if (kind == ERROR_KIND_STALL && consecutiveErrors < STALL_READS) {
+                return record;
+            }
+            if (consecutiveErrors == 1 || consecutiveErrors == STALL_READS) {
+                Log.w(TAG, "read data with err code = " + code);
+            }
+            errorCode = code;
+            if (kind == ERROR_KIND_FATAL) {
+                giveUp(code);
+                return null;
+            }
+
+            backoff(backoffMs);
+            backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+            if (kind == ERROR_KIND_STALL && consecutiveErrors < STALL_READS * 4) {
+                //只是没有数据，先等待，持续没有数据再重建
+                return record;
+            }
+
+            while (true) {
+                if (attempts == MAX_RECOVERY_ATTEMPTS) {
+                    giveUp(code);
+                    return null;
+                }
+                attempts++;
+                Log.w(TAG, "recreate AudioRecord, attempt " + attempts + ", err code = " + code);
+                AudioRecord recreated = recreate();
+                if (recreated != null) {
+                    recordBase = framesRead;
+                }
+                if (recreated != null || !isReading()) {
+                    return recreated;
+                }
+                //重建失败（如路由切换尚未完成），继续退避后重试
+                backoff(backoffMs);
+                backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+            }
+        }
+
+        private void onRecovered() {
+            if (consecutiveErrors == 0) {
+                return;
+            }
+            if (attempts > 0) {
+                Log.i(TAG, "AudioRecord recovered after " + attempts + " attempts, err code = " + errorCode);
+                InnerRecoveryListener listener = mRecoveryListener;
+                if (listener != null) {
+                    listener.onRecovered(errorCode, attempts);
+                }
+            }
+            consecutiveErrors = 0;
+            attempts = 0;
+            backoffMs = MIN_BACKOFF_MS;
+        }
+
+        private void giveUp(int code) {
+            Log.e(TAG, "give up recording, err code = " + code + ", attempts = " + attempts);
+            synchronized (AudioRecordCore.this) {
+                if (isReading()) {
+                    mState = INIT;
+                    if (mAudioRecord != null) {
+                        mAudioRecord.stop();
+                    }
+                }
+            }
+            InnerRecoveryListener listener = mRecoveryListener;
+            if (listener != null) {
+                listener.onRecoveryFailed(code, attempts);
+            }
+        }
+    }
 
     public interface InnerAudioCaptureCallback {
 
         void onPCMDataAvailable(byte[] data, int size);
+
+        /**
+         * 采集线程退出前回调，之后不会再有数据
+         */
+        void onCaptureStopped();
+
+        /**
+         * setTimestampEnabled(true)后每次读取到数据、onPCMDataAvailable之前回调，参看AudioCaptureTimestampCallback
+         */
+        void onCaptureTimestamp(long framePosition, long nanoTime, boolean hardware);
+    }
+
+    public interface InnerRecoveryListener {
+
+        void onRecovered(int errorCode, int attempts);
+
+        void onRecoveryFailed(int errorCode, int attempts);
     }
 }
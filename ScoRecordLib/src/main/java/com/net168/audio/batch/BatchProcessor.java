@@ -0,0 +1,485 @@
+package com.net168.audio.batch;
+
+import android.os.Process;
+import android.util.Log;
+import com.net168.audio.LinearResampler;
+import com.net168.audio.PcmBufferPool;
+import com.net168.audio.dsp.DspChain;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 录音文件批处理：对目录或文件列表中的PCM / WAV（16bit）逐个运行DspChain，可选重采样后输出
+ * <p>
+ * 每个文件是一个任务，分给与CPU核数相同的线程并行处理，按文件大小从大到小提交，减少最后的长尾。
+ * 输入和输出都通过内存映射读写，按块处理，不把整个文件读入堆内存。
+ * 处理链的环节有状态，每个文件通过ChainFactory新建一条。
+ *
+ *
+ * sample:
+ BatchProcessor processor = new BatchProcessor(new BatchProcessor.ChainFactory() {
+     public DspChain createChain(File input, int sampleRate, int channelCount) {
+         DspChain chain = new DspChain(sampleRate, channelCount);
+         chain.addStage(new HighPassStage(100));
+         chain.addStage(new AgcStage(-18, 20));
+         return chain;
+     }
+ });
+ processor.setOutputDir(outDir);
+ processor.setOutputSampleRate(AudioCapture.AUDIO_SAMPLE_RATE_16);
+ processor.setListener(listener);
+ BatchProcessor.Progress result = processor.process(recordDir);
+ */
+public class BatchProcessor {
+
+    private static final String TAG = BatchProcessor.class.getSimpleName();
+
+    private static final int BLOCK_BYTES = 64 * 1024;
+
+    private final ChainFactory mChainFactory;
+
+    private int mThreadCount = Runtime.getRuntime().availableProcessors();
+    private File mOutputDir;
+    private int mOutputSampleRate;
+    private int mPcmSampleRate = 16000;
+    private int mPcmChannelCount = 1;
+    private BatchListener mListener;
+
+    private volatile boolean mCancelled;
+
+    // 本次运行的统计
+    private final AtomicInteger mFilesDone = new AtomicInteger();
+    private final AtomicInteger mFilesFailed = new AtomicInteger();
+    private final AtomicLong mBytesProcessed = new AtomicLong();
+    private final AtomicLong mAudioFrames = new AtomicLong();     //按各文件采样率折算为纳秒累加
+    private int mFilesTotal;
+    private long mStartNanos;
+
+    /**
+     * @param chainFactory 为每个文件创建处理链，可返回null表示只做格式转换
+     */
+    public BatchProcessor(ChainFactory chainFactory) {
+        mChainFactory = chainFactory;
+    }
+
+    /**
+     * 并行线程数，默认CPU核数
+     */
+    public void setThreadCount(int threadCount) {
+        mThreadCount = Math.max(1, threadCount);
+    }
+
+    /**
+     * 输出目录，文件名与输入相同；处理目录时保留输入相对该目录的子目录。不设置时只运行处理链（如统计、生成峰值），不输出文件
+     * <p>
+     * 输出与某个输入是同一文件，或多个输入对应同一个输出时，这些文件记为失败，不会覆盖输入或其他文件的输出
+     */
+    public void setOutputDir(File outputDir) {
+        mOutputDir = outputDir;
+    }
+
+    /**
+     * 输出采样频率，0表示与输入相同
+     */
+    public void setOutputSampleRate(int sampleRate) {
+        mOutputSampleRate = sampleRate;
+    }
+
+    /**
+     * 裸PCM文件（.pcm）的采样参数，WAV文件以文件头为准，默认16kHz单声道
+     */
+    public void setPcmFormat(int sampleRate, int channelCount) {
+        mPcmSampleRate = sampleRate;
+        mPcmChannelCount = channelCount;
+    }
+
+    public void setListener(BatchListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 取消正在进行的批处理，已开始的文件在下一块处停止
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * 处理目录（含子目录）下所有.pcm和.wav文件，阻塞到全部完成
+     */
+    public Progress process(File dir) throws InterruptedException {
+        List<File> files = new ArrayList<>();
+        List<File> dirs = new ArrayList<>();
+        dirs.add(dir);
+        while (!dirs.isEmpty()) {
+            File[] children = dirs.remove(dirs.size() - 1).listFiles();
+            if (children == null) {
+                continue;
+            }
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    dirs.add(child);
+                } else if (isSupported(child)) {
+                    files.add(child);
+                }
+            }
+        }
+        return process(files, dir);
+    }
+
+    /**
+     * 处理文件列表，阻塞到全部完成，返回最终统计；输出文件直接放在输出目录下
+     */
+    public Progress process(List<File> files) throws InterruptedException {
+        return process(files, null);
+    }
+
+    /**
+     * @param root 不为null时输出保留输入相对root的路径
+     */
+    private Progress process(List<File> files, File root) throws InterruptedException {
+        List<File> sorted = new ArrayList<>(files);
+        //大文件先处理，避免最后只剩一个大文件在单线程上跑
+        Collections.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long la = a.length();
+                long lb = b.length();
+                return la < lb ? 1 : (la == lb ? 0 : -1);
+            }
+        });
+
+        mCancelled = false;
+        mFilesDone.set(0);
+        mFilesFailed.set(0);
+        mBytesProcessed.set(0);
+        mAudioFrames.set(0);
+        mFilesTotal = sorted.size();
+        mStartNanos = System.nanoTime();
+        if (mOutputDir != null && !mOutputDir.isDirectory() && !mOutputDir.mkdirs()) {
+            Log.w(TAG, "create output dir fail: " + mOutputDir);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(mThreadCount, Math.max(1, sorted.size())),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                            PcmBufferPool.trimThreadCache();
+                        }
+                    }, "BatchProcessor-" + count.incrementAndGet());
+                }
+            });
+        final CountDownLatch latch = new CountDownLatch(sorted.size());
+        final File[] outputs = new File[sorted.size()];
+        final String[] conflicts = new String[sorted.size()];
+        resolveOutputs(sorted, root, outputs, conflicts);
+        for (int i = 0; i < sorted.size(); i++) {
+            final File file = sorted.get(i);
+            final File output = outputs[i];
+            final String conflict = conflicts[i];
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!mCancelled) {
+                            processFile(file, output, conflict);
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            latch.await();
+        } finally {
+            executor.shutdownNow();
+        }
+        Progress result = getProgress();
+        Log.i(TAG, "batch complete, " + result);
+        return result;
+    }
+
+    /**
+     * 当前统计，可在任意线程调用
+     */
+    public Progress getProgress() {
+        return new Progress(mFilesDone.get(), mFilesFailed.get(), mFilesTotal, mBytesProcessed.get(),
+            mAudioFrames.get(), System.nanoTime() - mStartNanos);
+    }
+
+    private static boolean isSupported(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".pcm") || name.endsWith(".wav");
+    }
+
+    /**
+     * 在提交任务前确定每个输入的输出文件；输出与任一输入相同或与前面的输出重复时填写conflicts，不分配输出
+     */
+    private void resolveOutputs(List<File> inputs, File root, File[] outputs, String[] conflicts) {
+        if (mOutputDir == null) {
+            return;
+        }
+        Set<File> canonicalInputs = new HashSet<>();
+        for (int i = 0; i < inputs.size(); i++) {
+            try {
+                canonicalInputs.add(inputs.get(i).getCanonicalFile());
+            } catch (IOException e) {
+                conflicts[i] = "resolve input path fail: " + e;
+            }
+        }
+        Map<File, File> owners = new HashMap<>();
+        for (int i = 0; i < inputs.size(); i++) {
+            if (conflicts[i] != null) {
+                continue;
+            }
+            File input = inputs.get(i);
+            File output = new File(mOutputDir, relativePath(input, root));
+            File canonical;
+            try {
+                canonical = output.getCanonicalFile();
+            } catch (IOException e) {
+                conflicts[i] = "resolve output path fail: " + e;
+                continue;
+            }
+            if (canonicalInputs.contains(canonical)) {
+                conflicts[i] = "output " + output + " is an input file";
+            } else if (owners.containsKey(canonical)) {
+                conflicts[i] = "output " + output + " already used by " + owners.get(canonical);
+            } else {
+                owners.put(canonical, input);
+                outputs[i] = output;
+            }
+        }
+    }
+
+    /**
+     * 遍历目录得到的文件路径都以root的路径开头
+     */
+    private static String relativePath(File input, File root) {
+        String rootPath = root == null ? null : root.getPath();
+        String path = input.getPath();
+        if (rootPath != null && path.length() > rootPath.length() && path.startsWith(rootPath)) {
+            String relative = path.substring(rootPath.length());
+            return relative.startsWith(File.separator) ? relative.substring(1) : relative;
+        }
+        return input.getName();
+    }
+
+    private void processFile(File input, File output, String conflict) {
+        try {
+            if (conflict != null) {
+                throw new IOException(conflict);
+            }
+            if (output != null) {
+                File parent = output.getParentFile();
+                //多个工作线程可能同时创建同一个子目录
+                if (parent != null && !parent.mkdirs() && !parent.isDirectory()) {
+                    throw new IOException("create output dir fail: " + parent);
+                }
+            }
+            DspChain chain = processFile(input, output);
+            mFilesDone.incrementAndGet();
+            BatchListener listener = mListener;
+            if (listener != null) {
+                listener.onFileDone(input, output, chain);
+                listener.onProgress(getProgress());
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "process " + input + " fail: " + e);
+            //输出路径各不相同，只会删除本文件的输出
+            if (output != null && output.exists() && !output.delete()) {
+                Log.w(TAG, "delete partial output fail: " + output);
+            }
+            mFilesFailed.incrementAndGet();
+            BatchListener listener = mListener;
+            if (listener != null) {
+                listener.onFileFailed(input, e);
+                listener.onProgress(getProgress());
+            }
+        }
+    }
+
+    /**
+     * 映射输入文件，逐块运行处理链和重采样，写入映射的输出文件
+     */
+    private DspChain processFile(File input, File output) throws IOException {
+        RandomAccessFile inFile = new RandomAccessFile(input, "r");
+        RandomAccessFile outFile = null;
+        byte[] block = null;
+        byte[] resampled = null;
+        try {
+            FileChannel inChannel = inFile.getChannel();
+            MappedByteBuffer in = inChannel.map(FileChannel.MapMode.READ_ONLY, 0, inChannel.size());
+
+            boolean wav = input.getName().toLowerCase().endsWith(".wav");
+            int sampleRate = mPcmSampleRate;
+            int channelCount = mPcmChannelCount;
+            long dataOffset = 0;
+            long dataSize = in.capacity();
+            if (wav) {
+                WavHeader header = WavHeader.parse(in);
+                if (header == null) {
+                    throw new IOException("unsupported wav, only 16bit PCM");
+                }
+                sampleRate = header.sampleRate;
+                channelCount = header.channelCount;
+                dataOffset = header.dataOffset;
+                dataSize = header.dataSize;
+            }
+            int frameBytes = channelCount * 2;
+            dataSize -= dataSize % frameBytes;
+            in.position((int) dataOffset);
+            in.limit((int) (dataOffset + dataSize));
+
+            DspChain chain = mChainFactory == null ? null : mChainFactory.createChain(input, sampleRate, channelCount);
+            int outRate = mOutputSampleRate > 0 ? mOutputSampleRate : sampleRate;
+            LinearResampler resampler = outRate == sampleRate ? null : new LinearResampler(sampleRate, outRate, channelCount);
+
+            int blockBytes = BLOCK_BYTES - BLOCK_BYTES % frameBytes;
+            //工作线程处理下一个文件时从线程缓存取回同样的缓冲
+            block = PcmBufferPool.acquire(blockBytes);
+            resampled = resampler == null ? null : PcmBufferPool.acquire(resampler.getMaxOutputSize(blockBytes));
+
+            MappedByteBuffer out = null;
+            int headerSize = wav ? WavHeader.SIZE : 0;
+            if (output != null) {
+                long maxOut = resampler == null ? dataSize : (dataSize / frameBytes * outRate / sampleRate + 2) * frameBytes;
+                outFile = new RandomAccessFile(output, "rw");
+                out = outFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, headerSize + maxOut);
+                out.position(headerSize);
+            }
+
+            while (in.hasRemaining()) {
+                if (mCancelled) {
+                    throw new IOException("cancelled");
+                }
+                int size = Math.min(blockBytes, in.remaining());
+                in.get(block, 0, size);
+                if (chain != null) {
+                    chain.process(block, size);
+                }
+                mBytesProcessed.addAndGet(size);
+                mAudioFrames.addAndGet(size / frameBytes * 1000000000L / sampleRate);
+                if (out != null) {
+                    if (resampler != null) {
+                        int n = resampler.process(block, size, resampled);
+                        out.put(resampled, 0, n);
+                    } else {
+                        out.put(block, 0, size);
+                    }
+                }
+            }
+
+            if (out != null) {
+                long written = out.position() - headerSize;
+                if (wav) {
+                    ByteBuffer header = out.duplicate();
+                    header.position(0);
+                    WavHeader.write(header.order(ByteOrder.LITTLE_ENDIAN), outRate, channelCount, written);
+                }
+                out.force();
+                outFile.setLength(headerSize + written);
+            }
+            return chain;
+        } finally {
+            PcmBufferPool.release(block);
+            PcmBufferPool.release(resampled);
+            inFile.close();
+            if (outFile != null) {
+                outFile.close();
+            }
+        }
+    }
+
+    public interface ChainFactory {
+
+        /**
+         * 在工作线程上调用，每个文件一条新的处理链
+         */
+        DspChain createChain(File input, int sampleRate, int channelCount);
+    }
+
+    public interface BatchListener {
+
+        /**
+         * 一个文件处理完成，在工作线程上回调；chain可用于取出统计、峰值等结果
+         *
+         * @param output 未设置输出目录时为null
+         */
+        void onFileDone(File input, File output, DspChain chain);
+
+        void onFileFailed(File input, Exception e);
+
+        /**
+         * 每完成一个文件回调一次
+         */
+        void onProgress(Progress progress);
+    }
+
+    public static final class Progress {
+
+        Progress(int filesDone, int filesFailed, int filesTotal, long bytesProcessed, long audioNanos, long elapsedNanos) {
+            this.filesDone = filesDone;
+            this.filesFailed = filesFailed;
+            this.filesTotal = filesTotal;
+            this.bytesProcessed = bytesProcessed;
+            this.audioNanos = audioNanos;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public final int filesDone;
+        public final int filesFailed;
+        public final int filesTotal;
+        public final long bytesProcessed;
+        public final long audioNanos;      // 已处理音频的时长
+        public final long elapsedNanos;
+
+        /**
+         * 吞吐量，MB/s
+         */
+        public double getMegabytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : bytesProcessed / 1048576.0 / (elapsedNanos / 1e9);
+        }
+
+        /**
+         * 处理速度是实时的多少倍
+         */
+        public double getRealtimeFactor() {
+            return elapsedNanos == 0 ? 0 : (double) audioNanos / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Progress{files=" + (filesDone + filesFailed) + "/" + filesTotal + ", failed=" + filesFailed
+                + ", " + String.format("%.1f", getMegabytesPerSecond()) + "MB/s, "
+                + String.format("%.0f", getRealtimeFactor()) + "x realtime}";
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.net168.audio.batch;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * WAV（RIFF）文件头，只支持16bit PCM
+ */
+final class WavHeader {
+
+    static final int SIZE = 44;
+
+    private static final int RIFF = 0x46464952;   // "RIFF"
+    private static final int WAVE = 0x45564157;   // "WAVE"
+    private static final int FMT = 0x20746d66;    // "fmt "
+    private static final int DATA = 0x61746164;   // "data"
+    private static final int FORMAT_PCM = 1;
+
+    int sampleRate;
+    int channelCount;
+    long dataOffset;
+    long dataSize;
+
+    /**
+     * 解析文件开头，定位data块
+     *
+     * @return 不是16bit PCM的WAV时返回null
+     */
+    static WavHeader parse(ByteBuffer buffer) {
+        ByteBuffer b = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (b.remaining() < 12 || b.getInt(0) != RIFF || b.getInt(8) != WAVE) {
+            return null;
+        }
+        WavHeader header = new WavHeader();
+        boolean hasFormat = false;
+        int position = 12;
+        while (position + 8 <= b.limit()) {
+            int id = b.getInt(position);
+            long size = b.getInt(position + 4) & 0xffffffffL;
+            int body = position + 8;
+            if (id == FMT) {
+                if (body + 16 > b.limit() || (b.getShort(body) & 0xffff) != FORMAT_PCM || b.getShort(body + 14) != 16) {
+                    return null;
+                }
+                header.channelCount = b.getShort(body + 2);
+                header.sampleRate = b.getInt(body + 4);
+                hasFormat = true;
+            } else if (id == DATA) {
+                if (!hasFormat) {
+                    return null;
+                }
+                header.dataOffset = body;
+                //录制中断的文件data长度可能没有回填
+                header.dataSize = Math.min(size, b.limit() - body);
+                return header;
+            }
+            //块按偶数字节对齐
+            position = (int) (body + size + (size & 1));
+        }
+        return null;
+    }
+
+    static void write(ByteBuffer buffer, int sampleRate, int channelCount, long dataSize) {
+        ByteBuffer b = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int blockAlign = channelCount * 2;
+        b.putInt(RIFF).putInt((int) (36 + dataSize)).putInt(WAVE);
+        b.putInt(FMT).putInt(16).putShort((short) FORMAT_PCM).putShort((short) channelCount);
+        b.putInt(sampleRate).putInt(sampleRate * blockAlign).putShort((short) blockAlign).putShort((short) 16);
+        b.putInt(DATA).putInt((int) dataSize);
+    }
+}
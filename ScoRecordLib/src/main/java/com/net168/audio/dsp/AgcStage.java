@@ -0,0 +1,91 @@
+package com.net168.audio.dsp;
+
+/**
+ * 自动增益控制：按帧RMS把音量拉向目标电平
+ * <p>
+ * 增益下降快（attack）、上升慢（release），帧内线性渐变，避免爆音；低于噪声门限的帧保持当前增益，不放大底噪。
+ */
+public class AgcStage implements DspStage {
+
+    private static final float NOISE_FLOOR_DBFS = -60f;
+
+    private final float mTargetRms;
+    private final float mMaxGain;
+    private final float mAttackMs;
+    private final float mReleaseMs;
+    private final float mNoiseFloorRms;
+
+    private int mSampleRate;
+    private int mChannelCount;
+
+    private float mGain = 1f;
+
+    /**
+     * @param targetDbfs 目标RMS电平，如-18dBFS
+     * @param maxGainDb 最大放大倍数，如20dB
+     */
+    public AgcStage(float targetDbfs, float maxGainDb) {
+        this(targetDbfs, maxGainDb, 10f, 500f);
+    }
+
+    /**
+     * @param attackMs 增益下降的时间常数
+     * @param releaseMs 增益上升的时间常数
+     */
+    public AgcStage(float targetDbfs, float maxGainDb, float attackMs, float releaseMs) {
+        mTargetRms = dbToLinear(targetDbfs) * Short.MAX_VALUE;
+        mMaxGain = dbToLinear(maxGainDb);
+        mAttackMs = attackMs;
+        mReleaseMs = releaseMs;
+        mNoiseFloorRms = dbToLinear(NOISE_FLOOR_DBFS) * Short.MAX_VALUE;
+    }
+
+    @Override
+    public void prepare(int sampleRate, int channelCount) {
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mGain = 1f;
+    }
+
+    /**
+     * 当前增益，线性值
+     */
+    public float getGain() {
+        return mGain;
+    }
+
+    @Override
+    public void process(short[] samples, int count) {
+        if (count <= 0) {
+            return;
+        }
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            int v = samples[i];
+            sum += v * v;
+        }
+        float rms = (float) Math.sqrt((double) sum / count);
+
+        float start = mGain;
+        float end = start;
+        if (rms > mNoiseFloorRms) {
+            float desired = Math.min(mTargetRms / rms, mMaxGain);
+            float frameMs = count / mChannelCount * 1000f / mSampleRate;
+            float tau = desired < start ? mAttackMs : mReleaseMs;
+            float coef = (float) Math.exp(-frameMs / tau);
+            end = desired + (start - desired) * coef;
+        }
+        mGain = end;
+
+        float step = (end - start) / count;
+        float g = start;
+        for (int i = 0; i < count; i++) {
+            g += step;
+            samples[i] = HighPassStage.clip(samples[i] * g);
+        }
+    }
+
+    static float dbToLinear(float db) {
+        return (float) Math.pow(10, db / 20);
+    }
+}
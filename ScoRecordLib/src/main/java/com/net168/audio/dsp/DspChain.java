@@ -0,0 +1,255 @@
+package com.net168.audio.dsp;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按顺序串联的DSP处理链，处理16bit小端PCM
+ * <p>
+ * 每个环节每帧的耗时都会被统计，并与实时预算比较：预算 = 帧时长 * budgetRatio / 环节数。
+ * 超出预算时回调OverrunListener；策略为POLICY_BYPASS时，连续超预算的环节会被旁路，不再参与处理。
+ *
+ *
+ * sample:
+ DspChain chain = new DspChain(AudioCapture.AUDIO_SAMPLE_RATE_16, 1);
+ chain.addStage(new HighPassStage(100));
+ chain.addStage(new NoiseGateStage(-50));
+ chain.addStage(new AgcStage(-18, 20));
+ chain.setOverrunPolicy(DspChain.POLICY_BYPASS);
+ mAudioCapture.setDspChain(chain);
+
+ chain.getStats();
+ */
+public class DspChain {
+
+    private static final String TAG = DspChain.class.getSimpleName();
+
+    /**
+     * 超预算只统计和回调
+     */
+    public static final int POLICY_REPORT = 0;
+    /**
+     * 连续超预算的环节被旁路
+     */
+    public static final int POLICY_BYPASS = 1;
+
+    private final int mSampleRate;
+    private final int mChannelCount;
+
+    private volatile Slot[] mSlots = new Slot[0];
+
+    private volatile int mPolicy = POLICY_REPORT;
+    private volatile float mBudgetRatio = 0.5f;
+    private volatile int mBypassThreshold = 3;
+
+    private volatile OverrunListener mOverrunListener;
+
+    private short[] mSamples = new short[0];  //工作区，只在遇到更大的帧时扩容
+
+    public DspChain(int sampleRate, int channelCount) {
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    /**
+     * 在链尾增加一个环节
+     */
+    public synchronized void addStage(DspStage stage) {
+        stage.prepare(mSampleRate, mChannelCount);
+        Slot[] slots = new Slot[mSlots.length + 1];
+        System.arraycopy(mSlots, 0, slots, 0, mSlots.length);
+        slots[mSlots.length] = new Slot(stage);
+        mSlots = slots;
+    }
+
+    public synchronized void removeStage(DspStage stage) {
+        Slot[] old = mSlots;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i].stage == stage) {
+                Slot[] slots = new Slot[old.length - 1];
+                System.arraycopy(old, 0, slots, 0, i);
+                System.arraycopy(old, i + 1, slots, i, old.length - i - 1);
+                mSlots = slots;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param policy POLICY_REPORT 或 POLICY_BYPASS
+     */
+    public void setOverrunPolicy(int policy) {
+        mPolicy = policy;
+    }
+
+    /**
+     * 整条链可以占用帧时长的比例，默认0.5
+     */
+    public void setBudgetRatio(float budgetRatio) {
+        mBudgetRatio = budgetRatio;
+    }
+
+    /**
+     * POLICY_BYPASS下，连续超预算多少帧后旁路，默认3
+     */
+    public void setBypassThreshold(int frames) {
+        mBypassThreshold = Math.max(1, frames);
+    }
+
+    public void setOverrunListener(OverrunListener listener) {
+        mOverrunListener = listener;
+    }
+
+    /**
+     * 恢复所有被旁路的环节
+     */
+    public void resetBypass() {
+        for (Slot slot : mSlots) {
+            slot.consecutiveOverruns = 0;
+            slot.bypassed = false;
+        }
+    }
+
+    /**
+     * 处理一帧16bit小端PCM，原地修改data
+     */
+    public void process(byte[] data, int size) {
+        int count = size / 2;
+        if (mSamples.length < count) {
+            mSamples = new short[count];
+        }
+        final short[] samples = mSamples;
+        for (int i = 0; i < count; i++) {
+            samples[i] = (short) ((data[2 * i + 1] << 8) | (data[2 * i] & 0xff));
+        }
+        process(samples, count);
+        for (int i = 0; i < count; i++) {
+            short v = samples[i];
+            data[2 * i] = (byte) v;
+            data[2 * i + 1] = (byte) (v >> 8);
+        }
+    }
+
+    /**
+     * 依次运行所有环节，原地修改samples
+     */
+    public void process(short[] samples, int count) {
+        final Slot[] slots = mSlots;
+        if (slots.length == 0 || count <= 0) {
+            return;
+        }
+        final long frameNanos = count / mChannelCount * 1000000000L / mSampleRate;
+        final long budgetNanos = (long) (frameNanos * mBudgetRatio) / slots.length;
+
+        for (Slot slot : slots) {
+            if (slot.bypassed) {
+                continue;
+            }
+            long start = System.nanoTime();
+            slot.stage.process(samples, count);
+            long cost = System.nanoTime() - start;
+
+            slot.frames++;
+            slot.totalNanos += cost;
+            if (cost > slot.maxNanos) {
+                slot.maxNanos = cost;
+            }
+            if (cost > budgetNanos) {
+                onOverrun(slot, cost, budgetNanos);
+            } else {
+                slot.consecutiveOverruns = 0;
+            }
+        }
+    }
+
+    private void onOverrun(Slot slot, long cost, long budgetNanos) {
+        slot.overruns++;
+        slot.consecutiveOverruns++;
+        OverrunListener listener = mOverrunListener;
+        if (listener != null) {
+            listener.onStageOverrun(slot.stage, cost, budgetNanos);
+        }
+        if (mPolicy == POLICY_BYPASS && slot.consecutiveOverruns >= mBypassThreshold) {
+            slot.bypassed = true;
+            Log.w(TAG, "bypass stage " + slot.stage.getClass().getSimpleName() + ", cost = " + cost + "ns, budget = " + budgetNanos + "ns");
+            if (listener != null) {
+                listener.onStageBypassed(slot.stage);
+            }
+        }
+    }
+
+    /**
+     * 各环节的耗时统计快照，在音频线程之外读取时为近似值
+     */
+    public List<StageStats> getStats() {
+        Slot[] slots = mSlots;
+        List<StageStats> stats = new ArrayList<>(slots.length);
+        for (Slot slot : slots) {
+            stats.add(new StageStats(slot.stage, slot.frames, slot.totalNanos, slot.maxNanos, slot.overruns, slot.bypassed));
+        }
+        return stats;
+    }
+
+    private static final class Slot {
+
+        Slot(DspStage stage) {
+            this.stage = stage;
+        }
+
+        private final DspStage stage;
+        private long frames;
+        private long totalNanos;
+        private long maxNanos;
+        private long overruns;
+        private int consecutiveOverruns;
+        private volatile boolean bypassed;
+    }
+
+    public static final class StageStats {
+
+        StageStats(DspStage stage, long frames, long totalNanos, long maxNanos, long overruns, boolean bypassed) {
+            this.stage = stage;
+            this.frames = frames;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.overruns = overruns;
+            this.bypassed = bypassed;
+        }
+
+        public final DspStage stage;
+        public final long frames;
+        public final long totalNanos;
+        public final long maxNanos;
+        public final long overruns;
+        public final boolean bypassed;
+
+        public long getAverageNanos() {
+            return frames == 0 ? 0 : totalNanos / frames;
+        }
+
+        @Override
+        public String toString() {
+            return stage.getClass().getSimpleName() + "{frames=" + frames + ", avg=" + getAverageNanos() + "ns, max=" + maxNanos
+                + "ns, overruns=" + overruns + ", bypassed=" + bypassed + "}";
+        }
+    }
+
+    public interface OverrunListener {
+
+        /**
+         * 在音频线程上回调，不能做耗时操作
+         */
+        void onStageOverrun(DspStage stage, long costNanos, long budgetNanos);
+
+        void onStageBypassed(DspStage stage);
+    }
+}
@@ -0,0 +1,25 @@
+package com.net168.audio.dsp;
+
+/**
+ * DSP处理环节，在采集线程上原地处理16bit PCM
+ * <p>
+ * process()运行在音频线程上，不能阻塞，也不应该分配内存；需要的缓冲区在prepare()中分配。
+ */
+public interface DspStage {
+
+    /**
+     * 加入DspChain时调用一次
+     *
+     * @param sampleRate 采样频率
+     * @param channelCount 声道数，多声道数据为交错排列
+     */
+    void prepare(int sampleRate, int channelCount);
+
+    /**
+     * 原地处理一帧数据
+     *
+     * @param samples 交错排列的采样
+     * @param count 有效采样数（所有声道合计）
+     */
+    void process(short[] samples, int count);
+}
@@ -0,0 +1,516 @@
+package com.net168.audio.dsp;
+
+import android.util.Log;
+
+/**
+ * 回声消除：分块频域自适应滤波（PBFDAF），以实际播放的数据为远端参考，从采集信号中减去估计的回声
+ * <p>
+ * 按块处理（16kHz及以下128点，更高采样频率256点），输出比输入晚一个块。每块：
+ * 远端参考从EchoReference按连续的游标取出，做overlap-save滤波得到回声估计并相减；
+ * 误差按频点功率归一化更新各分区权重，每块只对一个分区做梯度约束，每块固定6次FFT。
+ * <p>
+ * 对齐：块与块之间游标连续前进一块，只用时间戳换算出的位置修正缓慢的时钟漂移，
+ * 相差过大（播放重启等）时直接跳到新位置；读取时刻的抖动不会让参考信号错位。
+ * 延迟自动估计：每块计算远端、近端的对数能量包络，对各延迟做指数加权的互相关（每块O(延迟块数)），
+ * 相关峰值稳定后对齐远端参考并重置滤波器。
+ * <p>
+ * 双讲：后台滤波器始终自适应，前台滤波器用于输出；后台的残差持续更小时复制到前台，
+ * 双讲使后台发散（残差远大于前台）时用前台恢复后台，不需要单独的双讲检测。
+ * <p>
+ * 所有缓冲在prepare()中分配，process()不分配内存，每块的计算量固定。多声道时用平均值估计回声，各声道减去同一估计。
+ *
+ *
+ * sample:
+ EchoReference reference = new EchoReference(AudioCapture.AUDIO_SAMPLE_RATE_16);
+ audioPlayer.setEchoReference(reference);
+ mEchoCanceller = new EchoCancellerStage(reference, 128);
+ dspChain.addStage(mEchoCanceller);
+
+ Log.i(TAG, "delay = " + mEchoCanceller.getDelayMs() + "ms, erle = " + mEchoCanceller.getErleDb() + "dB");
+ */
+public class EchoCancellerStage implements DspStage {
+
+    private static final String TAG = EchoCancellerStage.class.getSimpleName();
+
+    private static final float STEP = 0.4f;                 // 归一化步长
+    private static final float POWER_SMOOTH = 0.9f;         // 远端功率谱平滑系数
+    private static final float ERROR_SMOOTH = 0.7f;         // 前后台残差能量平滑系数
+    private static final float FAR_SILENCE = 30f;           // 远端幅度低于此值不自适应
+    private static final float DRIFT_SMOOTH = 0.99f;        // 游标与时间戳偏差的平滑系数
+    private static final int DRIFT_LIMIT_MS = 1;            // 平滑偏差超过后修正游标
+    private static final int RESYNC_MS = 60;                // 单次偏差超过后直接跳转
+    private static final float ENVELOPE_DECAY = 0.995f;     // 延迟估计的相关平滑系数
+    private static final float MIN_CORRELATION = 0.35f;
+    private static final int DELAY_CHECK_BLOCKS = 32;
+    private static final int DELAY_CONFIRMATIONS = 3;
+
+    private final EchoReference mReference;
+    private final int mTailMs;
+    private final int mMaxDelayMs;
+
+    private volatile int mFixedDelayMs = -1;
+
+    private int mSampleRate;
+    private int mChannelCount;
+    private boolean mActive;
+
+    private int mBlock;         // 块长B
+    private int mPartitions;    // 分区数P，滤波器长度P*B
+    private RealFft mFft;       // 2B点
+
+    private float[] mFarHistory;    // 最近两块远端信号
+    private float[] mTime;          // 时域工作区
+    private float[][] mXre;         // 各分区的远端频谱，环形
+    private float[][] mXim;
+    private float[][] mWre;         // 后台权重，持续自适应
+    private float[][] mWim;
+    private float[][] mFre;         // 前台权重，用于输出
+    private float[][] mFim;
+    private int mXHead;             // 最新一块远端频谱的位置
+    private float[] mPower;         // 远端功率谱
+    private float[] mYre;
+    private float[] mYim;
+    private float[] mEre;
+    private float[] mEim;
+    private float[] mNear;
+    private float[] mFar;
+    private float[] mError;         // 后台残差
+    private float[] mEcho;          // 前台回声估计
+    private float mBackgroundError;
+    private float mForegroundError;
+
+    private short[] mInBlock;       // 当前块的输入，交错
+    private short[] mOutBlock;      // 上一块的输出，交错
+    private int mPos;               // 当前块已填入的帧数
+
+    // 远端游标：当前块结束处在参考流中的位置（未减延迟）
+    private long mCursor;
+    private float mDrift;
+    private int mDriftLimit;
+    private int mResyncSamples;
+    private volatile long mResyncs;
+
+    // 延迟估计
+    private float[] mFarEnvelopes;  // 远端包络历史，环形
+    private float[] mCorrelation;   // 各延迟（块）的相关
+    private int mEnvHead;
+    private float mNearMean;
+    private float mFarMean;
+    private float mNearVar;
+    private float mFarVar;
+    private int mCandidate;
+    private int mCandidateHits;
+    private volatile int mDelayBlocks;
+
+    private long mBlocks;
+    private volatile float mErleDb;
+
+    public EchoCancellerStage(EchoReference reference) {
+        this(reference, 128);
+    }
+
+    /**
+     * @param tailMs 回声路径长度（滤波器长度），手机外放一般100~200ms
+     */
+    public EchoCancellerStage(EchoReference reference, int tailMs) {
+        this(reference, tailMs, 500);
+    }
+
+    /**
+     * @param maxDelayMs 自动估计的最大延迟（播放缓冲 + 采集缓冲）
+     */
+    public EchoCancellerStage(EchoReference reference, int tailMs, int maxDelayMs) {
+        mReference = reference;
+        mTailMs = tailMs;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * 固定远端延迟，不再自动估计；传入-1恢复自动估计
+     */
+    public void setFixedDelayMs(int delayMs) {
+        mFixedDelayMs = delayMs;
+    }
+
+    /**
+     * 当前使用的远端延迟（毫秒）
+     */
+    public int getDelayMs() {
+        int fixed = mFixedDelayMs;
+        if (fixed >= 0) {
+            return fixed;
+        }
+        return mSampleRate == 0 ? 0 : (int) ((long) mDelayBlocks * mBlock * 1000 / mSampleRate);
+    }
+
+    /**
+     * 回声损耗增强（ERLE），远端有声音时平滑统计，越大消除越多
+     */
+    public float getErleDb() {
+        return mErleDb;
+    }
+
+    /**
+     * 参考位置与时间戳相差过大而跳转的次数
+     */
+    public long getResyncCount() {
+        return mResyncs;
+    }
+
+    @Override
+    public void prepare(int sampleRate, int channelCount) {
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mActive = mReference != null && mReference.getSampleRate() == sampleRate;
+        if (!mActive) {
+            Log.w(TAG, "echo reference sample rate mismatch, bypass");
+            return;
+        }
+        int block = sampleRate <= 16000 ? 128 : 256;
+        int fftSize = block * 2;
+        int bins = block + 1;
+        mBlock = block;
+        mPartitions = Math.max(1, (int) (((long) sampleRate * mTailMs / 1000 + block - 1) / block));
+        mFft = new RealFft(fftSize);
+
+        mFarHistory = new float[fftSize];
+        mTime = new float[fftSize];
+        mXre = new float[mPartitions][bins];
+        mXim = new float[mPartitions][bins];
+        mWre = new float[mPartitions][bins];
+        mWim = new float[mPartitions][bins];
+        mFre = new float[mPartitions][bins];
+        mFim = new float[mPartitions][bins];
+        mPower = new float[bins];
+        mYre = new float[bins];
+        mYim = new float[bins];
+        mEre = new float[bins];
+        mEim = new float[bins];
+        mNear = new float[block];
+        mFar = new float[block];
+        mError = new float[block];
+        mEcho = new float[block];
+        mBackgroundError = 0;
+        mForegroundError = 0;
+        mInBlock = new short[block * channelCount];
+        mOutBlock = new short[block * channelCount];
+        mPos = 0;
+
+        mCursor = -1;
+        mDrift = 0;
+        mDriftLimit = Math.max(1, sampleRate * DRIFT_LIMIT_MS / 1000);
+        mResyncSamples = sampleRate * RESYNC_MS / 1000;
+        mResyncs = 0;
+
+        int lags = (int) ((long) sampleRate * mMaxDelayMs / 1000 / block) + 1;
+        mFarEnvelopes = new float[lags];
+        mCorrelation = new float[lags];
+        mEnvHead = 0;
+        mNearMean = 0;
+        mFarMean = 0;
+        mNearVar = 0;
+        mFarVar = 0;
+        mCandidate = -1;
+        mCandidateHits = 0;
+        mDelayBlocks = 0;
+        mBlocks = 0;
+        mErleDb = 0;
+    }
+
+    @Override
+    public void process(short[] samples, int count) {
+        if (!mActive) {
+            return;
+        }
+        int channels = mChannelCount;
+        int frames = count / channels;
+        long now = System.nanoTime();
+        for (int f = 0; f < frames; f++) {
+            int base = f * channels;
+            int blockBase = mPos * channels;
+            for (int ch = 0; ch < channels; ch++) {
+                short in = samples[base + ch];
+                samples[base + ch] = mOutBlock[blockBase + ch];
+                mInBlock[blockBase + ch] = in;
+            }
+            if (++mPos == mBlock) {
+                //本次process的数据刚从AudioRecord读出，最后一个采样约为当前时刻
+                long endNanos = now - (frames - 1 - f) * 1000000000L / mSampleRate;
+                processBlock(endNanos);
+                mPos = 0;
+            }
+        }
+    }
+
+    private void processBlock(long endNanos) {
+        final int block = mBlock;
+        final int channels = mChannelCount;
+        float nearEnergy = 0;
+        for (int i = 0; i < block; i++) {
+            int sum = 0;
+            for (int ch = 0; ch < channels; ch++) {
+                sum += mInBlock[i * channels + ch];
+            }
+            float v = (float) sum / channels;
+            mNear[i] = v;
+            nearEnergy += v * v;
+        }
+
+        long target = mReference.indexAt(endNanos);
+        if (target < 0) {
+            //还没有播放过，原样输出
+            System.arraycopy(mInBlock, 0, mOutBlock, 0, block * channels);
+            return;
+        }
+        advanceCursor(target);
+
+        //零延迟处的远端能量用于估计延迟
+        mReference.read(mCursor - block, mFar, 0, block);
+        float farEnergy = 0;
+        for (int i = 0; i < block; i++) {
+            farEnergy += mFar[i] * mFar[i];
+        }
+        if (mFixedDelayMs < 0) {
+            estimateDelay((float) Math.log10(1 + nearEnergy / block), (float) Math.log10(1 + farEnergy / block));
+        }
+        int fixed = mFixedDelayMs;
+        int delay = fixed >= 0 ? (int) ((long) fixed * mSampleRate / 1000) : mDelayBlocks * block;
+        mReference.read(mCursor - block - delay, mFar, 0, block);
+
+        filter(nearEnergy);
+        mBlocks++;
+    }
+
+    /**
+     * 游标每块前进一块；与时间戳换算的位置之差平滑后超过1ms才修正，单次相差过大直接跳转
+     */
+    private void advanceCursor(long target) {
+        if (mCursor < 0) {
+            mCursor = target;
+            return;
+        }
+        mCursor += mBlock;
+        long diff = target - mCursor;
+        if (Math.abs(diff) > mResyncSamples) {
+            mCursor = target;
+            mDrift = 0;
+            mResyncs++;
+            return;
+        }
+        mDrift = DRIFT_SMOOTH * mDrift + (1 - DRIFT_SMOOTH) * diff;
+        if (Math.abs(mDrift) > mDriftLimit) {
+            int step = Math.round(mDrift);
+            mCursor += step;
+            mDrift -= step;
+        }
+    }
+
+    /**
+     * 一块的滤波、自适应和输出
+     */
+    private void filter(float nearEnergy) {
+        final int block = mBlock;
+        final int bins = block + 1;
+        final int partitions = mPartitions;
+
+        float farEnergy = 0;
+        System.arraycopy(mFarHistory, block, mFarHistory, 0, block);
+        for (int i = 0; i < block; i++) {
+            float v = mFar[i];
+            mFarHistory[block + i] = v;
+            farEnergy += v * v;
+        }
+        mXHead = (mXHead + partitions - 1) % partitions;
+        mFft.forward(mFarHistory, mXre[mXHead], mXim[mXHead]);
+
+        //前台回声估计
+        estimateEcho(mFre, mFim);
+        float foregroundEnergy = 0;
+        for (int i = 0; i < block; i++) {
+            float y = mTime[block + i];
+            mEcho[i] = y;
+            float e = mNear[i] - y;
+            foregroundEnergy += e * e;
+        }
+        //后台残差
+        estimateEcho(mWre, mWim);
+        float backgroundEnergy = 0;
+        for (int i = 0; i < block; i++) {
+            float e = mNear[i] - mTime[block + i];
+            mError[i] = e;
+            backgroundEnergy += e * e;
+        }
+
+        float[] x0re = mXre[mXHead];
+        float[] x0im = mXim[mXHead];
+        for (int k = 0; k < bins; k++) {
+            mPower[k] = POWER_SMOOTH * mPower[k] + (1 - POWER_SMOOTH) * (x0re[k] * x0re[k] + x0im[k] * x0im[k]);
+        }
+
+        boolean farActive = farEnergy > block * FAR_SILENCE * FAR_SILENCE;
+        if (farActive) {
+            mBackgroundError = ERROR_SMOOTH * mBackgroundError + (1 - ERROR_SMOOTH) * backgroundEnergy;
+            mForegroundError = ERROR_SMOOTH * mForegroundError + (1 - ERROR_SMOOTH) * foregroundEnergy;
+            if (mBackgroundError < 0.8f * mForegroundError) {
+                //后台更好，采用
+                copyWeights(mWre, mWim, mFre, mFim);
+                mForegroundError = mBackgroundError;
+            } else if (mBackgroundError > 4 * mForegroundError && mForegroundError > 0) {
+                //双讲等原因使后台发散，退回前台
+                copyWeights(mFre, mFim, mWre, mWim);
+                mBackgroundError = mForegroundError;
+            }
+            adapt();
+            mErleDb = 0.95f * mErleDb + 0.05f * (float) (10 * Math.log10((nearEnergy + 1) / (foregroundEnergy + 1)));
+        }
+
+        //输出：各声道减去同一回声估计；估计让信号变大时原样输出
+        final int channels = mChannelCount;
+        boolean bypass = foregroundEnergy > nearEnergy;
+        for (int i = 0; i < block; i++) {
+            float echo = bypass ? 0 : mEcho[i];
+            for (int ch = 0; ch < channels; ch++) {
+                int index = i * channels + ch;
+                float v = mInBlock[index] - echo;
+                mOutBlock[index] = (short) (v > Short.MAX_VALUE ? Short.MAX_VALUE : (v < Short.MIN_VALUE ? Short.MIN_VALUE : v));
+            }
+        }
+    }
+
+    /**
+     * Y = Σ W_p * X_p，结果的时域在mTime，后半段为本块的回声估计
+     */
+    private void estimateEcho(float[][] weightRe, float[][] weightIm) {
+        final int bins = mBlock + 1;
+        final int partitions = mPartitions;
+        float[] yre = mYre;
+        float[] yim = mYim;
+        for (int k = 0; k < bins; k++) {
+            yre[k] = 0;
+            yim[k] = 0;
+        }
+        for (int p = 0; p < partitions; p++) {
+            int slot = (mXHead + p) % partitions;
+            float[] xr = mXre[slot];
+            float[] xi = mXim[slot];
+            float[] wr = weightRe[p];
+            float[] wi = weightIm[p];
+            for (int k = 0; k < bins; k++) {
+                yre[k] += wr[k] * xr[k] - wi[k] * xi[k];
+                yim[k] += wr[k] * xi[k] + wi[k] * xr[k];
+            }
+        }
+        mFft.inverse(yre, yim, mTime);
+    }
+
+    /**
+     * 后台权重的归一化频域LMS更新，轮流对一个分区做梯度约束（权重的后半段时域置零）
+     */
+    private void adapt() {
+        final int block = mBlock;
+        final int bins = block + 1;
+        final int partitions = mPartitions;
+        for (int i = 0; i < block; i++) {
+            mTime[i] = 0;
+            mTime[block + i] = mError[i];
+        }
+        mFft.forward(mTime, mEre, mEim);
+
+        float delta = block * 2 * FAR_SILENCE * FAR_SILENCE;
+        float[] er = mEre;
+        float[] ei = mEim;
+        for (int p = 0; p < partitions; p++) {
+            int slot = (mXHead + p) % partitions;
+            float[] xr = mXre[slot];
+            float[] xi = mXim[slot];
+            float[] wr = mWre[p];
+            float[] wi = mWim[p];
+            for (int k = 0; k < bins; k++) {
+                float g = STEP / (partitions * mPower[k] + delta);
+                // W += g * conj(X) * E
+                wr[k] += g * (xr[k] * er[k] + xi[k] * ei[k]);
+                wi[k] += g * (xr[k] * ei[k] - xi[k] * er[k]);
+            }
+        }
+
+        int constrained = (int) (mBlocks % partitions);
+        mFft.inverse(mWre[constrained], mWim[constrained], mTime);
+        for (int i = block; i < block * 2; i++) {
+            mTime[i] = 0;
+        }
+        mFft.forward(mTime, mWre[constrained], mWim[constrained]);
+    }
+
+    private void copyWeights(float[][] fromRe, float[][] fromIm, float[][] toRe, float[][] toIm) {
+        for (int p = 0; p < mPartitions; p++) {
+            System.arraycopy(fromRe[p], 0, toRe[p], 0, fromRe[p].length);
+            System.arraycopy(fromIm[p], 0, toIm[p], 0, fromIm[p].length);
+        }
+    }
+
+    /**
+     * 对数能量包络的指数加权互相关，每DELAY_CHECK_BLOCKS块检查一次峰值，连续几次一致才切换延迟
+     */
+    private void estimateDelay(float nearEnvelope, float farEnvelope) {
+        final int lags = mCorrelation.length;
+        final float a = ENVELOPE_DECAY;
+        mEnvHead = (mEnvHead + 1) % lags;
+        mFarEnvelopes[mEnvHead] = farEnvelope;
+        mNearMean = a * mNearMean + (1 - a) * nearEnvelope;
+        mFarMean = a * mFarMean + (1 - a) * farEnvelope;
+        float dn = nearEnvelope - mNearMean;
+        float df = farEnvelope - mFarMean;
+        mNearVar = a * mNearVar + (1 - a) * dn * dn;
+        mFarVar = a * mFarVar + (1 - a) * df * df;
+        for (int lag = 0, index = mEnvHead; lag < lags; lag++) {
+            mCorrelation[lag] = a * mCorrelation[lag] + (1 - a) * dn * (mFarEnvelopes[index] - mFarMean);
+            index = index == 0 ? lags - 1 : index - 1;
+        }
+
+        if ((mBlocks + 1) % DELAY_CHECK_BLOCKS != 0) {
+            return;
+        }
+        int best = 0;
+        for (int lag = 1; lag < lags; lag++) {
+            if (mCorrelation[lag] > mCorrelation[best]) {
+                best = lag;
+            }
+        }
+        float norm = (float) Math.sqrt(mNearVar * mFarVar);
+        if (norm <= 0 || mCorrelation[best] / norm < MIN_CORRELATION) {
+            return;
+        }
+        if (mCandidate >= 0 && Math.abs(best - mCandidate) <= 1) {
+            mCandidateHits++;
+        } else {
+            mCandidate = best;
+            mCandidateHits = 1;
+        }
+        //留一块余量，让回声起点落在第一个分区内
+        int delayBlocks = Math.max(0, best - 1);
+        if (mCandidateHits >= DELAY_CONFIRMATIONS && Math.abs(delayBlocks - mDelayBlocks) > 1) {
+            Log.i(TAG, "echo delay " + mDelayBlocks * mBlock * 1000 / mSampleRate + "ms -> "
+                + delayBlocks * mBlock * 1000 / mSampleRate + "ms");
+            mDelayBlocks = delayBlocks;
+            resetFilter();
+        }
+    }
+
+    private void resetFilter() {
+        for (int p = 0; p < mPartitions; p++) {
+            for (int k = 0; k <= mBlock; k++) {
+                mWre[p][k] = 0;
+                mWim[p][k] = 0;
+                mFre[p][k] = 0;
+                mFim[p][k] = 0;
+                mXre[p][k] = 0;
+                mXim[p][k] = 0;
+            }
+        }
+        for (int i = 0; i < mFarHistory.length; i++) {
+            mFarHistory[i] = 0;
+        }
+        mBackgroundError = 0;
+        mForegroundError = 0;
+    }
+}
@@ -0,0 +1,117 @@
+package com.net168.audio.dsp;
+
+/**
+ * 回声消除的远端参考：记录实际写入AudioTrack的PCM和写入时刻
+ * <p>
+ * 播放线程每次write完成后调用write()，数据混为单声道存入环形缓冲，同时记下写入后的总采样数与时间戳。
+ * 采集线程用indexAt()把采集时刻换算为参考流中的位置，再用read()取出对应的远端信号，
+ * 播放停止期间换算出的位置超过已写入的部分按静音处理。
+ * <p>
+ * 单个写线程、单个读线程，无锁；读取的数据已被覆盖时按静音返回。只支持16bit PCM，采样频率需与采集一致。
+ *
+ *
+ * sample:
+ EchoReference reference = new EchoReference(AudioCapture.AUDIO_SAMPLE_RATE_16);
+ audioPlayer.setEchoReference(reference);
+ dspChain.addStage(new EchoCancellerStage(reference, 128));
+ */
+public class EchoReference {
+
+    private static final int DEFAULT_CAPACITY_MS = 1500;
+
+    private final int mSampleRate;
+    private final short[] mRing;
+    private final int mMask;
+
+    private volatile long mWritten;     //已写入的采样总数
+
+    // 最近一次写入的锚点，版本号为奇数时正在更新；字段都是volatile，读到的版本一致即为同一次写入
+    private volatile int mAnchorVersion;
+    private volatile long mAnchorIndex;
+    private volatile long mAnchorNanos;
+
+    public EchoReference(int sampleRate) {
+        this(sampleRate, DEFAULT_CAPACITY_MS);
+    }
+
+    /**
+     * @param capacityMs 保留的历史时长，需大于 播放+采集 的总延迟
+     */
+    public EchoReference(int sampleRate, int capacityMs) {
+        mSampleRate = sampleRate;
+        int capacity = Integer.highestOneBit(Math.max(1024, (int) ((long) sampleRate * capacityMs / 1000)) - 1) << 1;
+        mRing = new short[capacity];
+        mMask = capacity - 1;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * 记录一次写入AudioTrack的数据，在播放线程上调用
+     *
+     * @param data 16bit小端交错PCM
+     * @param channelCount 声道数，多声道取平均
+     * @param timeNanos write返回的时刻（System.nanoTime）
+     */
+    public void write(byte[] data, int size, int channelCount, long timeNanos) {
+        int frames = size / (2 * channelCount);
+        long index = mWritten;
+        for (int i = 0; i < frames; i++) {
+            int sum = 0;
+            for (int ch = 0; ch < channelCount; ch++) {
+                int p = (i * channelCount + ch) * 2;
+                sum += (short) ((data[p + 1] << 8) | (data[p] & 0xff));
+            }
+            mRing[(int) ((index + i) & mMask)] = (short) (sum / channelCount);
+        }
+        index += frames;
+        mWritten = index;
+        mAnchorVersion++;
+        mAnchorIndex = index;
+        mAnchorNanos = timeNanos;
+        mAnchorVersion++;
+    }
+
+    /**
+     * 把时刻换算为参考流中的位置：以最近一次写入为锚点按采样频率外推，没有写入过时返回-1
+     */
+    public long indexAt(long timeNanos) {
+        long index;
+        long nanos;
+        int version;
+        do {
+            version = mAnchorVersion;
+            index = mAnchorIndex;
+            nanos = mAnchorNanos;
+        } while ((version & 1) != 0 || version != mAnchorVersion);
+        if (version == 0) {
+            return -1;
+        }
+        return index + (timeNanos - nanos) * mSampleRate / 1000000000L;
+    }
+
+    /**
+     * 读取[start, start + count)的远端采样，尚未写入或已被覆盖的部分填0
+     */
+    public void read(long start, float[] out, int offset, int count) {
+        long written = mWritten;
+        for (int i = 0; i < count; i++) {
+            long index = start + i;
+            out[offset + i] = index < 0 || index >= written ? 0 : mRing[(int) (index & mMask)];
+        }
+        //读取过程中被写线程追上覆盖的部分作废
+        long oldest = mWritten - mRing.length;
+        for (int i = 0; i < count && start + i < oldest; i++) {
+            out[offset + i] = 0;
+        }
+    }
+
+    /**
+     * 环形缓冲能保留的采样数
+     */
+    public int getCapacity() {
+        return mRing.length;
+    }
+}
@@ -0,0 +1,69 @@
+package com.net168.audio.dsp;
+
+/**
+ * 二阶Butterworth高通滤波，去除直流和低频噪声（风噪、电流声等）
+ */
+public class HighPassStage implements DspStage {
+
+    private final float mCutoffHz;
+
+    private int mChannelCount;
+
+    // 归一化后的biquad系数
+    private float b0, b1, b2, a1, a2;
+
+    // 每个声道的状态（Transposed Direct Form II）
+    private float[] z1;
+    private float[] z2;
+
+    /**
+     * @param cutoffHz 截止频率，语音一般取80~150Hz
+     */
+    public HighPassStage(float cutoffHz) {
+        mCutoffHz = cutoffHz;
+    }
+
+    @Override
+    public void prepare(int sampleRate, int channelCount) {
+        mChannelCount = channelCount;
+        z1 = new float[channelCount];
+        z2 = new float[channelCount];
+
+        double w0 = 2 * Math.PI * Math.min(mCutoffHz, sampleRate * 0.45f) / sampleRate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * Math.sqrt(0.5));
+        double a0 = 1 + alpha;
+        b0 = (float) ((1 + cos) / 2 / a0);
+        b1 = (float) (-(1 + cos) / a0);
+        b2 = b0;
+        a1 = (float) (-2 * cos / a0);
+        a2 = (float) ((1 - alpha) / a0);
+    }
+
+    @Override
+    public void process(short[] samples, int count) {
+        final int channels = mChannelCount;
+        for (int ch = 0; ch < channels; ch++) {
+            float s1 = z1[ch];
+            float s2 = z2[ch];
+            for (int i = ch; i < count; i += channels) {
+                float x = samples[i];
+                float y = b0 * x + s1;
+                s1 = b1 * x - a1 * y + s2;
+                s2 = b2 * x - a2 * y;
+                samples[i] = clip(y);
+            }
+            z1[ch] = s1;
+            z2[ch] = s2;
+        }
+    }
+
+    static short clip(float v) {
+        if (v > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        } else if (v < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) v;
+    }
+}
@@ -0,0 +1,331 @@
+package com.net168.audio.dsp;
+
+/**
+ * 流式语音特征提取：log-mel滤波器组能量和MFCC，不修改数据
+ * <p>
+ * 采集数据（多声道先混为单声道）预加重后写入环形历史，第一帧在凑满一个窗长时输出，之后每隔hop输出一帧：
+ * 取最近一个窗长的采样去直流、加Hamming窗、补零做实数FFT，功率谱经三角mel滤波器组后取对数，再经DCT-II得到MFCC。
+ * 幅度按16bit原始采样计算，与Kaldi等工具的默认设置一致。
+ * <p>
+ * mel滤波器组按稀疏形式（每个滤波器的起始频点和权重）、DCT按矩阵在prepare()中计算，采样频率不变时重复prepare不重新计算。
+ * 每batchFrames帧以float[]批量回调一次，所有缓冲在prepare()中分配，音频线程上不分配内存。
+ *
+ *
+ * sample:
+ mFeatures = new MelFeatureStage(25, 10, 40, 13, new MelFeatureStage.FeatureListener() {
+     public void onFeatures(float[] logMel, float[] mfcc, int frames, long firstFrame) {
+         mRecognizer.accept(logMel, frames * 40);
+     }
+ });
+ mFeatures.setBatchFrames(10);
+ chain.addStage(mFeatures);
+ */
+public class MelFeatureStage implements DspStage {
+
+    private static final float PRE_EMPHASIS = 0.97f;
+    private static final float ENERGY_FLOOR = 1e-10f;
+    private static final float DEFAULT_LOW_HZ = 20;
+
+    private final int mWindowMs;
+    private final int mHopMs;
+    private final int mMelBands;
+    private final int mMfccCount;
+    private final FeatureListener mListener;
+
+    private int mBatchFrames = 10;
+    private float mLowHz = DEFAULT_LOW_HZ;
+    private float mHighHz;          // 0为奈奎斯特频率
+
+    private int mSampleRate;
+    private int mChannelCount;
+    private int mWindowSize;
+    private int mHopSize;
+
+    // 与采样频率相关的表，采样频率和参数不变时复用
+    private RealFft mFft;
+    private float[] mWindow;
+    private int[] mMelStart;        // 每个滤波器的起始频点
+    private float[][] mMelWeights;  // 从起始频点开始的权重
+    private float[][] mDct;         // [mfcc][band]
+
+    private float[] mHistory;       // 环形历史，长度为fftSize
+    private float[] mFrame;
+    private float[] mRe;
+    private float[] mIm;
+    private float[] mPower;
+    private float[] mMel;
+    private float[] mLogMelBatch;   // [batchFrames][melBands]
+    private float[] mMfccBatch;     // [batchFrames][mfccCount]
+
+    private int mWritePos;
+    private int mUntilNextFrame;
+    private float mLastSample;
+    private int mBatchCount;
+    private long mFrameCount;
+
+    /**
+     * @param windowMs 窗长，常用25ms
+     * @param hopMs 帧移，常用10ms
+     * @param melBands mel滤波器个数，常用40（识别）或80
+     * @param mfccCount MFCC个数（含c0），常用13；为0时只输出log-mel
+     * @param listener 在音频线程上回调
+     */
+    public MelFeatureStage(int windowMs, int hopMs, int melBands, int mfccCount, FeatureListener listener) {
+        if (windowMs <= 0 || hopMs <= 0) {
+            throw new IllegalArgumentException("windowMs and hopMs must be > 0: " + windowMs + ", " + hopMs);
+        }
+        if (melBands <= 0 || mfccCount < 0 || mfccCount > melBands) {
+            throw new IllegalArgumentException("invalid melBands / mfccCount: " + melBands + ", " + mfccCount);
+        }
+        mWindowMs = windowMs;
+        mHopMs = hopMs;
+        mMelBands = melBands;
+        mMfccCount = mfccCount;
+        mListener = listener;
+    }
+
+    /**
+     * 每次回调的帧数，默认10，需在加入DspChain之前设置
+     */
+    public void setBatchFrames(int batchFrames) {
+        mBatchFrames = Math.max(1, batchFrames);
+    }
+
+    /**
+     * mel滤波器组覆盖的频率范围，默认20Hz到奈奎斯特频率；highHz为0表示奈奎斯特频率，需在加入DspChain之前设置
+     */
+    public void setFrequencyRange(float lowHz, float highHz) {
+        mLowHz = lowHz;
+        mHighHz = highHz;
+        mSampleRate = 0;
+    }
+
+    @Override
+    public void prepare(int sampleRate, int channelCount) {
+        mChannelCount = channelCount;
+        int windowSize = Math.max(1, sampleRate * mWindowMs / 1000);
+        if (sampleRate != mSampleRate || mLogMelBatch == null || mLogMelBatch.length != mBatchFrames * mMelBands) {
+            mSampleRate = sampleRate;
+            mWindowSize = windowSize;
+            mHopSize = Math.max(1, sampleRate * mHopMs / 1000);
+            int fftSize = Math.max(4, Integer.highestOneBit(windowSize - 1) << 1);
+            mFft = new RealFft(fftSize);
+            mWindow = new float[windowSize];
+            for (int i = 0; i < windowSize; i++) {
+                mWindow[i] = (float) (0.54 - 0.46 * Math.cos(2 * Math.PI * i / Math.max(1, windowSize - 1)));
+            }
+            buildMelFilters(fftSize);
+            buildDct();
+            mHistory = new float[fftSize];
+            mFrame = new float[fftSize];
+            mRe = new float[mFft.bins()];
+            mIm = new float[mFft.bins()];
+            mPower = new float[mFft.bins()];
+            mMel = new float[mMelBands];
+            mLogMelBatch = new float[mBatchFrames * mMelBands];
+            mMfccBatch = mMfccCount == 0 ? null : new float[mBatchFrames * mMfccCount];
+        }
+        for (int i = 0; i < mHistory.length; i++) {
+            mHistory[i] = 0;
+        }
+        mWritePos = 0;
+        mUntilNextFrame = mWindowSize;
+        mLastSample = 0;
+        mBatchCount = 0;
+        mFrameCount = 0;
+    }
+
+    private static float hzToMel(double hz) {
+        return (float) (1127 * Math.log(1 + hz / 700));
+    }
+
+    private static float melToHz(double mel) {
+        return (float) (700 * (Math.exp(mel / 1127) - 1));
+    }
+
+    /**
+     * 在mel刻度上等间距的三角滤波器，按频点频率计算权重，只保存非零部分
+     */
+    private void buildMelFilters(int fftSize) {
+        int bins = fftSize / 2 + 1;
+        float nyquist = mSampleRate / 2f;
+        float high = mHighHz <= 0 || mHighHz > nyquist ? nyquist : mHighHz;
+        float lowMel = hzToMel(Math.max(0, mLowHz));
+        float highMel = hzToMel(high);
+        float step = (highMel - lowMel) / (mMelBands + 1);
+        mMelStart = new int[mMelBands];
+        mMelWeights = new float[mMelBands][];
+        float[] weights = new float[bins];
+        for (int b = 0; b < mMelBands; b++) {
+            float left = lowMel + b * step;
+            float center = left + step;
+            float right = center + step;
+            int first = -1;
+            int last = -1;
+            for (int k = 0; k < bins; k++) {
+                float mel = hzToMel((double) k * mSampleRate / fftSize);
+                float w = 0;
+                if (mel > left && mel < right) {
+                    w = mel <= center ? (mel - left) / (center - left) : (right - mel) / (right - center);
+                }
+                weights[k] = w;
+                if (w > 0) {
+                    if (first < 0) {
+                        first = k;
+                    }
+                    last = k;
+                }
+            }
+            if (first < 0) {
+                //频点太稀疏，滤波器落在两个频点之间，取最近的频点
+                first = Math.min(bins - 1, Math.round(melToHz(center) * fftSize / mSampleRate));
+                last = first;
+                weights[first] = 1;
+            }
+            mMelStart[b] = first;
+            mMelWeights[b] = new float[last - first + 1];
+            System.arraycopy(weights, first, mMelWeights[b], 0, last - first + 1);
+        }
+    }
+
+    /**
+     * 正交归一化的DCT-II
+     */
+    private void buildDct() {
+        if (mMfccCount == 0) {
+            mDct = null;
+            return;
+        }
+        int n = mMelBands;
+        mDct = new float[mMfccCount][n];
+        for (int k = 0; k < mMfccCount; k++) {
+            double scale = Math.sqrt((k == 0 ? 1.0 : 2.0) / n);
+            for (int b = 0; b < n; b++) {
+                mDct[k][b] = (float) (scale * Math.cos(Math.PI * k * (b + 0.5) / n));
+            }
+        }
+    }
+
+    @Override
+    public void process(short[] samples, int count) {
+        final int channels = mChannelCount;
+        final float[] history = mHistory;
+        final int mask = history.length - 1;
+        for (int i = 0; i + channels <= count; i += channels) {
+            float v = samples[i];
+            for (int ch = 1; ch < channels; ch++) {
+                v += samples[i + ch];
+            }
+            v /= channels;
+            history[mWritePos] = v - PRE_EMPHASIS * mLastSample;
+            mLastSample = v;
+            mWritePos = (mWritePos + 1) & mask;
+            if (--mUntilNextFrame == 0) {
+                mUntilNextFrame = mHopSize;
+                analyze();
+            }
+        }
+    }
+
+    private void analyze() {
+        final int window = mWindowSize;
+        final float[] history = mHistory;
+        final float[] frame = mFrame;
+        final int mask = history.length - 1;
+        // 最近window个采样从start开始
+        int start = (mWritePos - window) & mask;
+        float mean = 0;
+        for (int i = 0; i < window; i++) {
+            float v = history[(start + i) & mask];
+            frame[i] = v;
+            mean += v;
+        }
+        mean /= window;
+        for (int i = 0; i < window; i++) {
+            frame[i] = (frame[i] - mean) * mWindow[i];
+        }
+        for (int i = window; i < frame.length; i++) {
+            frame[i] = 0;
+        }
+
+        mFft.forward(frame, mRe, mIm);
+        final int bins = mFft.bins();
+        for (int k = 0; k < bins; k++) {
+            mPower[k] = mRe[k] * mRe[k] + mIm[k] * mIm[k];
+        }
+
+        final int bands = mMelBands;
+        final int logMelOffset = mBatchCount * bands;
+        for (int b = 0; b < bands; b++) {
+            float[] weights = mMelWeights[b];
+            int first = mMelStart[b];
+            float energy = 0;
+            for (int j = 0; j < weights.length; j++) {
+                energy += weights[j] * mPower[first + j];
+            }
+            float logMel = (float) Math.log(Math.max(energy, ENERGY_FLOOR));
+            mMel[b] = logMel;
+            mLogMelBatch[logMelOffset + b] = logMel;
+        }
+        if (mMfccBatch != null) {
+            final int mfccOffset = mBatchCount * mMfccCount;
+            for (int k = 0; k < mMfccCount; k++) {
+                float[] row = mDct[k];
+                float c = 0;
+                for (int b = 0; b < bands; b++) {
+                    c += row[b] * mMel[b];
+                }
+                mMfccBatch[mfccOffset + k] = c;
+            }
+        }
+        mFrameCount++;
+        if (++mBatchCount == mBatchFrames) {
+            deliver();
+        }
+    }
+
+    /**
+     * 立即回调不足一批的帧，如停止采集后在音频线程上调用，避免丢掉最后的几帧
+     */
+    public void flush() {
+        if (mBatchCount > 0) {
+            deliver();
+        }
+    }
+
+    private void deliver() {
+        int frames = mBatchCount;
+        mBatchCount = 0;
+        if (mListener != null) {
+            mListener.onFeatures(mLogMelBatch, mMfccBatch, frames, mFrameCount - frames);
+        }
+    }
+
+    /**
+     * 已输出的帧数
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public int getMelBands() {
+        return mMelBands;
+    }
+
+    public int getMfccCount() {
+        return mMfccCount;
+    }
+
+    public interface FeatureListener {
+
+        /**
+         * 在音频线程上回调，数组会被下一批覆盖，需要保留时自行拷贝
+         *
+         * @param logMel frames行、melBands列，按行排列的log-mel能量
+         * @param mfcc frames行、mfccCount列，按行排列的MFCC；mfccCount为0时为null
+         * @param frames 本批帧数
+         * @param firstFrame 本批第一帧的序号，第n帧对应的起始采样为n * hop
+         */
+        void onFeatures(float[] logMel, float[] mfcc, int frames, long firstFrame);
+    }
+}
@@ -0,0 +1,100 @@
+package com.net168.audio.dsp;
+
+/**
+ * 噪声门：电平低于门限时把声音衰减到attenuationDb
+ * <p>
+ * 电平用峰值包络跟踪，门打开后至少保持holdMs，开关时增益平滑过渡。多声道按同一增益处理。
+ */
+public class NoiseGateStage implements DspStage {
+
+    private final float mThreshold;
+    private final float mFloorGain;
+    private final float mHoldMs;
+
+    private int mChannelCount;
+
+    private float mEnvelopeRelease;  //包络下降系数
+    private float mOpenCoef;         //增益上升系数
+    private float mCloseCoef;        //增益下降系数
+    private int mHoldFrames;
+
+    private float mEnvelope;
+    private float mGain;
+    private int mHoldCounter;
+
+    /**
+     * @param thresholdDbfs 门限电平，如-50dBFS
+     */
+    public NoiseGateStage(float thresholdDbfs) {
+        this(thresholdDbfs, -30f, 100f);
+    }
+
+    /**
+     * @param attenuationDb 门关闭时的衰减量
+     * @param holdMs 门打开后的最短保持时间
+     */
+    public NoiseGateStage(float thresholdDbfs, float attenuationDb, float holdMs) {
+        mThreshold = AgcStage.dbToLinear(thresholdDbfs) * Short.MAX_VALUE;
+        mFloorGain = AgcStage.dbToLinear(attenuationDb);
+        mHoldMs = holdMs;
+    }
+
+    @Override
+    public void prepare(int sampleRate, int channelCount) {
+        mChannelCount = channelCount;
+        mEnvelopeRelease = coef(sampleRate, 20f);
+        mOpenCoef = coef(sampleRate, 1f);
+        mCloseCoef = coef(sampleRate, 50f);
+        mHoldFrames = (int) (mHoldMs * sampleRate / 1000);
+        mEnvelope = 0;
+        mGain = mFloorGain;
+        mHoldCounter = 0;
+    }
+
+    /**
+     * 门当前是否打开
+     */
+    public boolean isOpen() {
+        return mHoldCounter > 0;
+    }
+
+    @Override
+    public void process(short[] samples, int count) {
+        final int channels = mChannelCount;
+        float env = mEnvelope;
+        float gain = mGain;
+        int hold = mHoldCounter;
+        for (int i = 0; i + channels <= count; i += channels) {
+            int peak = 0;
+            for (int ch = 0; ch < channels; ch++) {
+                int v = Math.abs(samples[i + ch]);
+                if (v > peak) {
+                    peak = v;
+                }
+            }
+            env = peak > env ? peak : env * mEnvelopeRelease;
+
+            if (env > mThreshold) {
+                hold = mHoldFrames;
+            } else if (hold > 0) {
+                hold--;
+            }
+            if (hold > 0) {
+                gain = 1f - (1f - gain) * mOpenCoef;
+            } else {
+                gain = mFloorGain + (gain - mFloorGain) * mCloseCoef;
+            }
+
+            for (int ch = 0; ch < channels; ch++) {
+                samples[i + ch] = (short) (samples[i + ch] * gain);
+            }
+        }
+        mEnvelope = env;
+        mGain = gain;
+        mHoldCounter = hold;
+    }
+
+    private static float coef(int sampleRate, float timeMs) {
+        return (float) Math.exp(-1000f / (timeMs * sampleRate));
+    }
+}
@@ -0,0 +1,335 @@
+package com.net168.audio.dsp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 录制时增量生成的波形峰值金字塔，不修改数据
+ * <p>
+ * 每256 / 4096 / 65536帧记录一对最小值和最大值（多声道取所有声道的极值），上层由下层每16项合并而来。
+ * 一小时44.1kHz录音约2.5MB，保存为与录音同名的.peaks文件，打开时整块读入，无需扫描PCM。
+ * 作为DspStage加入处理链即可在采集线程上生成；录制过程中可以在其他线程query，查询只看到已完成的项。
+ *
+ *
+ * sample:
+ mPeaks = new PeakPyramid();
+ chain.addStage(mPeaks);
+
+ mPeaks.finish();
+ mPeaks.save(PeakPyramid.peaksFileFor(pcmFile));
+
+ PeakPyramid peaks = PeakPyramid.load(PeakPyramid.peaksFileFor(pcmFile));
+ short[] columns = new short[width * 2];
+ peaks.query(0, peaks.getFrameCount(), width, columns);
+ */
+public class PeakPyramid implements DspStage {
+
+    private static final int MAGIC = 0x4B414550;   // "PEAK"
+    private static final int VERSION = 1;
+
+    private static final int FAN_OUT = 16;
+    private static final int[] FRAMES_PER_PEAK = {256, 256 * FAN_OUT, 256 * FAN_OUT * FAN_OUT};
+    private static final int HEADER_SIZE = 4 * 6 + 8 * FRAMES_PER_PEAK.length;
+
+    private final Level[] mLevels = new Level[FRAMES_PER_PEAK.length];
+
+    private int mSampleRate;
+    private int mChannelCount;
+    private volatile long mFrameCount;
+
+    public PeakPyramid() {
+        for (int i = 0; i < mLevels.length; i++) {
+            mLevels[i] = new Level(FRAMES_PER_PEAK[i]);
+        }
+    }
+
+    /**
+     * 与PCM文件同目录同名的.peaks文件
+     */
+    public static File peaksFileFor(File pcmFile) {
+        return new File(pcmFile.getPath() + ".peaks");
+    }
+
+    @Override
+    public void prepare(int sampleRate, int channelCount) {
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+    }
+
+    @Override
+    public void process(short[] samples, int count) {
+        final int channels = mChannelCount;
+        final Level level = mLevels[0];
+        int frames = 0;
+        for (int i = 0; i + channels <= count; i += channels) {
+            for (int ch = 0; ch < channels; ch++) {
+                short v = samples[i + ch];
+                if (v < level.pendingMin) {
+                    level.pendingMin = v;
+                }
+                if (v > level.pendingMax) {
+                    level.pendingMax = v;
+                }
+            }
+            if (++level.pendingFrames == level.framesPerPeak) {
+                commit(0);
+            }
+            frames++;
+        }
+        mFrameCount += frames;
+    }
+
+    /**
+     * 录制结束时调用，把不足一项的尾部也记为一项；之后不能再process
+     */
+    public void finish() {
+        for (int i = 0; i < mLevels.length; i++) {
+            if (mLevels[i].pendingFrames > 0) {
+                commit(i);
+            }
+        }
+    }
+
+    /**
+     * 第index层的一项并入上一层，上一层凑满FAN_OUT项时继续向上
+     */
+    private void commit(int index) {
+        Level level = mLevels[index];
+        short min = level.pendingMin;
+        short max = level.pendingMax;
+        level.append(min, max);
+        level.resetPending();
+        if (index + 1 < mLevels.length) {
+            Level upper = mLevels[index + 1];
+            if (min < upper.pendingMin) {
+                upper.pendingMin = min;
+            }
+            if (max > upper.pendingMax) {
+                upper.pendingMax = max;
+            }
+            upper.pendingFrames += level.framesPerPeak;
+            if (upper.pendingFrames == upper.framesPerPeak) {
+                commit(index + 1);
+            }
+        }
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    /**
+     * 已处理的帧数（每声道的采样数）
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * 把[startFrame, endFrame)均分为columns列，输出每列的最小值和最大值
+     * <p>
+     * 选用每项帧数不超过每列帧数的最粗一层，每列只合并少量项；缩放到每列不足256帧时按最细一层输出。
+     *
+     * @param out 长度不小于columns * 2，依次为第0列min、max，第1列min、max ...
+     * @return 有数据的列数，超出已录制范围的列为0
+     */
+    public int query(long startFrame, long endFrame, int columns, short[] out) {
+        if (columns <= 0 || endFrame <= startFrame) {
+            return 0;
+        }
+        double framesPerColumn = (double) (endFrame - startFrame) / columns;
+        Level level = mLevels[0];
+        for (int i = mLevels.length - 1; i > 0; i--) {
+            if (mLevels[i].framesPerPeak <= framesPerColumn) {
+                level = mLevels[i];
+                break;
+            }
+        }
+        final int entries = level.count;
+        int filled = 0;
+        for (int c = 0; c < columns; c++) {
+            long from = startFrame + (long) (c * framesPerColumn);
+            long to = startFrame + (long) ((c + 1) * framesPerColumn);
+            int first = (int) (from / level.framesPerPeak);
+            int last = (int) Math.max(first, (to - 1) / level.framesPerPeak);
+            last = Math.min(last, entries - 1);
+            if (first > last) {
+                out[2 * c] = 0;
+                out[2 * c + 1] = 0;
+                continue;
+            }
+            short min = Short.MAX_VALUE;
+            short max = Short.MIN_VALUE;
+            for (int e = first; e <= last; e++) {
+                short eMin = level.getMin(e);
+                short eMax = level.getMax(e);
+                if (eMin < min) {
+                    min = eMin;
+                }
+                if (eMax > max) {
+                    max = eMax;
+                }
+            }
+            out[2 * c] = min;
+            out[2 * c + 1] = max;
+            filled++;
+        }
+        return filled;
+    }
+
+    /**
+     * 保存为紧凑的二进制文件（小端）：文件头 + 各层的min/max对，需在finish之后调用
+     */
+    public void save(File file) throws IOException {
+        int dataSize = 0;
+        for (Level level : mLevels) {
+            dataSize += level.count * 4;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + dataSize).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(mSampleRate).putInt(mChannelCount);
+        buffer.putLong(mFrameCount);
+        for (Level level : mLevels) {
+            buffer.putInt(level.framesPerPeak).putInt(level.count);
+        }
+        for (Level level : mLevels) {
+            level.writeTo(buffer);
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(buffer.array(), 0, buffer.position());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * 读取save()生成的文件，得到只读的金字塔
+     */
+    public static PeakPyramid load(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = in.read(bytes, offset, bytes.length - offset);
+                if (read < 0) {
+                    throw new IOException("unexpected end of file: " + file);
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (bytes.length < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("not a peaks file: " + file);
+        }
+        PeakPyramid pyramid = new PeakPyramid();
+        pyramid.mSampleRate = buffer.getInt();
+        pyramid.mChannelCount = buffer.getInt();
+        pyramid.mFrameCount = buffer.getLong();
+        int[] counts = new int[FRAMES_PER_PEAK.length];
+        for (int i = 0; i < counts.length; i++) {
+            if (buffer.getInt() != FRAMES_PER_PEAK[i]) {
+                throw new IOException("unsupported level layout: " + file);
+            }
+            counts[i] = buffer.getInt();
+        }
+        for (int i = 0; i < counts.length; i++) {
+            pyramid.mLevels[i].readFrom(buffer, counts[i]);
+        }
+        return pyramid;
+    }
+
+    /**
+     * 一层峰值，按块存储，扩容时不拷贝已有数据
+     */
+    private static final class Level {
+
+        private static final int BLOCK_SHIFT = 12;
+        private static final int BLOCK_ENTRIES = 1 << BLOCK_SHIFT;
+        private static final int BLOCK_MASK = BLOCK_ENTRIES - 1;
+
+        private final int framesPerPeak;
+
+        private volatile short[][] blocks = new short[4][];   //每块BLOCK_ENTRIES对min/max
+        private volatile int count;
+
+        private short pendingMin;
+        private short pendingMax;
+        private int pendingFrames;
+
+        Level(int framesPerPeak) {
+            this.framesPerPeak = framesPerPeak;
+            resetPending();
+        }
+
+        void resetPending() {
+            pendingMin = Short.MAX_VALUE;
+            pendingMax = Short.MIN_VALUE;
+            pendingFrames = 0;
+        }
+
+        void append(short min, short max) {
+            int index = count;
+            short[] block = blockFor(index);
+            int offset = (index & BLOCK_MASK) * 2;
+            block[offset] = min;
+            block[offset + 1] = max;
+            //先写数据再增加count，查询线程读到count后数据一定可见
+            count = index + 1;
+        }
+
+        private short[] blockFor(int index) {
+            int blockIndex = index >>> BLOCK_SHIFT;
+            short[][] blocks = this.blocks;
+            if (blockIndex == blocks.length) {
+                short[][] grown = new short[blocks.length * 2][];
+                System.arraycopy(blocks, 0, grown, 0, blocks.length);
+                blocks = grown;
+                this.blocks = grown;
+            }
+            if (blocks[blockIndex] == null) {
+                blocks[blockIndex] = new short[BLOCK_ENTRIES * 2];
+            }
+            return blocks[blockIndex];
+        }
+
+        short getMin(int index) {
+            return blocks[index >>> BLOCK_SHIFT][(index & BLOCK_MASK) * 2];
+        }
+
+        short getMax(int index) {
+            return blocks[index >>> BLOCK_SHIFT][(index & BLOCK_MASK) * 2 + 1];
+        }
+
+        void writeTo(ByteBuffer buffer) {
+            int remaining = count;
+            short[][] blocks = this.blocks;
+            for (int b = 0; remaining > 0; b++) {
+                int n = Math.min(remaining, BLOCK_ENTRIES);
+                buffer.asShortBuffer().put(blocks[b], 0, n * 2);
+                buffer.position(buffer.position() + n * 4);
+                remaining -= n;
+            }
+        }
+
+        void readFrom(ByteBuffer buffer, int entries) {
+            for (int b = 0; b * BLOCK_ENTRIES < entries; b++) {
+                int n = Math.min(entries - b * BLOCK_ENTRIES, BLOCK_ENTRIES);
+                short[] block = blockFor(b * BLOCK_ENTRIES);
+                buffer.asShortBuffer().get(block, 0, n * 2);
+                buffer.position(buffer.position() + n * 4);
+            }
+            count = entries;
+        }
+    }
+}
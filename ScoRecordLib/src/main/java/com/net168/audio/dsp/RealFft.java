@@ -0,0 +1,164 @@
+package com.net168.audio.dsp;
+
+/**
+ * 实数FFT，基2，长度为2的幂
+ * <p>
+ * n个实数采样打包成n/2个复数做复数FFT，再拆分出n/2+1个频点。旋转因子、位反转表和工作区都在构造时分配，
+ * forward()/inverse()不分配内存；同一实例不能被多个线程同时使用。
+ */
+public class RealFft {
+
+    private final int n;
+    private final int half;
+
+    private final int[] bitReverse;
+
+    // half点复数FFT的旋转因子 exp(-2πi*k/half)
+    private final float[] cos;
+    private final float[] sin;
+
+    // n点实数FFT拆分用的旋转因子 exp(-2πi*k/n)
+    private final float[] splitCos;
+    private final float[] splitSin;
+
+    private final float[] workRe;
+    private final float[] workIm;
+
+    public RealFft(int n) {
+        if (n < 4 || Integer.bitCount(n) != 1) {
+            throw new IllegalArgumentException("fft size must be a power of 2 and >= 4: " + n);
+        }
+        this.n = n;
+        this.half = n / 2;
+
+        bitReverse = new int[half];
+        int bits = Integer.numberOfTrailingZeros(half);
+        for (int i = 0; i < half; i++) {
+            bitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+
+        cos = new float[half / 2];
+        sin = new float[half / 2];
+        for (int k = 0; k < half / 2; k++) {
+            double angle = -2 * Math.PI * k / half;
+            cos[k] = (float) Math.cos(angle);
+            sin[k] = (float) Math.sin(angle);
+        }
+
+        splitCos = new float[half + 1];
+        splitSin = new float[half + 1];
+        for (int k = 0; k <= half; k++) {
+            double angle = -2 * Math.PI * k / n;
+            splitCos[k] = (float) Math.cos(angle);
+            splitSin[k] = (float) Math.sin(angle);
+        }
+
+        workRe = new float[half];
+        workIm = new float[half];
+    }
+
+    public int size() {
+        return n;
+    }
+
+    /**
+     * 频点个数 n/2+1
+     */
+    public int bins() {
+        return half + 1;
+    }
+
+    /**
+     * 正变换
+     *
+     * @param in n个实数采样
+     * @param re 输出实部，长度不小于n/2+1
+     * @param im 输出虚部，长度不小于n/2+1
+     */
+    public void forward(float[] in, float[] re, float[] im) {
+        final float[] zr = workRe;
+        final float[] zi = workIm;
+        for (int k = 0; k < half; k++) {
+            int j = bitReverse[k];
+            zr[j] = in[2 * k];
+            zi[j] = in[2 * k + 1];
+        }
+        transform(zr, zi);
+
+        for (int k = 0; k <= half; k++) {
+            int a = k == half ? 0 : k;
+            int b = k == 0 ? 0 : half - k;
+            // E = (Z[k] + conj(Z[m-k])) / 2, O = (Z[k] - conj(Z[m-k])) / 2i
+            float er = (zr[a] + zr[b]) * 0.5f;
+            float ei = (zi[a] - zi[b]) * 0.5f;
+            float or = (zi[a] + zi[b]) * 0.5f;
+            float oi = (zr[b] - zr[a]) * 0.5f;
+            float wr = splitCos[k];
+            float wi = splitSin[k];
+            re[k] = er + wr * or - wi * oi;
+            im[k] = ei + wr * oi + wi * or;
+        }
+    }
+
+    /**
+     * 逆变换，含1/n归一化
+     *
+     * @param re 实部，n/2+1个频点
+     * @param im 虚部，n/2+1个频点
+     * @param out 输出n个实数采样
+     */
+    public void inverse(float[] re, float[] im, float[] out) {
+        final float[] zr = workRe;
+        final float[] zi = workIm;
+        for (int k = 0; k < half; k++) {
+            // E = (X[k] + conj(X[m-k])) / 2, O = (X[k] - conj(X[m-k])) * conj(W^k) / 2, Z = E + iO
+            float xr = re[k];
+            float xi = im[k];
+            float cr = re[half - k];
+            float ci = -im[half - k];
+            float er = (xr + cr) * 0.5f;
+            float ei = (xi + ci) * 0.5f;
+            float dr = (xr - cr) * 0.5f;
+            float di = (xi - ci) * 0.5f;
+            float wr = splitCos[k];
+            float wi = -splitSin[k];
+            float or = dr * wr - di * wi;
+            float oi = dr * wi + di * wr;
+            // 共轭后做正变换，等价于逆变换
+            int j = bitReverse[k];
+            zr[j] = er - oi;
+            zi[j] = -(ei + or);
+        }
+        transform(zr, zi);
+
+        final float scale = 1f / half;
+        for (int k = 0; k < half; k++) {
+            out[2 * k] = zr[k] * scale;
+            out[2 * k + 1] = -zi[k] * scale;
+        }
+    }
+
+    /**
+     * 原地复数FFT，输入已按位反转顺序排列
+     */
+    private void transform(float[] re, float[] im) {
+        for (int size = 2; size <= half; size <<= 1) {
+            int halfSize = size >> 1;
+            int step = half / size;
+            for (int start = 0; start < half; start += size) {
+                for (int k = 0; k < halfSize; k++) {
+                    float wr = cos[k * step];
+                    float wi = sin[k * step];
+                    int a = start + k;
+                    int b = a + halfSize;
+                    float tr = re[b] * wr - im[b] * wi;
+                    float ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+}
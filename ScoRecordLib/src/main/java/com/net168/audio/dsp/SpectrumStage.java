@@ -0,0 +1,165 @@
+package com.net168.audio.dsp;
+
+/**
+ * 流式频谱分析，不修改数据
+ * <p>
+ * 采集数据（多声道先混为单声道）写入长度为fftSize的环形历史，每累计hopSize个采样就取最近fftSize个采样，
+ * 加Hann窗做一次实数FFT，回调幅度谱。窗表、FFT表和所有工作区都在构造时分配，音频线程上不分配内存。
+ * <p>
+ * 可用于判断耳机SCO链路是窄带CVSD（8kHz采样，4kHz以上几乎没有能量）还是宽带mSBC（16kHz），以及频谱显示。
+ *
+ *
+ * sample:
+ mSpectrum = new SpectrumStage(512, 256, new SpectrumStage.SpectrumListener() {
+     public void onSpectrum(float[] magnitudes, int bins) {
+         float ratio = mSpectrum.getBandEnergyRatio(4000, 8000);
+     }
+ });
+ chain.addStage(mSpectrum);
+ */
+public class SpectrumStage implements DspStage {
+
+    private final int mFftSize;
+    private final int mHopSize;
+    private final SpectrumListener mListener;
+
+    private final RealFft mFft;
+    private final float[] mWindow;
+    private final float[] mHistory;     //环形历史
+    private final float[] mFrame;       //加窗后的FFT输入
+    private final float[] mRe;
+    private final float[] mIm;
+    private final float[] mMagnitudes;
+    private final float mScale;
+
+    private int mSampleRate;
+    private int mChannelCount;
+
+    private int mWritePos;
+    private int mSinceLastHop;
+    private long mSpectrumCount;
+
+    /**
+     * @param fftSize FFT长度，2的幂
+     * @param hopSize 每隔多少个采样（单声道）输出一次频谱，小于fftSize即为重叠分析
+     * @param listener 在音频线程上回调
+     */
+    public SpectrumStage(int fftSize, int hopSize, SpectrumListener listener) {
+        if (hopSize <= 0) {
+            throw new IllegalArgumentException("hopSize must be > 0: " + hopSize);
+        }
+        mFftSize = fftSize;
+        mHopSize = hopSize;
+        mListener = listener;
+
+        mFft = new RealFft(fftSize);
+        mWindow = new float[fftSize];
+        float windowSum = 0;
+        for (int i = 0; i < fftSize; i++) {
+            mWindow[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / fftSize));
+            windowSum += mWindow[i];
+        }
+        //正弦信号的幅度归一化到[0, 1]
+        mScale = 2f / windowSum / Short.MAX_VALUE;
+
+        mHistory = new float[fftSize];
+        mFrame = new float[fftSize];
+        mRe = new float[mFft.bins()];
+        mIm = new float[mFft.bins()];
+        mMagnitudes = new float[mFft.bins()];
+    }
+
+    @Override
+    public void prepare(int sampleRate, int channelCount) {
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mWritePos = 0;
+        mSinceLastHop = 0;
+    }
+
+    @Override
+    public void process(short[] samples, int count) {
+        final int channels = mChannelCount;
+        final float[] history = mHistory;
+        final int mask = mFftSize - 1;
+        for (int i = 0; i + channels <= count; i += channels) {
+            float v = samples[i];
+            for (int ch = 1; ch < channels; ch++) {
+                v += samples[i + ch];
+            }
+            history[mWritePos] = v / channels;
+            mWritePos = (mWritePos + 1) & mask;
+            if (++mSinceLastHop >= mHopSize) {
+                mSinceLastHop = 0;
+                analyze();
+            }
+        }
+    }
+
+    private void analyze() {
+        final float[] history = mHistory;
+        final float[] frame = mFrame;
+        final float[] window = mWindow;
+        final int size = mFftSize;
+        // mWritePos处是最旧的采样
+        int first = size - mWritePos;
+        for (int i = 0; i < first; i++) {
+            frame[i] = history[mWritePos + i] * window[i];
+        }
+        for (int i = first; i < size; i++) {
+            frame[i] = history[i - first] * window[i];
+        }
+
+        mFft.forward(frame, mRe, mIm);
+        final int bins = mFft.bins();
+        for (int k = 0; k < bins; k++) {
+            mMagnitudes[k] = (float) Math.sqrt(mRe[k] * mRe[k] + mIm[k] * mIm[k]) * mScale;
+        }
+        mSpectrumCount++;
+        if (mListener != null) {
+            mListener.onSpectrum(mMagnitudes, bins);
+        }
+    }
+
+    /**
+     * 第bin个频点对应的频率
+     */
+    public float getBinFrequency(int bin) {
+        return (float) bin * mSampleRate / mFftSize;
+    }
+
+    /**
+     * 已输出的频谱个数
+     */
+    public long getSpectrumCount() {
+        return mSpectrumCount;
+    }
+
+    /**
+     * 最近一次频谱中[lowHz, highHz)频段能量占总能量的比例，需在音频线程（回调中）调用
+     */
+    public float getBandEnergyRatio(float lowHz, float highHz) {
+        double band = 0;
+        double total = 0;
+        for (int k = 1; k < mMagnitudes.length; k++) {
+            double e = mMagnitudes[k] * mMagnitudes[k];
+            total += e;
+            float f = getBinFrequency(k);
+            if (f >= lowHz && f < highHz) {
+                band += e;
+            }
+        }
+        return total == 0 ? 0 : (float) (band / total);
+    }
+
+    public interface SpectrumListener {
+
+        /**
+         * 在音频线程上回调，magnitudes会被下一次分析覆盖，需要保留时自行拷贝
+         *
+         * @param magnitudes 各频点幅度，满幅正弦为1
+         * @param bins 频点个数 fftSize/2+1
+         */
+        void onSpectrum(float[] magnitudes, int bins);
+    }
+}
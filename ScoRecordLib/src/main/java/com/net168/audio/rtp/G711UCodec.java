@@ -0,0 +1,76 @@
+package com.net168.audio.rtp;
+
+/**
+ * G.711 μ-law，16bit压缩为8bit，负载类型0（PCMU）
+ */
+public class G711UCodec implements RtpCodec {
+
+    public static final int PAYLOAD_TYPE = 0;
+
+    private static final int BIAS = 0x84;
+    private static final int CLIP = 32635;
+
+    private static final short[] DECODE_TABLE = new short[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int u = ~i & 0xff;
+            int exponent = (u >> 4) & 0x07;
+            int mantissa = u & 0x0f;
+            int magnitude = (((mantissa << 3) + BIAS) << exponent) - BIAS;
+            DECODE_TABLE[i] = (short) ((u & 0x80) != 0 ? -magnitude : magnitude);
+        }
+    }
+
+    @Override
+    public int getPayloadType() {
+        return PAYLOAD_TYPE;
+    }
+
+    @Override
+    public int getEncodedSize(int pcmSize) {
+        return pcmSize / 2;
+    }
+
+    @Override
+    public int getDecodedSize(int payloadSize) {
+        return payloadSize * 2;
+    }
+
+    @Override
+    public int encode(byte[] pcm, int size, byte[] out) {
+        int samples = size / 2;
+        for (int i = 0; i < samples; i++) {
+            out[i] = encode((short) ((pcm[2 * i + 1] << 8) | (pcm[2 * i] & 0xff)));
+        }
+        return samples;
+    }
+
+    @Override
+    public int decode(byte[] payload, int size, byte[] pcm) {
+        for (int i = 0; i < size; i++) {
+            short v = DECODE_TABLE[payload[i] & 0xff];
+            pcm[2 * i] = (byte) v;
+            pcm[2 * i + 1] = (byte) (v >> 8);
+        }
+        return size * 2;
+    }
+
+    private static byte encode(short sample) {
+        int v = sample;
+        int sign = (v >> 8) & 0x80;
+        if (sign != 0) {
+            v = -v;
+        }
+        if (v > CLIP) {
+            v = CLIP;
+        }
+        v += BIAS;
+        int exponent = 7;
+        for (int mask = 0x4000; (v & mask) == 0 && exponent > 0; mask >>= 1) {
+            exponent--;
+        }
+        int mantissa = (v >> (exponent + 3)) & 0x0f;
+        return (byte) ~(sign | (exponent << 4) | mantissa);
+    }
+}
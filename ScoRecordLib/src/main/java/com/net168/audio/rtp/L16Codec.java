@@ -0,0 +1,55 @@
+package com.net168.audio.rtp;
+
+/**
+ * 不压缩的16bit PCM（RFC 3551 L16，网络字节序），使用动态负载类型
+ */
+public class L16Codec implements RtpCodec {
+
+    private final int mPayloadType;
+
+    public L16Codec() {
+        this(96);
+    }
+
+    /**
+     * @param payloadType 动态负载类型，96~127，需与接收端约定
+     */
+    public L16Codec(int payloadType) {
+        mPayloadType = payloadType;
+    }
+
+    @Override
+    public int getPayloadType() {
+        return mPayloadType;
+    }
+
+    @Override
+    public int getEncodedSize(int pcmSize) {
+        return pcmSize;
+    }
+
+    @Override
+    public int getDecodedSize(int payloadSize) {
+        return payloadSize;
+    }
+
+    @Override
+    public int encode(byte[] pcm, int size, byte[] out) {
+        return swap(pcm, size, out);
+    }
+
+    @Override
+    public int decode(byte[] payload, int size, byte[] pcm) {
+        return swap(payload, size, pcm);
+    }
+
+    private static int swap(byte[] src, int size, byte[] dst) {
+        size -= size % 2;
+        for (int i = 0; i < size; i += 2) {
+            byte b = src[i];
+            dst[i] = src[i + 1];
+            dst[i + 1] = b;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,32 @@
+package com.net168.audio.rtp;
+
+/**
+ * RTP负载编解码，PCM均为16bit小端
+ */
+public interface RtpCodec {
+
+    /**
+     * RTP负载类型
+     */
+    int getPayloadType();
+
+    /**
+     * pcmSize字节PCM编码后的字节数
+     */
+    int getEncodedSize(int pcmSize);
+
+    /**
+     * payloadSize字节负载解码后的PCM字节数
+     */
+    int getDecodedSize(int payloadSize);
+
+    /**
+     * @return 写入out的字节数
+     */
+    int encode(byte[] pcm, int size, byte[] out);
+
+    /**
+     * @return 写入pcm的字节数
+     */
+    int decode(byte[] payload, int size, byte[] pcm);
+}
@@ -0,0 +1,80 @@
+package com.net168.audio.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * RTP固定头（RFC 3550），12字节，不带CSRC和扩展头
+ */
+final class RtpHeader {
+
+    static final int SIZE = 12;
+
+    /**
+     * 整个RTP包（头+负载）的上限：以太网MTU 1500 - IPv4头20 - UDP头8，超过会在IP层分片
+     */
+    static final int MAX_PACKET_SIZE = 1472;
+
+    private static final int VERSION = 2;
+
+    private RtpHeader() {
+    }
+
+    static void write(ByteBuffer buffer, boolean marker, int payloadType, int sequence, long timestamp, int ssrc) {
+        buffer.put((byte) (VERSION << 6));
+        buffer.put((byte) ((marker ? 0x80 : 0) | (payloadType & 0x7f)));
+        buffer.putShort((short) sequence);
+        buffer.putInt((int) timestamp);
+        buffer.putInt(ssrc);
+    }
+
+    /**
+     * 检查版本号并跳过CSRC和扩展头，buffer的position移动到负载开始处
+     *
+     * @return 不是合法RTP包时返回false
+     */
+    static boolean skipToPayload(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < SIZE || (buffer.get(start) & 0xc0) >> 6 != VERSION) {
+            return false;
+        }
+        int first = buffer.get(start) & 0xff;
+        int csrcCount = first & 0x0f;
+        int offset = SIZE + csrcCount * 4;
+        if ((first & 0x10) != 0) {
+            if (buffer.remaining() < offset + 4) {
+                return false;
+            }
+            int extensionWords = buffer.getShort(start + offset + 2) & 0xffff;
+            offset += 4 + extensionWords * 4;
+        }
+        if (buffer.remaining() < offset) {
+            return false;
+        }
+        if ((first & 0x20) != 0) {
+            //去掉末尾的padding，长度至少为1（含长度字节本身），且不能超出负载
+            int padding = buffer.get(buffer.limit() - 1) & 0xff;
+            if (padding < 1 || padding > buffer.remaining() - offset) {
+                return false;
+            }
+            buffer.limit(buffer.limit() - padding);
+        }
+        buffer.position(start + offset);
+        return true;
+    }
+
+    static int payloadType(ByteBuffer buffer, int start) {
+        return buffer.get(start + 1) & 0x7f;
+    }
+
+    static int sequence(ByteBuffer buffer, int start) {
+        return buffer.getShort(start + 2) & 0xffff;
+    }
+
+    static long timestamp(ByteBuffer buffer, int start) {
+        return buffer.getInt(start + 4) & 0xffffffffL;
+    }
+
+    static int ssrc(ByteBuffer buffer, int start) {
+        return buffer.getInt(start + 8);
+    }
+}
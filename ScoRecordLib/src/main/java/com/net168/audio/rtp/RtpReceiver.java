@@ -0,0 +1,198 @@
+package com.net168.audio.rtp;
+
+import android.util.Log;
+import com.net168.audio.AudioPlayer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * 接收RtpUplink发出的RTP包，解码后写入AudioPlayer
+ * <p>
+ * 每次唤醒读完socket中所有已到达的包；只接受第一个SSRC的包，乱序到达的旧包直接丢弃。
+ *
+ *
+ * sample:
+ mAudioPlayer.prepare(new AudioParam(AudioCapture.AUDIO_SAMPLE_RATE_8, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT));
+ mAudioPlayer.play();
+ mReceiver = new RtpReceiver(5004, new G711UCodec(), mAudioPlayer);
+ mReceiver.start();
+
+ mReceiver.stop();
+ */
+public class RtpReceiver {
+
+    private static final String TAG = RtpReceiver.class.getSimpleName();
+
+    private final int mLocalPort;
+    private final RtpCodec mCodec;
+    private final AudioPlayer mAudioPlayer;
+
+    //多留1字节，收到超长包时能发现被截断
+    private final ByteBuffer mPacket = ByteBuffer.allocateDirect(RtpHeader.MAX_PACKET_SIZE + 1);
+    private final byte[] mPayload = new byte[RtpHeader.MAX_PACKET_SIZE];
+    private final byte[] mPcm;
+
+    private DatagramChannel mChannel;
+    private Selector mSelector;
+    private volatile boolean mRunning;
+    private Thread mReceiveThread;
+
+    private boolean mSynced;
+    private int mSsrc;
+    private int mExpectedSequence;
+
+    private volatile long mReceivedPackets;
+    private volatile long mLostPackets;
+    private volatile long mLatePackets;
+
+    /**
+     * @param localPort 本地监听端口
+     * @param codec 与发送端一致的编解码
+     */
+    public RtpReceiver(int localPort, RtpCodec codec, AudioPlayer audioPlayer) {
+        mLocalPort = localPort;
+        mCodec = codec;
+        mAudioPlayer = audioPlayer;
+        mPcm = new byte[codec.getDecodedSize(RtpHeader.MAX_PACKET_SIZE)];
+    }
+
+    public synchronized boolean start() {
+        if (mRunning) {
+            return true;
+        }
+        try {
+            mChannel = DatagramChannel.open();
+            mChannel.configureBlocking(false);
+            mChannel.socket().bind(new InetSocketAddress(mLocalPort));
+            mSelector = Selector.open();
+            mChannel.register(mSelector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            Log.e(TAG, "open channel fail", e);
+            close();
+            return false;
+        }
+        mSynced = false;
+        mRunning = true;
+        mReceiveThread = new ReceiveThread();
+        mReceiveThread.start();
+        return true;
+    }
+
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mSelector.wakeup();
+        try {
+            mReceiveThread.join();
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+        mReceiveThread = null;
+        close();
+    }
+
+    public long getReceivedPackets() {
+        return mReceivedPackets;
+    }
+
+    /**
+     * 根据序号空缺统计的丢包数
+     */
+    public long getLostPackets() {
+        return mLostPackets;
+    }
+
+    /**
+     * 乱序或重复到达而被丢弃的包数
+     */
+    public long getLatePackets() {
+        return mLatePackets;
+    }
+
+    private void close() {
+        try {
+            if (mSelector != null) {
+                mSelector.close();
+            }
+            if (mChannel != null) {
+                mChannel.close();
+            }
+        } catch (IOException ignored) {
+        }
+        mSelector = null;
+        mChannel = null;
+    }
+
+    private void handlePacket(ByteBuffer packet) {
+        int start = packet.position();
+        if (packet.remaining() > RtpHeader.MAX_PACKET_SIZE) {
+            Log.w(TAG, "drop oversized packet");
+            return;
+        }
+        if (!RtpHeader.skipToPayload(packet) || RtpHeader.payloadType(packet, start) != mCodec.getPayloadType()) {
+            return;
+        }
+        int ssrc = RtpHeader.ssrc(packet, start);
+        int sequence = RtpHeader.sequence(packet, start);
+        if (!mSynced) {
+            mSynced = true;
+            mSsrc = ssrc;
+        } else if (ssrc != mSsrc) {
+            return;
+        } else {
+            int delta = (sequence - mExpectedSequence) & 0xffff;
+            if (delta >= 0x8000) {
+                mLatePackets++;
+                return;
+            }
+            mLostPackets += delta;
+        }
+        mExpectedSequence = (sequence + 1) & 0xffff;
+        mReceivedPackets++;
+
+        int len = packet.remaining();
+        packet.get(mPayload, 0, len);
+        int pcmSize = mCodec.decode(mPayload, len, mPcm);
+        mAudioPlayer.write(mPcm, pcmSize);
+    }
+
+    class ReceiveThread extends Thread {
+
+        ReceiveThread() {
+            super("RtpReceiver");
+        }
+
+        @Override
+        public void run() {
+            while (mRunning) {
+                try {
+                    mSelector.select(200);
+                    mSelector.selectedKeys().clear();
+                    //一次读完所有已到达的包
+                    while (mRunning) {
+                        mPacket.clear();
+                        if (mChannel.receive(mPacket) == null) {
+                            break;
+                        }
+                        mPacket.flip();
+                        try {
+                            handlePacket(mPacket);
+                        } catch (RuntimeException e) {
+                            //来自网络的畸形包只丢弃这一个，不能让接收线程退出
+                            Log.w(TAG, "drop malformed packet: " + e);
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "receive packet fail: " + e);
+                }
+            }
+            Log.i(TAG, "ReceiveThread complete...");
+        }
+    }
+}
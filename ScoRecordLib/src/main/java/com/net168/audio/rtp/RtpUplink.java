@@ -0,0 +1,231 @@
+package com.net168.audio.rtp;
+
+import android.util.Log;
+import com.net168.audio.AudioCapture;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 把采集的PCM（16bit）打包成RTP，通过非阻塞DatagramChannel发送
+ * <p>
+ * 采集线程只负责攒包、编码并放入预先分配好的环形队列，不做任何socket操作；
+ * 每攒够packetsPerBatch个包唤醒一次发送线程，发送线程一次发完所有待发包，减少唤醒次数。
+ * 发送缓冲区满或队列满时丢包，序号和时间戳照常递增，接收端可以据此统计丢包。
+ * 单个RTP包不能超过1472字节（以太网MTU去掉IP、UDP头），例如L16在44.1kHz单声道下packetMs最多16ms。
+ *
+ *
+ * sample:
+ mUplink = new RtpUplink(new InetSocketAddress("127.0.0.1", 5004), AudioCapture.AUDIO_SAMPLE_RATE_8, 1,
+ new G711UCodec(), 20, 3);
+ mUplink.start();
+ mAudioCapture.setAudioCaptureCallback(mUplink);
+
+ mUplink.stop();
+ */
+public class RtpUplink implements AudioCapture.AudioCaptureCallback {
+
+    private static final String TAG = RtpUplink.class.getSimpleName();
+
+    private final InetSocketAddress mRemote;
+    private final RtpCodec mCodec;
+    private final int mFramesPerPacket;
+    private final int mPacketBytes;       //每个包的PCM字节数
+    private final int mPacketsPerBatch;
+    private final long mBatchNanos;
+
+    private final byte[] mPending;        //正在攒的包
+    private int mPendingSize;
+    private final byte[] mEncoded;
+
+    private final ByteBuffer[] mSlots;
+    private final AtomicLong mPublished = new AtomicLong();
+    private final AtomicLong mConsumed = new AtomicLong();
+
+    private final int mSsrc;
+    private int mSequence;
+    private long mTimestamp;
+    private boolean mMarker = true;
+
+    private final AtomicLong mSentPackets = new AtomicLong();
+    private final AtomicLong mDroppedPackets = new AtomicLong();
+
+    private DatagramChannel mChannel;
+    private volatile Thread mSendThread;
+    private volatile boolean mRunning;
+
+    public RtpUplink(InetSocketAddress remote, int sampleRate, int channelCount, RtpCodec codec) {
+        this(remote, sampleRate, channelCount, codec, 20, 3);
+    }
+
+    /**
+     * @param packetMs 每个包的时长，一般为10/20/40ms
+     * @param packetsPerBatch 每次唤醒发送线程发送的包数
+     * @throws IllegalArgumentException 编码后的包超过1472字节
+     */
+    public RtpUplink(InetSocketAddress remote, int sampleRate, int channelCount, RtpCodec codec,
+        int packetMs, int packetsPerBatch) {
+        mRemote = remote;
+        mCodec = codec;
+        mFramesPerPacket = sampleRate * packetMs / 1000;
+        mPacketBytes = mFramesPerPacket * channelCount * 2;
+        int packetSize = RtpHeader.SIZE + codec.getEncodedSize(mPacketBytes);
+        if (mPacketBytes <= 0 || packetSize > RtpHeader.MAX_PACKET_SIZE) {
+            throw new IllegalArgumentException("RTP packet size " + packetSize + " out of range, max "
+                + RtpHeader.MAX_PACKET_SIZE + ", use a shorter packetMs");
+        }
+        mPacketsPerBatch = Math.max(1, packetsPerBatch);
+        mBatchNanos = packetMs * 1000000L * mPacketsPerBatch;
+
+        mPending = new byte[mPacketBytes];
+        mEncoded = new byte[codec.getEncodedSize(mPacketBytes)];
+        //队列可容纳4个批次
+        mSlots = new ByteBuffer[mPacketsPerBatch * 4];
+        for (int i = 0; i < mSlots.length; i++) {
+            mSlots[i] = ByteBuffer.allocateDirect(RtpHeader.SIZE + mEncoded.length);
+        }
+        mSsrc = new Random().nextInt();
+    }
+
+    public synchronized boolean start() {
+        if (mRunning) {
+            return true;
+        }
+        try {
+            mChannel = DatagramChannel.open();
+            mChannel.configureBlocking(false);
+            mChannel.connect(mRemote);
+        } catch (IOException e) {
+            Log.e(TAG, "open channel fail", e);
+            closeChannel();
+            return false;
+        }
+        mPendingSize = 0;
+        mMarker = true;
+        mPublished.set(0);
+        mConsumed.set(0);
+        mRunning = true;
+        mSendThread = new SendThread();
+        mSendThread.start();
+        return true;
+    }
+
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        Thread thread = mSendThread;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+        mSendThread = null;
+        closeChannel();
+    }
+
+    public long getSentPackets() {
+        return mSentPackets.get();
+    }
+
+    public long getDroppedPackets() {
+        return mDroppedPackets.get();
+    }
+
+    @Override
+    public void onPCMDataAvailable(byte[] data, int size) {
+        if (!mRunning) {
+            return;
+        }
+        int offset = 0;
+        while (offset < size) {
+            int len = Math.min(size - offset, mPacketBytes - mPendingSize);
+            System.arraycopy(data, offset, mPending, mPendingSize, len);
+            mPendingSize += len;
+            offset += len;
+            if (mPendingSize == mPacketBytes) {
+                packetize();
+                mPendingSize = 0;
+            }
+        }
+    }
+
+    /**
+     * 在采集线程上把mPending编码放入发送队列
+     */
+    private void packetize() {
+        long published = mPublished.get();
+        if (published - mConsumed.get() >= mSlots.length) {
+            mDroppedPackets.incrementAndGet();
+        } else {
+            ByteBuffer slot = mSlots[(int) (published % mSlots.length)];
+            slot.clear();
+            RtpHeader.write(slot, mMarker, mCodec.getPayloadType(), mSequence, mTimestamp, mSsrc);
+            int len = mCodec.encode(mPending, mPacketBytes, mEncoded);
+            slot.put(mEncoded, 0, len);
+            slot.flip();
+            mPublished.lazySet(published + 1);
+            mMarker = false;
+            if ((published + 1) % mPacketsPerBatch == 0) {
+                LockSupport.unpark(mSendThread);
+            }
+        }
+        mSequence = (mSequence + 1) & 0xffff;
+        mTimestamp += mFramesPerPacket;
+    }
+
+    private void closeChannel() {
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException ignored) {
+            }
+            mChannel = null;
+        }
+    }
+
+    class SendThread extends Thread {
+
+        SendThread() {
+            super("RtpUplink");
+        }
+
+        @Override
+        public void run() {
+            while (mRunning) {
+                //正常由采集线程唤醒，超时只是兜底
+                LockSupport.parkNanos(mBatchNanos * 2);
+                drain();
+            }
+            drain();
+            Log.i(TAG, "SendThread complete...");
+        }
+
+        private void drain() {
+            long consumed = mConsumed.get();
+            long published = mPublished.get();
+            while (consumed < published) {
+                ByteBuffer slot = mSlots[(int) (consumed % mSlots.length)];
+                try {
+                    if (mChannel.write(slot) > 0) {
+                        mSentPackets.incrementAndGet();
+                    } else {
+                        //socket发送缓冲区满
+                        mDroppedPackets.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "send packet fail: " + e);
+                    mDroppedPackets.incrementAndGet();
+                }
+                consumed++;
+                mConsumed.lazySet(consumed);
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.net168.bt;
+
+import android.bluetooth.BluetoothDevice;
+import android.media.AudioManager;
+import android.util.Log;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 蓝牙事件黑匣子：固定容量的无锁环形缓冲，常开记录ACL / Headset / A2DP / SCO状态变化和SCO连接尝试
+ * <p>
+ * 每个事件只记录 类型、状态、设备地址哈希、单调时间戳（System.nanoTime），记录时不拼字符串、不分配内存；
+ * 写满后覆盖最旧的事件。需要时dump到日志或export为二进制，并可计算ACL连接到SCO连接等耗时。
+ *
+ *
+ * sample:
+ BtEventRecorder.dump();
+ long aclToSco = BtEventRecorder.getLastAclToScoMs();
+ BtEventRecorder.export(new FileOutputStream(file));
+ */
+public final class BtEventRecorder {
+
+    private static final String TAG = BtEventRecorder.class.getSimpleName();
+
+    private static final int CAPACITY = 512;    //2的幂
+    private static final int MASK = CAPACITY - 1;
+    private static final int EXPORT_MAGIC = 0x42544556;   // "BTEV"
+
+    private static final AtomicLong sSequence = new AtomicLong();
+    // 每个槽的版本号：写入中为0，写完为序号+1，读取前后一致才认为数据完整
+    private static final AtomicLongArray sVersions = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray sTimes = new AtomicLongArray(CAPACITY);
+    private static final AtomicIntegerArray sTypes = new AtomicIntegerArray(CAPACITY);
+    private static final AtomicIntegerArray sStates = new AtomicIntegerArray(CAPACITY);
+    private static final AtomicIntegerArray sDevices = new AtomicIntegerArray(CAPACITY);
+
+    private static final String[] TYPE_NAMES = {"bt", "acl_connected", "acl_disconnect_requested", "acl_disconnected",
+        "headset", "headset_audio", "sco", "vendor", "sco_start", "sco_tick", "sco_timeout", "sco_stop"};
+
+    private BtEventRecorder() {
+    }
+
+    /**
+     * 记录一个事件，可在任意线程调用
+     *
+     * @param type 参看EventType
+     * @param state 事件相关的状态值，没有时为0
+     * @param device 相关设备，可为null
+     */
+    public static void record(int type, int state, BluetoothDevice device) {
+        record(type, state, deviceHash(device));
+    }
+
+    public static void record(int type, int state, int deviceHash) {
+        long time = System.nanoTime();
+        long seq = sSequence.getAndIncrement();
+        int slot = (int) (seq & MASK);
+        sVersions.set(slot, 0);
+        sTimes.set(slot, time);
+        sTypes.set(slot, type);
+        sStates.set(slot, state);
+        sDevices.set(slot, deviceHash);
+        sVersions.set(slot, seq + 1);
+    }
+
+    private static int deviceHash(BluetoothDevice device) {
+        if (device == null) {
+            return 0;
+        }
+        String address = device.getAddress();
+        return address == null ? 0 : address.hashCode();
+    }
+
+    /**
+     * 已记录的事件总数（含被覆盖的）
+     */
+    public static long getRecordedCount() {
+        return sSequence.get();
+    }
+
+    /**
+     * 当前缓冲中的事件，按时间先后；正在写入或读取中被覆盖的事件会被跳过
+     */
+    public static List<Event> snapshot() {
+        long end = sSequence.get();
+        long start = Math.max(0, end - CAPACITY);
+        List<Event> events = new ArrayList<>((int) (end - start));
+        for (long seq = start; seq < end; seq++) {
+            int slot = (int) (seq & MASK);
+            long version = sVersions.get(slot);
+            if (version != seq + 1) {
+                continue;
+            }
+            Event event = new Event(sTimes.get(slot), sTypes.get(slot), sStates.get(slot), sDevices.get(slot));
+            if (sVersions.get(slot) == version) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * 最近一次ACL连接到随后SCO连接成功的耗时，没有时返回-1
+     */
+    public static long getLastAclToScoMs() {
+        return lastInterval(EventType.ACL_CONNECTED, AudioManager.SCO_AUDIO_STATE_CONNECTED);
+    }
+
+    /**
+     * 最近一次发起SCO连接到连接成功的耗时，没有时返回-1
+     */
+    public static long getLastScoAttemptMs() {
+        return lastInterval(EventType.SCO_START, AudioManager.SCO_AUDIO_STATE_CONNECTED);
+    }
+
+    /**
+     * 最近一个起始事件到其后第一个SCO状态为scoState的事件的间隔
+     */
+    private static long lastInterval(int startType, int scoState) {
+        List<Event> events = snapshot();
+        long result = -1;
+        long startTime = -1;
+        for (Event event : events) {
+            if (event.type == startType) {
+                startTime = event.timeNanos;
+            } else if (startTime >= 0 && event.type == EventType.SCO_STATE && event.state == scoState) {
+                result = (event.timeNanos - startTime) / 1000000;
+                startTime = -1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 输出到日志，时间为相对第一个事件的毫秒数
+     */
+    public static void dump() {
+        List<Event> events = snapshot();
+        Log.i(TAG, "dump " + events.size() + " events, recorded " + getRecordedCount());
+        long base = events.isEmpty() ? 0 : events.get(0).timeNanos;
+        for (Event event : events) {
+            Log.i(TAG, "+" + (event.timeNanos - base) / 1000000 + "ms " + event);
+        }
+        Log.i(TAG, "acl->sco = " + getLastAclToScoMs() + "ms, sco attempt = " + getLastScoAttemptMs() + "ms");
+    }
+
+    /**
+     * 导出为二进制：magic、事件数，之后每个事件为 long时间戳、int类型、int状态、int设备哈希（大端）
+     */
+    public static void export(OutputStream out) throws IOException {
+        List<Event> events = snapshot();
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(EXPORT_MAGIC);
+        dos.writeInt(events.size());
+        for (Event event : events) {
+            dos.writeLong(event.timeNanos);
+            dos.writeInt(event.type);
+            dos.writeInt(event.state);
+            dos.writeInt(event.deviceHash);
+        }
+        dos.flush();
+    }
+
+    public static final class Event {
+
+        Event(long timeNanos, int type, int state, int deviceHash) {
+            this.timeNanos = timeNanos;
+            this.type = type;
+            this.state = state;
+            this.deviceHash = deviceHash;
+        }
+
+        public final long timeNanos;
+        public final int type;
+        public final int state;
+        public final int deviceHash;
+
+        @Override
+        public String toString() {
+            String name = type >= 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : String.valueOf(type);
+            return name + "{state=" + state + ", device=" + Integer.toHexString(deviceHash) + "}";
+        }
+    }
+
+    public interface EventType {
+
+        int BT_STATE = 0;                 // BluetoothAdapter.ACTION_STATE_CHANGED
+        int ACL_CONNECTED = 1;
+        int ACL_DISCONNECT_REQUESTED = 2;
+        int ACL_DISCONNECTED = 3;
+        int HEADSET_STATE = 4;            // BluetoothHeadset.ACTION_CONNECTION_STATE_CHANGED
+        int HEADSET_AUDIO_STATE = 5;      // BluetoothHeadset.ACTION_AUDIO_STATE_CHANGED
+        int SCO_STATE = 6;                // AudioManager.ACTION_SCO_AUDIO_STATE_UPDATED
+        int VENDOR_EVENT = 7;             // BluetoothHeadset.ACTION_VENDOR_SPECIFIC_HEADSET_EVENT
+        int SCO_START = 8;                // 发起SCO连接
+        int SCO_TICK = 9;                 // 倒计时中调用startBluetoothSco
+        int SCO_TIMEOUT = 10;             // 倒计时结束仍未连接
+        int SCO_STOP = 11;                // 主动关闭SCO
+    }
+}
@@ -75,6 +75,7 @@ class HeadsetReceiver extends BroadcastReceiver {
 
     public void onReceive(Context context, Intent intent) {
         String action = intent.getAction();
+        recordEvent(action, intent);
 
         if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(intent.getAction())) {
             int btState = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.STATE_OFF);
@@ -118,7 +119,9 @@ class HeadsetReceiver extends BroadcastReceiver {
                 headsetCallback.onAclDisconnected();
             }
         } else if (action.equals(BluetoothHeadset.ACTION_AUDIO_STATE_CHANGED)) {
-            Log.i(TAG, "onReceive with: a2dp intent = " + intent + "");
+            if (isVerbose()) {
+                Log.i(TAG, "onReceive with: a2dp intent = " + intent + "");
+            }
             int state = intent.getIntExtra(BluetoothProfile.EXTRA_STATE, -1);
             printA2DPState(state);
             switch (state) {
@@ -152,6 +155,10 @@ class HeadsetReceiver extends BroadcastReceiver {
             }
             scoState = state;
         } else if (action.equals(BluetoothHeadset.ACTION_VENDOR_SPECIFIC_HEADSET_EVENT)) {
+            //厂商事件目前只用于打印电量，已由recordEvent记录
+            if (!isVerbose()) {
+                return;
+            }
             String command = intent.getStringExtra(BluetoothHeadset.EXTRA_VENDOR_SPECIFIC_HEADSET_EVENT_CMD);
             Log.i(TAG, "command =   "+command);
             int commandType = intent.getIntExtra(BluetoothHeadset.EXTRA_VENDOR_SPECIFIC_HEADSET_EVENT_CMD_TYPE, -1);
@@ -175,8 +182,56 @@ class HeadsetReceiver extends BroadcastReceiver {
         }
     }
 
+    /**
+     * 记录到BtEventRecorder，只取整数字段，不拼字符串
+     */
+    private static void recordEvent(String action, Intent intent) {
+        int type;
+        int state;
+        if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {
+            type = BtEventRecorder.EventType.BT_STATE;
+            state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, -1);
+        } else if (BluetoothDevice.ACTION_ACL_CONNECTED.equals(action)) {
+            type = BtEventRecorder.EventType.ACL_CONNECTED;
+            state = 0;
+        } else if (BluetoothDevice.ACTION_ACL_DISCONNECT_REQUESTED.equals(action)) {
+            type = BtEventRecorder.EventType.ACL_DISCONNECT_REQUESTED;
+            state = 0;
+        } else if (BluetoothDevice.ACTION_ACL_DISCONNECTED.equals(action)) {
+            type = BtEventRecorder.EventType.ACL_DISCONNECTED;
+            state = 0;
+        } else if (BluetoothHeadset.ACTION_CONNECTION_STATE_CHANGED.equals(action)) {
+            type = BtEventRecorder.EventType.HEADSET_STATE;
+            state = intent.getIntExtra(BluetoothProfile.EXTRA_STATE, -1);
+        } else if (BluetoothHeadset.ACTION_AUDIO_STATE_CHANGED.equals(action)) {
+            type = BtEventRecorder.EventType.HEADSET_AUDIO_STATE;
+            state = intent.getIntExtra(BluetoothProfile.EXTRA_STATE, -1);
+        } else if (AudioManager.ACTION_SCO_AUDIO_STATE_UPDATED.equals(action)) {
+            type = BtEventRecorder.EventType.SCO_STATE;
+            state = intent.getIntExtra(AudioManager.EXTRA_SCO_AUDIO_STATE, AudioManager.SCO_AUDIO_STATE_ERROR);
+        } else if (BluetoothHeadset.ACTION_VENDOR_SPECIFIC_HEADSET_EVENT.equals(action)) {
+            type = BtEventRecorder.EventType.VENDOR_EVENT;
+            state = intent.getIntExtra(BluetoothHeadset.EXTRA_VENDOR_SPECIFIC_HEADSET_EVENT_CMD_TYPE, -1);
+        } else {
+            return;
+        }
+        BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+        BtEventRecorder.record(type, state, device);
+    }
+
+    /**
+     * 详细日志在主线程上拼接大量字符串，默认关闭，需要时用adb shell setprop log.tag.HeadsetReceiver DEBUG打开；
+     * 平时通过BtEventRecorder.dump()查看事件
+     */
+    private static boolean isVerbose() {
+        return Log.isLoggable(TAG, Log.DEBUG);
+    }
+
     //打印蓝牙的状态
     private void printBTState(int btState) {
+        if (!isVerbose()) {
+            return;
+        }
         switch (btState) {
             case BluetoothAdapter.STATE_OFF:
                 Log.i(TAG, "BluetoothAdapter.ACTION_STATE_CHANGED========蓝牙:已关闭===========" + btState);
@@ -197,6 +252,9 @@ class HeadsetReceiver extends BroadcastReceiver {
 
     //打印acl的状态
     private void printACLState(String action) {
+        if (!isVerbose()) {
+            return;
+        }
         Log.i(TAG, "printACLState with: action = " + action + "");
     }
     /**
@@ -217,6 +275,9 @@ class HeadsetReceiver extends BroadcastReceiver {
     }
 
     private void printHeadsetState(int btState, BluetoothDevice bluetoothDevice) {
+        if (!isVerbose()) {
+            return;
+        }
         switch (btState) {
             case BluetoothProfile.STATE_DISCONNECTED:
                 Log.i(TAG, "BluetoothHeadset.ACTION_CONNECTION_STATE_CHANGED========Headset:已关闭==============" + btState + ", bluetoothDevice = " + bluetoothDevice.getName() + "");
@@ -236,6 +297,9 @@ class HeadsetReceiver extends BroadcastReceiver {
     }
 
     private void printA2DPState(int btState) {
+        if (!isVerbose()) {
+            return;
+        }
         switch (btState) {
             case BluetoothHeadset.STATE_AUDIO_DISCONNECTED:
                 Log.i(TAG, "BluetoothHeadset.ACTION_AUDIO_STATE_CHANGED========a2dp:已关闭==============" + btState);
@@ -248,6 +312,9 @@ class HeadsetReceiver extends BroadcastReceiver {
 
     private int scoState = AudioManager.SCO_AUDIO_STATE_DISCONNECTED;
     private void printScoState(int btState) {
+        if (!isVerbose()) {
+            return;
+        }
         switch (btState) {
             case AudioManager.SCO_AUDIO_STATE_CONNECTING:
                 Log.i(TAG, "AudioManager.ACTION_SCO_AUDIO_STATE_UPDATED========sco:打开中...==============" + btState);
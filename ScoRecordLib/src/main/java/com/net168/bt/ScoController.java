@@ -6,9 +6,15 @@ import android.content.Context;
 import android.media.AudioDeviceInfo;
 import android.media.AudioManager;
 import android.os.CountDownTimer;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.Log;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Sco操作
@@ -16,6 +22,8 @@ import java.util.Set;
  *     sco打开:通过蓝牙耳机mic录音<br/>
  *     sco关闭:通过手机mic录音<br/>
  * <p/>
+ * 构造时只保存参数，不启动线程；第一次start/startAsync时才在后台线程获取BluetoothAdapter和AudioManager，并注册广播。
+ * 建议在第一次需要sco时调用startAsync，等后台初始化完成后再在主线程start。各阶段耗时见getInitStats()。
  *
  * @author 喵叔catuncle    11/2/18
  */
@@ -23,10 +31,23 @@ public class ScoController {
 
     private static final String TAG = ScoController.class.getSimpleName();
     private final Context mContext;
-    private final BluetoothAdapter mBluetoothAdapter;
-    private final AudioManager mAudioManager;
+    private volatile BluetoothAdapter mBluetoothAdapter;
+    private volatile AudioManager mAudioManager;
     private final HeadsetReceiver headsetReceiver;
 
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final CountDownLatch mInitLatch = new CountDownLatch(1);
+    private final List<Runnable> mPendingStarts = new ArrayList<>();
+    private boolean mInitStarted;   // 由mPendingStarts保护
+
+    //初始化各阶段耗时
+    private long mConstructNanos;
+    private volatile long mAdapterNanos;
+    private volatile long mAudioManagerNanos;
+    private volatile long mWaitNanos;
+    private volatile long mRegisterNanos;
+    private volatile long mFirstStartNanos;
+
     private final Set<ScoCallback> scoCallbacks = new HashSet<>();
     private boolean mIsCountDownOn;
     private boolean mIsStarting;
@@ -37,34 +58,146 @@ public class ScoController {
     }
 
     public ScoController(Context mContext, ScoCallback scoCallback) {
+        long begin = System.nanoTime();
         this.mContext = mContext.getApplicationContext();
         if (scoCallback != null) {
             this.scoCallbacks.add(scoCallback);
         }
-        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        mAudioManager = (AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE);
         headsetReceiver = new HeadsetReceiver();
+        mConstructNanos = System.nanoTime() - begin;
+    }
+
+    /**
+     * 第一次使用时开始后台初始化，只执行一次
+     */
+    private void ensureInitStarted() {
+        synchronized (mPendingStarts) {
+            if (mInitStarted) {
+                return;
+            }
+            mInitStarted = true;
+        }
+        initAsync();
+    }
+
+    /**
+     * 在后台线程获取系统服务。旧版本的getDefaultAdapter要求调用线程有Looper，所以用HandlerThread
+     */
+    private void initAsync() {
+        final HandlerThread initThread = new HandlerThread("ScoController-init");
+        initThread.start();
+        new Handler(initThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                long begin = System.nanoTime();
+                mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+                long adapterEnd = System.nanoTime();
+                mAudioManager = (AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE);
+                mAdapterNanos = adapterEnd - begin;
+                mAudioManagerNanos = System.nanoTime() - adapterEnd;
+
+                List<Runnable> pending;
+                synchronized (mPendingStarts) {
+                    mInitLatch.countDown();
+                    pending = new ArrayList<>(mPendingStarts);
+                    mPendingStarts.clear();
+                }
+                for (Runnable runnable : pending) {
+                    mMainHandler.post(runnable);
+                }
+                initThread.quit();
+                Log.i(TAG, "init done, " + getInitStats());
+            }
+        });
     }
 
     /**
-     * sco打开
+     * 等待后台初始化完成，主线程上通常已经完成，等待时间计入InitStats
+     */
+    private void awaitInit() {
+        if (mInitLatch.getCount() == 0) {
+            return;
+        }
+        long begin = System.nanoTime();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mInitLatch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        mWaitNanos += System.nanoTime() - begin;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * sco打开，需在主线程调用
      */
     public boolean start() {
         if (!mIsStarted) {
             Log.i(TAG, "start");
+            long begin = System.nanoTime();
+            ensureInitStarted();
+            awaitInit();
             mIsStarted = true;
 
             mIsStarted = startBluetooth();
+            if (mFirstStartNanos == 0) {
+                mFirstStartNanos = System.nanoTime() - begin;
+            }
         }
 
         return mIsStarted;
     }
 
+    /**
+     * 后台初始化完成后在主线程start，不阻塞调用线程
+     *
+     * @param callback 在主线程回调start()的结果，可为null
+     */
+    public void startAsync(final StartCallback callback) {
+        Runnable startRunnable = new Runnable() {
+            @Override
+            public void run() {
+                boolean ret = start();
+                if (callback != null) {
+                    callback.onStarted(ret);
+                }
+            }
+        };
+        synchronized (mPendingStarts) {
+            if (mInitLatch.getCount() > 0) {
+                mPendingStarts.add(startRunnable);
+            } else {
+                mMainHandler.post(startRunnable);
+            }
+        }
+        ensureInitStarted();
+    }
+
+    /**
+     * 初始化各阶段耗时
+     */
+    public InitStats getInitStats() {
+        return new InitStats(mConstructNanos, mAdapterNanos, mAudioManagerNanos, mWaitNanos, mRegisterNanos, mFirstStartNanos);
+    }
+
     /**
      * sco关闭
      */
     public void stop() {
         Log.i(TAG, "stop");
+        synchronized (mPendingStarts) {
+            //从未start过，没有需要关闭的sco，也不为此获取系统服务
+            if (!mInitStarted) {
+                return;
+            }
+        }
+        awaitInit();
         mIsStarted = false;
 
         stopBluetooth();
@@ -77,9 +210,12 @@ public class ScoController {
     }
 
     /**
-     * 判断sco是否已连接
+     * 判断sco是否已连接，不阻塞；还没有start过或后台初始化未完成时返回false
      */
     public boolean isScoConnected() {
+        if (mInitLatch.getCount() > 0) {
+            return false;
+        }
         return isHeadsetConnected() && mAudioManager.isBluetoothScoOn();
     }
 
@@ -112,6 +248,7 @@ public class ScoController {
         // Device support bluetooth
         if (mBluetoothAdapter != null) {
             if (mAudioManager.isBluetoothScoAvailableOffCall()) {
+                long registerBegin = System.nanoTime();
                 headsetReceiver.register(mContext, new HeadsetReceiver.HeadsetCallback() {
 
                     @Override
@@ -177,6 +314,9 @@ public class ScoController {
                         }
                     }
                 });
+                if (mRegisterNanos == 0) {
+                    mRegisterNanos = System.nanoTime() - registerBegin;
+                }
 
                 if (isHeadsetConnected()) {
 //                    stopBluetooth();
@@ -191,6 +331,7 @@ public class ScoController {
     }
 
     private void startSco() {
+        BtEventRecorder.record(BtEventRecorder.EventType.SCO_START, 0, null);
         //start sco...
         mAudioManager.setBluetoothScoOn(false);
         mAudioManager.stopBluetoothSco();
@@ -203,6 +344,7 @@ public class ScoController {
     }
 
     private void stopBluetooth() {
+        BtEventRecorder.record(BtEventRecorder.EventType.SCO_STOP, 0, null);
         if (mIsCountDownOn) {
             mIsCountDownOn = false;
             mCountDown.cancel();
@@ -225,6 +367,7 @@ public class ScoController {
             // When this call is successful, this count down timer will be canceled.
             mAudioManager.setMode(AudioManager.MODE_IN_COMMUNICATION);
             mAudioManager.startBluetoothSco();
+            BtEventRecorder.record(BtEventRecorder.EventType.SCO_TICK, (int) (millisUntilFinished / 1000), null);
 
             Log.i(TAG, "onTick start bluetooth Sco");
         }
@@ -236,6 +379,7 @@ public class ScoController {
             // Should implement something to inform user of this failure
             mIsCountDownOn = false;
             mAudioManager.setMode(AudioManager.MODE_NORMAL);
+            BtEventRecorder.record(BtEventRecorder.EventType.SCO_TIMEOUT, 0, null);
 
             Log.i(TAG, "onFinish fail to connect to headset audio");
         }
@@ -271,6 +415,41 @@ public class ScoController {
         }
     };
 
+    public interface StartCallback {
+
+        void onStarted(boolean result);
+    }
+
+    /**
+     * 初始化各阶段耗时（纳秒），未发生的阶段为0
+     */
+    public static final class InitStats {
+
+        InitStats(long constructNanos, long adapterNanos, long audioManagerNanos, long waitNanos, long registerNanos,
+            long firstStartNanos) {
+            this.constructNanos = constructNanos;
+            this.adapterNanos = adapterNanos;
+            this.audioManagerNanos = audioManagerNanos;
+            this.waitNanos = waitNanos;
+            this.registerNanos = registerNanos;
+            this.firstStartNanos = firstStartNanos;
+        }
+
+        public final long constructNanos;     // 构造函数，调用线程
+        public final long adapterNanos;       // 获取BluetoothAdapter，后台线程
+        public final long audioManagerNanos;  // 获取AudioManager，后台线程
+        public final long waitNanos;          // 调用线程等待后台初始化的累计时间
+        public final long registerNanos;      // 首次start注册广播
+        public final long firstStartNanos;    // 首次start总耗时（含等待和注册）
+
+        @Override
+        public String toString() {
+            return "InitStats{construct=" + constructNanos / 1000 + "us, adapter=" + adapterNanos / 1000
+                + "us, audioManager=" + audioManagerNanos / 1000 + "us, wait=" + waitNanos / 1000
+                + "us, register=" + registerNanos / 1000 + "us, firstStart=" + firstStartNanos / 1000 + "us}";
+        }
+    }
+
     public interface ScoCallback {
 
         void onHeadsetConnected();
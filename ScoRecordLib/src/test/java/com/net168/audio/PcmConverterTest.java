@@ -0,0 +1,201 @@
+package com.net168.audio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.media.AudioFormat;
+import org.junit.Test;
+
+/**
+ * PcmConverter的往返、边界值、声道和大小端转换，以及一个粗略的吞吐量检查
+ */
+public class PcmConverterTest {
+
+    private static final PcmConverter.Format S16_MONO = format(AudioFormat.ENCODING_PCM_16BIT, 1, false);
+    private static final PcmConverter.Format S16_STEREO = format(AudioFormat.ENCODING_PCM_16BIT, 2, false);
+    private static final PcmConverter.Format S16_MONO_BE = format(AudioFormat.ENCODING_PCM_16BIT, 1, true);
+    private static final PcmConverter.Format U8_MONO = format(AudioFormat.ENCODING_PCM_8BIT, 1, false);
+    private static final PcmConverter.Format FLOAT_MONO = format(AudioFormat.ENCODING_PCM_FLOAT, 1, false);
+    private static final PcmConverter.Format FLOAT_MONO_BE = format(AudioFormat.ENCODING_PCM_FLOAT, 1, true);
+
+    private static PcmConverter.Format format(int encoding, int channelCount, boolean bigEndian) {
+        return new PcmConverter.Format(encoding, channelCount, bigEndian);
+    }
+
+    private static byte[] convert(PcmConverter.Format in, PcmConverter.Format out, byte[] src) {
+        PcmConverter converter = new PcmConverter(in, out);
+        byte[] dst = new byte[converter.getOutputSize(src.length)];
+        assertEquals(dst.length, converter.convert(src, src.length, dst));
+        return dst;
+    }
+
+    private static byte[] s16(boolean bigEndian, int... samples) {
+        byte[] out = new byte[samples.length * 2];
+        for (int i = 0; i < samples.length; i++) {
+            out[2 * i + (bigEndian ? 1 : 0)] = (byte) samples[i];
+            out[2 * i + (bigEndian ? 0 : 1)] = (byte) (samples[i] >> 8);
+        }
+        return out;
+    }
+
+    private static int[] toS16(byte[] data) {
+        int[] out = new int[data.length / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (short) ((data[2 * i + 1] << 8) | (data[2 * i] & 0xff));
+        }
+        return out;
+    }
+
+    private static byte[] f32(boolean bigEndian, float... samples) {
+        byte[] out = new byte[samples.length * 4];
+        for (int i = 0; i < samples.length; i++) {
+            int bits = Float.floatToRawIntBits(samples[i]);
+            for (int b = 0; b < 4; b++) {
+                out[4 * i + (bigEndian ? 3 - b : b)] = (byte) (bits >> (8 * b));
+            }
+        }
+        return out;
+    }
+
+    private static float[] toF32(byte[] data) {
+        float[] out = new float[data.length / 4];
+        for (int i = 0; i < out.length; i++) {
+            int j = 4 * i;
+            out[i] = Float.intBitsToFloat((data[j + 3] << 24) | ((data[j + 2] & 0xff) << 16)
+                | ((data[j + 1] & 0xff) << 8) | (data[j] & 0xff));
+        }
+        return out;
+    }
+
+    @Test
+    public void s16RoundTripThroughFloatIsExact() {
+        int[] all = new int[65536];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i - 32768;
+        }
+        byte[] src = s16(false, all);
+        byte[] back = convert(FLOAT_MONO, S16_MONO, convert(S16_MONO, FLOAT_MONO, src));
+        assertArrayEquals(src, back);
+    }
+
+    @Test
+    public void u8RoundTripThroughS16IsExact() {
+        byte[] src = new byte[256];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = (byte) i;
+        }
+        byte[] s16 = convert(U8_MONO, S16_MONO, src);
+        int[] samples = toS16(s16);
+        for (int i = 0; i < 256; i++) {
+            assertEquals((i - 128) * 256, samples[i]);
+        }
+        assertArrayEquals(src, convert(S16_MONO, U8_MONO, s16));
+    }
+
+    @Test
+    public void edgeValuesDecodeToFullScale() {
+        float[] f = toF32(convert(S16_MONO, FLOAT_MONO, s16(false, -32768, 0, 32767)));
+        assertEquals(-1f, f[0], 0);
+        assertEquals(0f, f[1], 0);
+        assertEquals(32767f / 32768, f[2], 0);
+
+        f = toF32(convert(U8_MONO, FLOAT_MONO, new byte[]{0, (byte) 128, (byte) 255}));
+        assertEquals(-1f, f[0], 0);
+        assertEquals(0f, f[1], 0);
+        assertEquals(127f / 128, f[2], 0);
+    }
+
+    @Test
+    public void floatIsClippedAtFullScale() {
+        byte[] src = f32(false, 1f, -1f, 1.5f, -1.5f, 0.5f);
+        int[] s16 = toS16(convert(FLOAT_MONO, S16_MONO, src));
+        assertEquals(32767, s16[0]);
+        assertEquals(-32768, s16[1]);
+        assertEquals(32767, s16[2]);
+        assertEquals(-32768, s16[3]);
+        assertEquals(16384, s16[4]);
+
+        byte[] u8 = convert(FLOAT_MONO, U8_MONO, src);
+        assertEquals(255, u8[0] & 0xff);
+        assertEquals(0, u8[1] & 0xff);
+        assertEquals(255, u8[2] & 0xff);
+        assertEquals(0, u8[3] & 0xff);
+        assertEquals(192, u8[4] & 0xff);
+    }
+
+    @Test
+    public void monoToStereoDuplicatesAndStereoToMonoAverages() {
+        int[] stereo = toS16(convert(S16_MONO, S16_STEREO, s16(false, 100, -32768, 32767)));
+        assertEquals(6, stereo.length);
+        assertEquals(100, stereo[0]);
+        assertEquals(100, stereo[1]);
+        assertEquals(-32768, stereo[2]);
+        assertEquals(-32768, stereo[3]);
+        assertEquals(32767, stereo[4]);
+        assertEquals(32767, stereo[5]);
+
+        int[] mono = toS16(convert(S16_STEREO, S16_MONO, s16(false, 1000, 3000, 32767, 32767, -32768, -32768, -32768, 32767)));
+        assertEquals(4, mono.length);
+        assertEquals(2000, mono[0]);
+        assertEquals(32767, mono[1]);
+        assertEquals(-32768, mono[2]);
+        assertEquals(0, mono[3]);
+    }
+
+    @Test
+    public void endianConversion() {
+        byte[] le = s16(false, 0x1234, -2, 32767);
+        byte[] be = s16(true, 0x1234, -2, 32767);
+        assertArrayEquals(be, convert(S16_MONO, S16_MONO_BE, le));
+        assertArrayEquals(le, convert(S16_MONO_BE, S16_MONO, be));
+
+        byte[] fle = f32(false, 0.25f, -0.75f);
+        byte[] fbe = f32(true, 0.25f, -0.75f);
+        assertArrayEquals(fbe, convert(FLOAT_MONO, FLOAT_MONO_BE, fle));
+        //大端16bit ---> 小端float，经过解码路径
+        float[] f = toF32(convert(S16_MONO_BE, FLOAT_MONO, be));
+        assertEquals(0x1234 / 32768f, f[0], 0);
+        assertEquals(-2 / 32768f, f[1], 0);
+    }
+
+    @Test
+    public void partialFrameIsIgnoredAndSmallDstRejected() {
+        PcmConverter converter = new PcmConverter(S16_STEREO, S16_MONO);
+        assertEquals(2, converter.getOutputSize(7));
+        byte[] src = s16(false, 10, 20, 30, 40);
+        assertEquals(2, converter.convert(src, 7, new byte[2]));
+        try {
+            converter.convert(src, src.length, new byte[3]);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * 粗略检查：16bit立体声 ---> 16bit单声道（走解码、混音、编码的完整路径）要远快于实时
+     */
+    @Test
+    public void throughputIsFarAboveRealtime() {
+        PcmConverter converter = new PcmConverter(S16_STEREO, S16_MONO);
+        byte[] src = new byte[48000 * 4];    // 1秒48kHz立体声
+        for (int i = 0; i < src.length; i++) {
+            src[i] = (byte) (i * 31);
+        }
+        byte[] dst = new byte[converter.getOutputSize(src.length)];
+        for (int i = 0; i < 50; i++) {
+            converter.convert(src, src.length, dst);
+        }
+        int rounds = 200;
+        long begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            converter.convert(src, src.length, dst);
+        }
+        long elapsed = System.nanoTime() - begin;
+        double realtime = rounds * 1e9 / elapsed;
+        System.out.println("PcmConverter s16 stereo -> mono: " + String.format("%.0f", realtime) + "x realtime, "
+            + String.format("%.0f", rounds * (double) src.length / 1048576 / (elapsed / 1e9)) + " MB/s");
+        assertTrue("too slow: " + realtime + "x realtime", realtime > 50);
+    }
+}
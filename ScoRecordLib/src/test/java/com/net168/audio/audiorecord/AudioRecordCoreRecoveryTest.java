@@ -0,0 +1,289 @@
+package com.net168.audio.audiorecord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * 用按脚本返回read结果的FakeAudioRecord驱动AudioRecordCore的错误分类、退避和重建
+ */
+public class AudioRecordCoreRecoveryTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int MIN_BUFFER_SIZE = 640;
+
+    private FakeCore mCore;
+    private final RecordingListener mListener = new RecordingListener();
+
+    @After
+    public void tearDown() {
+        if (mCore != null) {
+            mCore.releaseRecord();
+        }
+    }
+
+    @Test
+    public void classifyErrorMapsReadResults() {
+        assertEquals(AudioRecordCore.ERROR_KIND_STALL, AudioRecordCore.classifyError(0));
+        assertEquals(AudioRecordCore.ERROR_KIND_FATAL, AudioRecordCore.classifyError(AudioRecord.ERROR_BAD_VALUE));
+        assertEquals(AudioRecordCore.ERROR_KIND_RECOVERABLE, AudioRecordCore.classifyError(AudioRecord.ERROR_DEAD_OBJECT));
+        assertEquals(AudioRecordCore.ERROR_KIND_RECOVERABLE, AudioRecordCore.classifyError(AudioRecord.ERROR));
+        assertEquals(AudioRecordCore.ERROR_KIND_RECOVERABLE,
+            AudioRecordCore.classifyError(AudioRecord.ERROR_INVALID_OPERATION));
+    }
+
+    @Test
+    public void deadObjectRecreatesRecordAndResumes() throws Exception {
+        start(new FakeAudioRecord(AudioRecord.ERROR_DEAD_OBJECT, MIN_BUFFER_SIZE, AudioRecord.ERROR_DEAD_OBJECT),
+            new FakeAudioRecord(MIN_BUFFER_SIZE));
+
+        assertTrue(mListener.recovered.await(2, TimeUnit.SECONDS));
+        assertEquals(AudioRecord.ERROR_DEAD_OBJECT, mListener.errorCode);
+        assertEquals(1, mListener.attempts);
+        assertEquals(2, mCore.opened.size());
+        assertTrue(mCore.opened.get(0).released);
+        //重建后继续有数据
+        int before = mListener.dataCount.get();
+        Thread.sleep(50);
+        assertTrue(mListener.dataCount.get() > before);
+        assertTrue(mCore.isRecording());
+
+        mCore.stopRecord();
+        mCore.releaseRecord();
+        assertTrue(mListener.stopped.await(1, TimeUnit.SECONDS));
+        assertTrue(mCore.opened.get(1).released);
+        mCore = null;
+    }
+
+    @Test
+    public void badValueGivesUpWithoutRecreating() throws Exception {
+        start(new FakeAudioRecord(AudioRecord.ERROR_BAD_VALUE));
+
+        assertTrue(mListener.failed.await(1, TimeUnit.SECONDS));
+        assertEquals(AudioRecord.ERROR_BAD_VALUE, mListener.errorCode);
+        assertEquals(0, mListener.attempts);
+        assertEquals(1, mCore.opened.size());
+        assertTrue(mListener.stopped.await(1, TimeUnit.SECONDS));
+        assertFalse(mCore.isRecording());
+        assertTrue(mCore.isInitSuccess());
+    }
+
+    @Test
+    public void stallWaitsWithoutRecreating() throws Exception {
+        start(new FakeAudioRecord(MIN_BUFFER_SIZE, 0, 0, 0, 0, 0, MIN_BUFFER_SIZE));
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (mListener.dataCount.get() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(mListener.dataCount.get() >= 5);
+        assertEquals(1, mCore.opened.size());
+        assertEquals(1, mListener.recovered.getCount());
+        assertEquals(1, mListener.failed.getCount());
+    }
+
+    @Test
+    public void recreateFailureGivesUpAfterMaxAttempts() throws Exception {
+        mCore = new FakeCore();
+        mCore.failNewRecords = true;
+        start(new FakeAudioRecord(AudioRecord.ERROR_DEAD_OBJECT));
+
+        assertTrue(mListener.failed.await(5, TimeUnit.SECONDS));
+        assertEquals(AudioRecord.ERROR_DEAD_OBJECT, mListener.errorCode);
+        assertEquals(6, mListener.attempts);
+        assertEquals(1, mListener.recovered.getCount());
+        //第一个失效后被释放，之后每次创建都初始化失败并立即释放
+        for (FakeAudioRecord record : mCore.opened) {
+            assertTrue(record.released);
+        }
+        assertFalse(mCore.isRecording());
+    }
+
+    @Test
+    public void releaseDoesNotFreeRecordWhileReadIsBlocked() throws Exception {
+        FakeAudioRecord record = new FakeAudioRecord(MIN_BUFFER_SIZE);
+        start(record);
+        Thread.sleep(50);
+        //read阻塞超过releaseRecord的等待时间，且不响应stop
+        record.blockMs = 1500;
+        Thread.sleep(100);
+
+        mCore.releaseRecord();
+        assertFalse(record.released);
+        assertTrue(mListener.stopped.await(2, TimeUnit.SECONDS));
+        //采集线程从read返回后自己释放
+        long deadline = System.currentTimeMillis() + 1000;
+        while (!record.released && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(record.released);
+        assertFalse(record.readAfterRelease);
+        mCore = null;
+    }
+
+    private void start(FakeAudioRecord... records) {
+        if (mCore == null) {
+            mCore = new FakeCore();
+        }
+        for (FakeAudioRecord record : records) {
+            mCore.scripted.add(record);
+        }
+        mCore.setOnAudioCaptureCallback(mListener);
+        mCore.setRecoveryListener(mListener);
+        assertTrue(mCore.createRecord(SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT));
+        mCore.startRecord();
+        assertTrue(mCore.isRecording());
+    }
+
+    static class FakeCore extends AudioRecordCore {
+
+        final List<FakeAudioRecord> scripted = new ArrayList<FakeAudioRecord>();
+        final List<FakeAudioRecord> opened = new ArrayList<FakeAudioRecord>();
+        boolean failNewRecords;
+
+        @Override
+        int getMinBufferSize(int sampleRate, int channelConfig, int audioFormat) {
+            return MIN_BUFFER_SIZE;
+        }
+
+        @Override
+        synchronized AudioRecord openAudioRecord(int bufferSize) {
+            FakeAudioRecord record;
+            if (!scripted.isEmpty()) {
+                record = scripted.remove(0);
+            } else {
+                record = new FakeAudioRecord(MIN_BUFFER_SIZE);
+                record.initialized = !failNewRecords;
+            }
+            opened.add(record);
+            return record;
+        }
+    }
+
+    /**
+     * 依次返回脚本中的read结果，之后一直返回最后一个；返回正数时休眠对应的时长
+     */
+    static class FakeAudioRecord extends AudioRecord {
+
+        private final int[] mResults;
+        private int mIndex;
+        volatile boolean initialized = true;
+        volatile boolean recording;
+        volatile boolean released;
+        volatile boolean readAfterRelease;
+        volatile long blockMs;
+
+        FakeAudioRecord(int... results) {
+            super(0, SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, MIN_BUFFER_SIZE);
+            mResults = results;
+        }
+
+        @Override
+        public int getState() {
+            return initialized ? STATE_INITIALIZED : STATE_UNINITIALIZED;
+        }
+
+        @Override
+        public int getRecordingState() {
+            return recording ? RECORDSTATE_RECORDING : RECORDSTATE_STOPPED;
+        }
+
+        @Override
+        public void startRecording() {
+            recording = true;
+        }
+
+        @Override
+        public void stop() {
+            recording = false;
+        }
+
+        @Override
+        public void release() {
+            recording = false;
+            released = true;
+        }
+
+        @Override
+        public int read(byte[] audioData, int offsetInBytes, int sizeInBytes) {
+            if (released) {
+                readAfterRelease = true;
+            }
+            long block = blockMs;
+            if (block > 0) {
+                blockMs = 0;
+                try {
+                    Thread.sleep(block);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (released) {
+                    readAfterRelease = true;
+                }
+                return sizeInBytes;
+            }
+            if (!recording) {
+                return ERROR_INVALID_OPERATION;
+            }
+            int result = mResults[Math.min(mIndex++, mResults.length - 1)];
+            if (result > 0) {
+                result = Math.min(result, sizeInBytes);
+                try {
+                    Thread.sleep(result * 1000L / (SAMPLE_RATE * 2));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return result;
+        }
+    }
+
+    static class RecordingListener implements AudioRecordCore.InnerAudioCaptureCallback,
+        AudioRecordCore.InnerRecoveryListener {
+
+        final AtomicInteger dataCount = new AtomicInteger();
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final CountDownLatch recovered = new CountDownLatch(1);
+        final CountDownLatch failed = new CountDownLatch(1);
+        volatile int errorCode;
+        volatile int attempts;
+
+        @Override
+        public void onPCMDataAvailable(byte[] data, int size) {
+            dataCount.incrementAndGet();
+        }
+
+        @Override
+        public void onCaptureStopped() {
+            stopped.countDown();
+        }
+
+        @Override
+        public void onCaptureTimestamp(long framePosition, long nanoTime, boolean hardware) {
+        }
+
+        @Override
+        public void onRecovered(int errorCode, int attempts) {
+            this.errorCode = errorCode;
+            this.attempts = attempts;
+            recovered.countDown();
+        }
+
+        @Override
+        public void onRecoveryFailed(int errorCode, int attempts) {
+            this.errorCode = errorCode;
+            this.attempts = attempts;
+            failed.countDown();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.net168.audio.rtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+/**
+ * RtpHeader.skipToPayload对padding、CSRC、扩展头的边界检查
+ */
+public class RtpHeaderTest {
+
+    private static ByteBuffer packet(int firstByte, int payloadSize, int lastByte) {
+        ByteBuffer buffer = ByteBuffer.allocate(RtpHeader.SIZE + payloadSize);
+        RtpHeader.write(buffer, false, 96, 1, 160, 1234);
+        buffer.put(0, (byte) firstByte);
+        if (payloadSize > 0) {
+            buffer.put(buffer.capacity() - 1, (byte) lastByte);
+        }
+        buffer.position(0);
+        buffer.limit(buffer.capacity());
+        return buffer;
+    }
+
+    @Test
+    public void plainPacketSkipsFixedHeader() {
+        ByteBuffer buffer = packet(0x80, 10, 0);
+        assertTrue(RtpHeader.skipToPayload(buffer));
+        assertEquals(RtpHeader.SIZE, buffer.position());
+        assertEquals(10, buffer.remaining());
+    }
+
+    @Test
+    public void validPaddingIsStripped() {
+        ByteBuffer buffer = packet(0xa0, 10, 4);
+        assertTrue(RtpHeader.skipToPayload(buffer));
+        assertEquals(6, buffer.remaining());
+
+        //负载全部是padding
+        buffer = packet(0xa0, 10, 10);
+        assertTrue(RtpHeader.skipToPayload(buffer));
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    public void paddingLongerThanPayloadIsRejected() {
+        assertFalse(RtpHeader.skipToPayload(packet(0xa0, 10, 11)));
+        assertFalse(RtpHeader.skipToPayload(packet(0xa0, 1, 255)));
+        //只有固定头，padding长度字节落在头里
+        assertFalse(RtpHeader.skipToPayload(packet(0xa0, 0, 0)));
+    }
+
+    @Test
+    public void zeroPaddingIsRejected() {
+        assertFalse(RtpHeader.skipToPayload(packet(0xa0, 10, 0)));
+    }
+
+    @Test
+    public void truncatedCsrcAndExtensionAreRejected() {
+        //声明了15个CSRC，实际只有8字节
+        assertFalse(RtpHeader.skipToPayload(packet(0x8f, 8, 0)));
+        //扩展头不完整
+        assertFalse(RtpHeader.skipToPayload(packet(0x90, 2, 0)));
+        //版本号不是2
+        assertFalse(RtpHeader.skipToPayload(packet(0x40, 10, 0)));
+    }
+}
@@ -0,0 +1,181 @@
+package com.net168.audio.rtp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.net168.audio.AudioPlayer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * RtpUplink经127.0.0.1发给RtpReceiver，检查收到的PCM与发送的一致
+ */
+public class RtpLoopbackTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int PACKET_MS = 20;
+    private static final int PACKET_BYTES = SAMPLE_RATE * PACKET_MS / 1000 * 2;
+    private static final int PACKETS = 50;
+
+    private RtpUplink mUplink;
+    private RtpReceiver mReceiver;
+
+    @After
+    public void tearDown() {
+        if (mUplink != null) {
+            mUplink.stop();
+        }
+        if (mReceiver != null) {
+            mReceiver.stop();
+        }
+    }
+
+    @Test
+    public void l16RoundTripIsLossless() throws Exception {
+        byte[] pcm = makePcm();
+        byte[] received = roundTrip(new L16Codec(), pcm);
+        assertArrayEquals(pcm, received);
+    }
+
+    @Test
+    public void g711uRoundTripMatchesCodec() throws Exception {
+        G711UCodec codec = new G711UCodec();
+        byte[] pcm = makePcm();
+        //G711有损，期望值为同一编解码在本地走一遍的结果
+        byte[] encoded = new byte[codec.getEncodedSize(pcm.length)];
+        int encodedSize = codec.encode(pcm, pcm.length, encoded);
+        byte[] expected = new byte[codec.getDecodedSize(encodedSize)];
+        codec.decode(encoded, encodedSize, expected);
+
+        byte[] received = roundTrip(codec, pcm);
+        assertArrayEquals(expected, received);
+    }
+
+    @Test
+    public void malformedPacketsDoNotStopReceiver() throws Exception {
+        int port = freePort();
+        CapturePlayer player = new CapturePlayer();
+        L16Codec codec = new L16Codec();
+        mReceiver = new RtpReceiver(port, codec, player);
+        assertEquals(true, mReceiver.start());
+
+        DatagramSocket socket = new DatagramSocket();
+        InetAddress local = InetAddress.getByName("127.0.0.1");
+        //padding长度超出包长
+        byte[] badPadding = new byte[RtpHeader.SIZE + 1];
+        badPadding[0] = (byte) 0xa0;
+        badPadding[1] = (byte) codec.getPayloadType();
+        badPadding[badPadding.length - 1] = (byte) 0xff;
+        //过短
+        byte[] truncated = new byte[]{(byte) 0x80, 96, 0};
+        //正常的包
+        ByteBuffer good = ByteBuffer.allocate(RtpHeader.SIZE + 4);
+        RtpHeader.write(good, true, codec.getPayloadType(), 7, 0, 42);
+        good.put(new byte[]{1, 2, 3, 4});
+        try {
+            socket.send(new DatagramPacket(badPadding, badPadding.length, local, port));
+            socket.send(new DatagramPacket(truncated, truncated.length, local, port));
+            socket.send(new DatagramPacket(good.array(), good.capacity(), local, port));
+        } finally {
+            socket.close();
+        }
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (mReceiver.getReceivedPackets() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, mReceiver.getReceivedPackets());
+        assertArrayEquals(new byte[]{2, 1, 4, 3}, player.toByteArray());
+    }
+
+    @Test
+    public void packetLargerThanMtuIsRejected() {
+        InetSocketAddress remote = new InetSocketAddress("127.0.0.1", 5004);
+        //L16 44.1kHz 16ms：12 + 705 * 2 = 1422字节
+        new RtpUplink(remote, 44100, 1, new L16Codec(), 16, 1);
+        //L16 44.1kHz 20ms：12 + 882 * 2 = 1776字节
+        try {
+            new RtpUplink(remote, 44100, 1, new L16Codec(), 20, 1);
+            fail("oversized packet accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private byte[] roundTrip(RtpCodec codec, byte[] pcm) throws Exception {
+        int port = freePort();
+        CapturePlayer player = new CapturePlayer();
+        mReceiver = new RtpReceiver(port, codec, player);
+        assertEquals(true, mReceiver.start());
+        mUplink = new RtpUplink(new InetSocketAddress("127.0.0.1", port), SAMPLE_RATE, 1, codec, PACKET_MS, 1);
+        assertEquals(true, mUplink.start());
+
+        //每次送半个包，检查跨回调攒包；按包间隔稍作停顿，避免发送队列满
+        int chunk = PACKET_BYTES / 2;
+        byte[] buffer = new byte[chunk];
+        for (int offset = 0; offset < pcm.length; offset += chunk) {
+            System.arraycopy(pcm, offset, buffer, 0, chunk);
+            mUplink.onPCMDataAvailable(buffer, chunk);
+            Thread.sleep(1);
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mReceiver.getReceivedPackets() < PACKETS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        mUplink.stop();
+        mReceiver.stop();
+
+        assertEquals(PACKETS, mUplink.getSentPackets());
+        assertEquals(0, mUplink.getDroppedPackets());
+        assertEquals(PACKETS, mReceiver.getReceivedPackets());
+        assertEquals(0, mReceiver.getLostPackets());
+        assertEquals(0, mReceiver.getLatePackets());
+        return player.toByteArray();
+    }
+
+    private static byte[] makePcm() {
+        byte[] pcm = new byte[PACKET_BYTES * PACKETS];
+        for (int i = 0; i < pcm.length / 2; i++) {
+            short s = (short) (8000 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE) + (i % 7) * 3);
+            pcm[2 * i] = (byte) s;
+            pcm[2 * i + 1] = (byte) (s >> 8);
+        }
+        return pcm;
+    }
+
+    private static int freePort() throws IOException {
+        DatagramSocket socket = new DatagramSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    /**
+     * 不打开AudioTrack，只记录RtpReceiver写入的数据
+     */
+    static class CapturePlayer extends AudioPlayer {
+
+        private final ByteArrayOutputStream mData = new ByteArrayOutputStream();
+
+        CapturePlayer() {
+            super(null);
+        }
+
+        @Override
+        public synchronized void write(byte[] data, int size) {
+            mData.write(data, 0, size);
+        }
+
+        synchronized byte[] toByteArray() {
+            return mData.toByteArray();
+        }
+    }
+}
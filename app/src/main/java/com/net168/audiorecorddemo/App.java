@@ -1,8 +1,7 @@
 package com.net168.audiorecorddemo;
 
 import android.app.Application;
-import android.os.Handler;
-import android.widget.Toast;
+import com.net168.audio.PcmBufferPool;
 import com.net168.bt.ScoController;
 
 public class App extends Application {
@@ -12,22 +11,17 @@ public class App extends Application {
     @Override
     public void onCreate() {
         super.onCreate();
-        scoController = new ScoController(this.getApplicationContext(), null);
-        new Handler().post(new Runnable() {
-            @Override
-            public void run() {
-
-
-                boolean ret = scoController.start();
-                if (!ret) {
-                    Toast.makeText(App.this, "请先连接智能AI蓝牙耳机", Toast.LENGTH_SHORT).show();
-                }
-            }
-        });
-
+        //debug包检查PCM缓冲是否都已归还
+        PcmBufferPool.setLeakDetection(BuildConfig.DEBUG);
     }
 
+    /**
+     * 冷启动时不创建也不start，第一次使用时才创建；sco由页面在需要录音时startAsync
+     */
     public ScoController getScoController() {
+        if (scoController == null) {
+            scoController = new ScoController(this.getApplicationContext(), null);
+        }
         return scoController;
     }
 }
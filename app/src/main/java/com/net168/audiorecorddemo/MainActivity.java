@@ -16,6 +16,8 @@ import com.net168.audio.AudioCapture.AudioCaptureCallback;
 import com.net168.audio.AudioPlayer;
 import com.net168.audio.AudioPlayer.AudioParam;
 import com.net168.audio.AudioPlayer.IPlayCallback;
+import com.net168.audio.MicSessionManager;
+import com.net168.audio.PcmConverter;
 import com.net168.bt.ScoController;
 import com.net168.bt.ScoController.ScoCallback;
 
@@ -28,7 +30,8 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     private Handler mainHandler;
 
     private ScoController scoController;
-    private AudioCapture mAudioCapture;
+    private boolean mScoRequested;
+    private MicSessionManager.Client mMicClient;
     private AudioPlayer audioPlayer = new AudioPlayer(
         new IPlayCallback() {
             @Override
@@ -47,11 +50,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         findViewById(R.id.start).setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View v) {
-                boolean ret = scoController.start();
-                Log.i(TAG, "onClick with: ret = " + ret + "");
-                if (!ret) {
-                    Toast.makeText(MainActivity.this, "请先连接智能AI蓝牙耳机", Toast.LENGTH_SHORT).show();
-                }
+                startSco();
             }
         });
         findViewById(R.id.stop).setOnClickListener(new OnClickListener() {
@@ -101,6 +100,22 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         }
     }
 
+    /**
+     * 后台获取系统服务后在主线程start，不阻塞界面
+     */
+    private void startSco() {
+        mScoRequested = true;
+        scoController.startAsync(new ScoController.StartCallback() {
+            @Override
+            public void onStarted(boolean result) {
+                Log.i(TAG, "sco start: " + result + ", " + scoController.getInitStats());
+                if (!result) {
+                    Toast.makeText(MainActivity.this, "请先连接智能AI蓝牙耳机", Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+    }
+
     private void setTip(boolean isConnected) {
         Message message = mainHandler.obtainMessage();
         if (isConnected) {
@@ -112,21 +127,25 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     }
 
     private void stopRecord() {
-        mAudioCapture.stop();
-        mAudioCapture.release();
-
+        if (mMicClient != null) {
+            mMicClient.release();
+            mMicClient = null;
+        }
     }
 
 
     private void recordAndPlay() {
+        //第一次录音时才打开sco，连接后onScoAudioConnected会重新打开设备
+        if (!mScoRequested) {
+            startSco();
+        }
 
         audioPlayer.prepare(new AudioParam(AudioCapture.AUDIO_SAMPLE_RATE_44_1, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT));
 
-        mAudioCapture = new AudioCapture(AudioCapture.AUDIO_SAMPLE_RATE_44_1,
-            AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
-        if (mAudioCapture.getState() == AudioCapture.STATE_IDLE) {
-            Log.i(TAG, "recordAndPlay 1");
-            mAudioCapture.setAudioCaptureCallback(new AudioCaptureCallback() {
+        //SCO连接后需要重新打开设备，先释放之前的客户端
+        stopRecord();
+        mMicClient = MicSessionManager.getInstance().acquire(AudioCapture.AUDIO_SAMPLE_RATE_44_1,
+            new PcmConverter.Format(AudioFormat.ENCODING_PCM_16BIT, 1, false), new AudioCaptureCallback() {
                 @Override
                 public void onPCMDataAvailable(byte[] data, int size) {
                     Log.i(TAG, "onPCMDataAvailable with: currentThread = " + Thread.currentThread().getName() + "");
@@ -134,12 +153,11 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                     audioPlayer.write(data, size);
                 }
             });
-            mAudioCapture.start();
-
+        if (mMicClient != null) {
+            Log.i(TAG, "recordAndPlay 1");
             audioPlayer.play();
         } else {
             Log.i(TAG, "recordAndPlay 2");
-            mAudioCapture.release();
         }
     }
 